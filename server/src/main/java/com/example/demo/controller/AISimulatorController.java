@@ -0,0 +1,147 @@
+package com.example.demo.controller;
+
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 本地 AI 服务模拟
+ * 实现与 ai.api.url 相同的接口（multipart：photo1、photo2、scene、prompt，返回 JPEG），用于在没有外部服务时
+ * 压测完整的合照链路。延迟按对数正态分布抽样，可配置错误率、并发上限（超出时返回 429）和输出图片尺寸。
+ * 等待期间不占用请求线程。只在 ai.simulator.enabled=true 时注册，使用时将 ai.api.url 指向
+ * http://localhost:{port}/sim/ai/merge-photos 并关闭 ai.mock.enabled
+ */
+@RestController
+@RequestMapping("/sim/ai")
+@ConditionalOnProperty(name = "ai.simulator.enabled", havingValue = "true")
+public class AISimulatorController {
+
+    private static final Logger logger = LoggerFactory.getLogger(AISimulatorController.class);
+
+    private final long latencyMedianMs;
+    private final double latencySigma;
+    private final long latencyMaxMs;
+    private final double errorRate;
+    private final Semaphore capacity;
+    private final byte[] output;
+    private final ScheduledExecutorService scheduler;
+
+    public AISimulatorController(@Value("${ai.simulator.latency-median-ms:2000}") long latencyMedianMs,
+                                 @Value("${ai.simulator.latency-sigma:0.5}") double latencySigma,
+                                 @Value("${ai.simulator.latency-max-ms:30000}") long latencyMaxMs,
+                                 @Value("${ai.simulator.error-rate:0}") double errorRate,
+                                 @Value("${ai.simulator.max-concurrency:16}") int maxConcurrency,
+                                 @Value("${ai.simulator.output-width:1024}") int outputWidth,
+                                 @Value("${ai.simulator.output-height:1024}") int outputHeight) throws IOException {
+        this.latencyMedianMs = latencyMedianMs;
+        this.latencySigma = latencySigma;
+        this.latencyMaxMs = latencyMaxMs;
+        this.errorRate = errorRate;
+        this.capacity = new Semaphore(maxConcurrency);
+        // 所有响应共用同一张预先编码的图片，模拟服务本身不成为瓶颈
+        this.output = renderOutput(outputWidth, outputHeight);
+
+        AtomicInteger counter = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "ai-simulator-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        logger.warn("AI服务模拟已启用: 延迟中位数 {} ms，错误率 {}，并发上限 {}，输出 {}x{}（{} 字节）",
+                latencyMedianMs, errorRate, maxConcurrency, outputWidth, outputHeight, output.length);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 模拟合照生成
+     */
+    @PostMapping(value = "/merge-photos", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public DeferredResult<ResponseEntity<byte[]>> mergePhotos(
+            @RequestParam("photo1") MultipartFile photo1,
+            @RequestParam("photo2") MultipartFile photo2,
+            @RequestParam("scene") MultipartFile scene,
+            @RequestParam(value = "prompt", required = false) String prompt) {
+        DeferredResult<ResponseEntity<byte[]>> result = new DeferredResult<>(latencyMaxMs + 5000);
+        if (photo1.isEmpty() || photo2.isEmpty() || scene.isEmpty()) {
+            result.setResult(ResponseEntity.badRequest().build());
+            return result;
+        }
+        if (!capacity.tryAcquire()) {
+            result.setResult(ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS).header("Retry-After", "1").build());
+            return result;
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long latency = Math.min(latencyMaxMs,
+                Math.round(latencyMedianMs * Math.exp(latencySigma * random.nextGaussian())));
+        boolean fail = random.nextDouble() < errorRate;
+        scheduler.schedule(() -> {
+            capacity.release();
+            if (fail) {
+                result.setResult(ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).build());
+            } else {
+                result.setResult(ResponseEntity.ok().contentType(MediaType.IMAGE_JPEG).body(output));
+            }
+        }, latency, TimeUnit.MILLISECONDS);
+        return result;
+    }
+
+    /**
+     * 生成带噪点的渐变图，编码后的大小接近真实照片
+     */
+    private static byte[] renderOutput(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(32)) & 0xFF;
+                int b = ((x + y) * 127 / (width + height) + random.nextInt(32)) & 0xFF;
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(buffer)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.85f);
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return buffer.toByteArray();
+    }
+}
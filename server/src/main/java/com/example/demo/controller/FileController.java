@@ -1,19 +1,21 @@
 package com.example.demo.controller;
 
+import com.example.demo.service.CachedFile;
+import com.example.demo.service.FileServingService;
 import com.example.demo.service.FileStorageService;
+import com.example.demo.service.HotFileCache;
+import com.example.demo.service.ImageResizeService;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.Resource;
-import org.springframework.core.io.UrlResource;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 
@@ -29,43 +31,54 @@ public class FileController {
     private static final Logger logger = LoggerFactory.getLogger(FileController.class);
     
     private final FileStorageService fileStorageService;
+    private final FileServingService fileServingService;
+    private final HotFileCache hotFileCache;
+    private final ImageResizeService imageResizeService;
     
     @Autowired
-    public FileController(FileStorageService fileStorageService) {
+    public FileController(FileStorageService fileStorageService, FileServingService fileServingService,
+                          HotFileCache hotFileCache, ImageResizeService imageResizeService) {
         this.fileStorageService = fileStorageService;
+        this.fileServingService = fileServingService;
+        this.hotFileCache = hotFileCache;
+        this.imageResizeService = imageResizeService;
     }
     
     /**
      * 获取上传目录中的文件
+     * 带 w/h 参数时返回按需缩放的 JPEG（宽高和质量 q 须在白名单内，mode 可选 fast/quality）
      */
     @GetMapping("/**")
-    public ResponseEntity<Resource> getFile(HttpServletRequest request) {
+    public void getFile(@RequestParam(value = "w", required = false) Integer width,
+                        @RequestParam(value = "h", required = false) Integer height,
+                        @RequestParam(value = "q", required = false) Integer quality,
+                        @RequestParam(value = "mode", required = false) String mode,
+                        HttpServletRequest request, HttpServletResponse response) throws IOException {
         String path = request.getRequestURI().substring("/api/files".length());
         logger.info("请求访问文件: {}", path);
         
-        try {
-            // 尝试从上传目录加载
-            Resource resource = fileStorageService.loadFileAsResource("./uploads" + path);
-            return prepareResourceResponse(resource, request);
-        } catch (Exception e) {
-            logger.warn("上传目录中未找到文件: {}, 尝试从静态资源目录加载", path);
-            
-            try {
-                // 尝试从静态资源目录加载
-                Path filePath = Paths.get("./src/main/resources/static" + path);
-                Resource resource = new UrlResource(filePath.toUri());
-                
-                if (resource.exists()) {
-                    return prepareResourceResponse(resource, request);
-                } else {
-                    logger.error("文件不存在: {}", path);
-                    return ResponseEntity.notFound().build();
-                }
-            } catch (MalformedURLException ex) {
-                logger.error("无法加载文件: {}", path, ex);
-                return ResponseEntity.notFound().build();
-            }
+        if (width != null || height != null || quality != null || mode != null) {
+            serveResized(path, width, height, quality, mode, request, response);
+            return;
+        }
+        
+        // 热点缓存命中时直接输出，不访问文件系统
+        String logicalPath = "./uploads" + path;
+        CachedFile cached = hotFileCache.get(logicalPath);
+        if (cached != null) {
+            serveCached(logicalPath, cached, request, response);
+            return;
+        }
+        
+        // 通过路径索引定位文件（上传目录优先，其次静态资源目录），不存在的路径有否定缓存
+        Path file = fileStorageService.resolveFile(logicalPath);
+        if (file == null) {
+            logger.debug("文件不存在: {}", path);
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
         }
+        
+        serveFile(logicalPath, file, request, response);
     }
     
     /**
@@ -73,50 +86,102 @@ public class FileController {
      * 专门为场景图片提供的访问接口
      */
     @GetMapping("/images/scenes/{filename:.+}")
-    public ResponseEntity<Resource> getSceneImage(@PathVariable String filename, HttpServletRequest request) {
+    public void getSceneImage(@PathVariable String filename, HttpServletRequest request,
+                              HttpServletResponse response) throws IOException {
         logger.info("请求访问场景图片: {}", filename);
         
-        try {
-            // 首先尝试从上传目录获取
-            Resource resource = fileStorageService.loadFileAsResource("./uploads/scenes/" + filename);
-            return prepareResourceResponse(resource, request);
-        } catch (Exception e) {
-            logger.warn("上传目录中未找到场景图片: {}, 尝试从静态资源目录加载", filename);
-            
-            try {
-                // 尝试从静态资源目录加载
-                Path path = Paths.get("./src/main/resources/static/images/scenes/" + filename);
-                Resource resource = new UrlResource(path.toUri());
-                
-                if (resource.exists()) {
-                    return prepareResourceResponse(resource, request);
-                } else {
-                    logger.error("场景图片不存在: {}", filename);
-                    return ResponseEntity.notFound().build();
-                }
-            } catch (MalformedURLException ex) {
-                logger.error("无法加载场景图片: {}", filename, ex);
-                return ResponseEntity.notFound().build();
-            }
+        // 热点缓存命中时直接输出，不访问文件系统
+        String logicalPath = "./uploads/scenes/" + filename;
+        CachedFile cached = hotFileCache.get(logicalPath);
+        if (cached != null) {
+            serveCached(logicalPath, cached, request, response);
+            return;
         }
+        
+        // 通过路径索引定位文件（上传目录优先，其次静态资源目录），不存在的路径有否定缓存
+        Path file = fileStorageService.resolveFile(logicalPath);
+        if (file == null) {
+            logger.debug("场景图片不存在: {}", filename);
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        
+        serveFile(logicalPath, file, request, response);
     }
     
     /**
-     * 准备资源响应
+     * 输出缩放后的图片
+     * 派生图由 ImageResizeService 生成并缓存在磁盘上，这里只负责参数校验和输出
      */
-    private ResponseEntity<Resource> prepareResourceResponse(Resource resource, HttpServletRequest request) {
-        // 确定文件的内容类型
-        String contentType;
+    private void serveResized(String path, Integer width, Integer height, Integer quality, String mode,
+                              HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String error = imageResizeService.validate(width, height, quality);
+        if (error == null && mode != null && !"fast".equals(mode) && !"quality".equals(mode)) {
+            error = "不支持的缩放模式: " + mode;
+        }
+        if (error == null && !getContentType(path, request).startsWith("image/")) {
+            error = "只有图片支持缩放";
+        }
+        if (error != null) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), error);
+            return;
+        }
+        
+        Path source = fileStorageService.resolveFile("./uploads" + path);
+        if (source == null) {
+            logger.debug("文件不存在: {}", path);
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        
+        Path resized;
         try {
-            contentType = request.getServletContext().getMimeType(resource.getFile().getAbsolutePath());
+            resized = imageResizeService.getResized(source, width, height, quality, !"fast".equals(mode));
         } catch (IOException ex) {
-            logger.warn("无法确定文件类型", ex);
-            contentType = "application/octet-stream";
+            logger.warn("图片缩放失败: {}", path, ex);
+            response.sendError(HttpStatus.UNPROCESSABLE_ENTITY.value(), "无法处理该图片");
+            return;
+        }
+        
+        String filename = Paths.get(path).getFileName().toString();
+        int dot = filename.lastIndexOf('.');
+        filename = (dot > 0 ? filename.substring(0, dot) : filename) + ".jpg";
+        fileServingService.serveFile(resized, MediaType.IMAGE_JPEG_VALUE,
+                "inline; filename=\"" + filename + "\"", CacheControl.noCache(), request, response);
+    }
+    
+    /**
+     * 输出文件内容
+     * 可缓存的文件先载入热点缓存再输出，其余由 FileServingService 直接从文件通道写出，
+     * 均支持 Range 请求和基于弱 ETag 的协商缓存
+     */
+    private void serveFile(String logicalPath, Path file, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException {
+        CachedFile cached = hotFileCache.load(logicalPath, file);
+        if (cached != null) {
+            serveCached(logicalPath, cached, request, response);
+            return;
         }
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + resource.getFilename() + "\"")
-                .body(resource);
+        fileServingService.serveFile(file, getContentType(logicalPath, request),
+                "inline; filename=\"" + file.getFileName() + "\"", CacheControl.noCache(), request, response);
+    }
+    
+    /**
+     * 输出缓存中的文件内容
+     */
+    private void serveCached(String logicalPath, CachedFile cached, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+        String filename = Paths.get(logicalPath).getFileName().toString();
+        fileServingService.serveCached(cached, getContentType(logicalPath, request),
+                "inline; filename=\"" + filename + "\"", CacheControl.noCache(), request, response);
+    }
+    
+    /**
+     * 根据文件名确定内容类型
+     */
+    private String getContentType(String filename, HttpServletRequest request) {
+        String contentType = request.getServletContext().getMimeType(filename);
+        return contentType != null ? contentType : "application/octet-stream";
     }
-} 
\ No newline at end of file
+}
@@ -1,22 +1,42 @@
 package com.example.demo.controller;
 
+import com.example.demo.entity.ImageVariant;
 import com.example.demo.entity.Photo;
 import com.example.demo.entity.User;
+import com.example.demo.service.FileServingService;
+import com.example.demo.service.FileStorageService;
+import com.example.demo.service.ImageVariantService;
+import com.example.demo.service.PhotoBatchService;
 import com.example.demo.service.PhotoService;
+import com.example.demo.service.StoredFile;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.apache.commons.fileupload2.core.DiskFileItem;
+import org.apache.commons.fileupload2.core.DiskFileItemFactory;
+import org.apache.commons.fileupload2.core.FileItemInput;
+import org.apache.commons.fileupload2.core.FileItemInputIterator;
+import org.apache.commons.fileupload2.core.FileUploadSizeException;
+import org.apache.commons.fileupload2.jakarta.servlet6.JakartaServletFileUpload;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
+import org.springframework.util.unit.DataSize;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -29,10 +49,23 @@ public class PhotoController {
     private static final Logger logger = LoggerFactory.getLogger(PhotoController.class);
     
     private final PhotoService photoService;
+    private final FileServingService fileServingService;
+    private final FileStorageService fileStorageService;
+    private final PhotoBatchService photoBatchService;
+    private final DataSize maxFileSize;
+    private final DataSize maxRequestSize;
     
     @Autowired
-    public PhotoController(PhotoService photoService) {
+    public PhotoController(PhotoService photoService, FileServingService fileServingService,
+                           FileStorageService fileStorageService, PhotoBatchService photoBatchService,
+                           @Value("${spring.servlet.multipart.max-file-size:10MB}") DataSize maxFileSize,
+                           @Value("${spring.servlet.multipart.max-request-size:15MB}") DataSize maxRequestSize) {
         this.photoService = photoService;
+        this.fileServingService = fileServingService;
+        this.fileStorageService = fileStorageService;
+        this.photoBatchService = photoBatchService;
+        this.maxFileSize = maxFileSize;
+        this.maxRequestSize = maxRequestSize;
     }
     
     /**
@@ -51,7 +84,119 @@ public class PhotoController {
         // 上传照片
         Photo photo = photoService.uploadPhoto(file, currentUser);
         
-        // 构建响应
+        return ResponseEntity.ok(toUploadResponse(photo));
+    }
+    
+    /**
+     * 流式上传照片
+     * 不经过 Spring 的 multipart 解析，逐段读取请求体并直接写入存储目录，
+     * 写入时一并计算哈希和大小、识别图片类型，超出大小限制时立即中止
+     */
+    @PostMapping("/upload/stream")
+    public ResponseEntity<Map<String, Object>> uploadPhotoStream(
+            HttpServletRequest request,
+            Authentication authentication) {
+        
+        logger.info("接收到流式照片上传请求");
+        
+        if (!JakartaServletFileUpload.isMultipartContent(request)) {
+            return uploadError(HttpStatus.BAD_REQUEST, "请求不是 multipart 格式");
+        }
+        
+        // 获取当前用户
+        User currentUser = (User) authentication.getPrincipal();
+        
+        JakartaServletFileUpload<DiskFileItem, DiskFileItemFactory> upload = new JakartaServletFileUpload<>();
+        upload.setFileSizeMax(maxFileSize.toBytes());
+        upload.setSizeMax(maxRequestSize.toBytes());
+        
+        Photo photo = null;
+        try {
+            FileItemInputIterator items = upload.getItemIterator(request);
+            while (items.hasNext()) {
+                FileItemInput item = items.next();
+                // 只处理第一个 file 字段，其余部分由迭代器跳过
+                if (item.isFormField() || !"file".equals(item.getFieldName()) || photo != null) {
+                    continue;
+                }
+                
+                StoredFile staged;
+                try (InputStream in = item.getInputStream()) {
+                    staged = fileStorageService.stageStream(in);
+                }
+                if (staged.getSize() == 0) {
+                    fileStorageService.discardStagedFile(staged);
+                    return uploadError(HttpStatus.BAD_REQUEST, "无法存储空文件");
+                }
+                if (staged.getSniffedType() == null) {
+                    fileStorageService.discardStagedFile(staged);
+                    return uploadError(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "不支持的图片格式");
+                }
+                
+                photo = photoService.uploadStagedPhoto(staged, item.getName(), currentUser);
+            }
+        } catch (FileUploadSizeException ex) {
+            logger.warn("上传文件超出大小限制: {} > {}", ex.getActualSize(), ex.getPermitted());
+            return uploadError(HttpStatus.PAYLOAD_TOO_LARGE, "文件超出大小限制");
+        } catch (IOException ex) {
+            logger.warn("读取上传数据失败", ex);
+            return uploadError(HttpStatus.BAD_REQUEST, "上传数据不完整");
+        }
+        
+        if (photo == null) {
+            return uploadError(HttpStatus.BAD_REQUEST, "缺少 file 字段");
+        }
+        return ResponseEntity.ok(toUploadResponse(photo));
+    }
+    
+    /**
+     * 批量上传照片
+     * 各文件并行写入存储，照片记录批量写入；部分文件失败时仍返回 200，逐项给出结果
+     */
+    @PostMapping("/batch")
+    public ResponseEntity<Map<String, Object>> uploadPhotoBatch(
+            @RequestParam("files") List<MultipartFile> files,
+            Authentication authentication) {
+        
+        logger.info("接收到批量照片上传请求，共 {} 个文件", files.size());
+        
+        if (files.isEmpty()) {
+            return uploadError(HttpStatus.BAD_REQUEST, "缺少 files 字段");
+        }
+        if (files.size() > photoBatchService.getMaxFiles()) {
+            return uploadError(HttpStatus.PAYLOAD_TOO_LARGE,
+                    "单次最多上传 " + photoBatchService.getMaxFiles() + " 个文件");
+        }
+        
+        // 获取当前用户
+        User currentUser = (User) authentication.getPrincipal();
+        
+        List<PhotoBatchService.BatchItemResult> results = photoBatchService.uploadPhotos(files, currentUser);
+        
+        List<Map<String, Object>> items = results.stream().map(result -> {
+            Map<String, Object> item = result.isSuccess() ? toUploadResponse(result.getPhoto()) : new HashMap<>();
+            item.put("index", result.getIndex());
+            item.put("fileName", result.getFileName());
+            item.put("success", result.isSuccess());
+            if (!result.isSuccess()) {
+                item.put("message", result.getMessage());
+            }
+            return item;
+        }).collect(Collectors.toList());
+        
+        long succeeded = results.stream().filter(PhotoBatchService.BatchItemResult::isSuccess).count();
+        Map<String, Object> response = new HashMap<>();
+        response.put("total", results.size());
+        response.put("succeeded", succeeded);
+        response.put("failed", results.size() - succeeded);
+        response.put("items", items);
+        return ResponseEntity.ok(response);
+    }
+    
+    /**
+     * 构建上传成功的响应
+     */
+    private Map<String, Object> toUploadResponse(Photo photo) {
         Map<String, Object> response = new HashMap<>();
         response.put("id", photo.getId());
         response.put("fileName", photo.getFileName());
@@ -66,7 +211,14 @@ public class PhotoController {
                 .toUriString();
         response.put("url", photoUrl);
         
-        return ResponseEntity.ok(response);
+        return response;
+    }
+    
+    private ResponseEntity<Map<String, Object>> uploadError(HttpStatus status, String message) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", false);
+        response.put("message", message);
+        return ResponseEntity.status(status).body(response);
     }
     
     /**
@@ -96,6 +248,8 @@ public class PhotoController {
                     .path(photo.getId().toString())
                     .toUriString();
             map.put("url", photoUrl);
+            // 列表页使用缩略图，避免加载原图
+            map.put("thumbnailUrl", photoUrl + "?size=thumb");
             
             return map;
         }).collect(Collectors.toList());
@@ -105,18 +259,50 @@ public class PhotoController {
     
     /**
      * 获取照片
+     * size 参数可选 thumb/medium/large，规格图尚未生成时返回原图
      */
     @GetMapping("/{id}")
-    public ResponseEntity<Resource> getPhoto(
+    public void getPhoto(
             @PathVariable Long id,
+            @RequestParam(value = "size", required = false) String size,
             Authentication authentication,
-            HttpServletRequest request) {
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        
+        if (size != null && !ImageVariantService.isSupportedSize(size)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "不支持的图片规格: " + size);
+            return;
+        }
         
         // 获取当前用户
         User currentUser = (User) authentication.getPrincipal();
         
+        // 先用数据库中的哈希和上传时间做协商缓存校验，命中时不访问文件
+        Photo photo = photoService.getPhoto(id, currentUser.getId());
+        ImageVariant variant = size != null ? photoService.getPhotoVariant(photo, size).orElse(null) : null;
+        String etag = null;
+        if (photo.getContentHash() != null) {
+            etag = variant != null
+                    ? "\"" + photo.getContentHash() + "-" + variant.getVariant() + "\""
+                    : "\"" + photo.getContentHash() + "\"";
+        }
+        long lastModified = photo.getUploadTime() != null
+                ? photo.getUploadTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : -1;
+        if (fileServingService.checkNotModified(etag, lastModified,
+                CacheControl.noCache().cachePrivate(), request, response)) {
+            return;
+        }
+        
+        // 规格图统一为 JPEG
+        if (variant != null) {
+            Path variantFile = Paths.get(variant.getFilePath());
+            fileServingService.serveFile(variantFile, MediaType.IMAGE_JPEG_VALUE,
+                    "inline; filename=\"" + variantFile.getFileName() + "\"", etag, lastModified, request, response);
+            return;
+        }
+        
         // 获取照片资源
-        Resource resource = photoService.getPhotoResource(id, currentUser.getId());
+        Resource resource = photoService.getPhotoResource(photo);
         
         // 确定文件的内容类型
         String contentType;
@@ -124,13 +310,14 @@ public class PhotoController {
             contentType = request.getServletContext().getMimeType(resource.getFile().getAbsolutePath());
         } catch (IOException ex) {
             logger.warn("无法确定文件类型", ex);
+            contentType = null;
+        }
+        if (contentType == null) {
             contentType = "application/octet-stream";
         }
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + resource.getFilename() + "\"")
-                .body(resource);
+        fileServingService.serveFile(resource.getFile().toPath(), contentType,
+                "inline; filename=\"" + resource.getFilename() + "\"", etag, lastModified, request, response);
     }
     
     /**
@@ -209,6 +396,8 @@ public class PhotoController {
                     .path(photo.getId().toString())
                     .toUriString();
             map.put("url", photoUrl);
+            // 列表页使用缩略图，避免加载原图
+            map.put("thumbnailUrl", photoUrl + "?size=thumb");
             
             return map;
         }).collect(Collectors.toList());
@@ -1,13 +1,19 @@
 package com.example.demo.controller;
 
-import com.example.demo.entity.Photo;
+import com.example.demo.entity.ImageVariant;
 import com.example.demo.entity.PhotoMerge;
-import com.example.demo.entity.Prompt;
 import com.example.demo.entity.User;
+import com.example.demo.service.CachedFile;
+import com.example.demo.service.FileServingService;
+import com.example.demo.service.HotFileCache;
+import com.example.demo.service.ImageVariantService;
+import com.example.demo.service.MergeBatchItem;
+import com.example.demo.service.MergeEventBus;
+import com.example.demo.service.MergeJobService;
+import com.example.demo.service.MergeSubmissionService;
 import com.example.demo.service.PhotoMergeService;
-import com.example.demo.service.PhotoService;
-import com.example.demo.service.PromptService;
 import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -16,19 +22,28 @@ import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
-import org.springframework.http.HttpHeaders;
+import org.springframework.http.CacheControl;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.core.Authentication;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+import org.springframework.web.server.ResponseStatusException;
 import org.springframework.http.HttpStatus;
 
 import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/api/merges")
@@ -37,16 +52,25 @@ public class PhotoMergeController {
     private static final Logger logger = LoggerFactory.getLogger(PhotoMergeController.class);
     
     private final PhotoMergeService photoMergeService;
-    private final PhotoService photoService;
-    private final PromptService promptService;
+    private final MergeSubmissionService mergeSubmissionService;
+    private final FileServingService fileServingService;
+    private final HotFileCache hotFileCache;
+    private final MergeEventBus mergeEventBus;
+    private final MergeJobService mergeJobService;
     
     @Autowired
     public PhotoMergeController(PhotoMergeService photoMergeService, 
-                              PhotoService photoService, 
-                              PromptService promptService) {
+                              MergeSubmissionService mergeSubmissionService,
+                              FileServingService fileServingService,
+                              HotFileCache hotFileCache,
+                              MergeEventBus mergeEventBus,
+                              MergeJobService mergeJobService) {
         this.photoMergeService = photoMergeService;
-        this.photoService = photoService;
-        this.promptService = promptService;
+        this.mergeSubmissionService = mergeSubmissionService;
+        this.fileServingService = fileServingService;
+        this.hotFileCache = hotFileCache;
+        this.mergeEventBus = mergeEventBus;
+        this.mergeJobService = mergeJobService;
     }
     
     /**
@@ -100,38 +124,16 @@ public class PhotoMergeController {
         
         User currentUser = (User) authentication.getPrincipal();
         
+        // 积压已满时直接返回 429，不再保存上传的图片
+        mergeJobService.checkBacklog(currentUser.getId());
+        
         try {
-            // 步骤1: 保存用户上传的图片
-            Photo savedPhoto1 = photoService.uploadPhoto(photo1, currentUser);
-            Photo savedPhoto2 = photoService.uploadPhoto(photo2, currentUser);
-            
-            // 步骤2: 保存提示词（如果有）
-            if (promptText != null && !promptText.trim().isEmpty()) {
-                Prompt prompt = new Prompt();
-                prompt.setUser(currentUser);
-                prompt.setContent(promptText);
-                prompt.setIsPublic(false);
-                promptService.createPrompt(prompt, currentUser);
-            }
+            // 两张图片并行写入存储，照片、提示词（如果有）、合照记录和任务在同一事务中写入，不等待生成
+            PhotoMerge merge = mergeSubmissionService.submitMerge(currentUser, photo1, photo2, sceneId, promptText);
             
-            // 步骤3: 创建合照记录并开始处理
-            CompletableFuture<PhotoMerge> future = photoMergeService.createMerge(
-                currentUser.getId(), 
-                savedPhoto1.getId(), 
-                savedPhoto2.getId(), 
-                sceneId, 
-                promptText
-            );
-            
-            // 获取创建的合照记录ID
-            Long mergeId = future.join().getId();
-            
-            Map<String, Object> response = new HashMap<>();
-            response.put("success", true);
-            response.put("message", "合照请求已提交，正在处理中");
-            response.put("mergeId", mergeId);
-            
-            return ResponseEntity.accepted().body(response);
+            return acceptedResponse(merge, "合照请求已提交，正在处理中");
+        } catch (ResponseStatusException e) {
+            throw e;
         } catch (Exception e) {
             logger.error("创建合照失败", e);
             
@@ -143,52 +145,368 @@ public class PhotoMergeController {
         }
     }
     
+    /**
+     * 批量创建合照：同一对已上传的照片搭配多个场景，照片不重复上传
+     * 请求体 {"photo1Id": 1, "photo2Id": 2, "items": [{"sceneId": 3, "promptText": "..."}, ...]}
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Map<String, Object>> createMergeBatch(
+            @RequestBody BatchMergeRequest batchRequest,
+            Authentication authentication) {
+        
+        User currentUser = (User) authentication.getPrincipal();
+        if (batchRequest.getPhoto1Id() == null || batchRequest.getPhoto2Id() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "缺少照片ID");
+        }
+        
+        List<PhotoMerge> merges = photoMergeService.createMergeBatch(currentUser.getId(),
+                batchRequest.getPhoto1Id(), batchRequest.getPhoto2Id(), batchRequest.getItems());
+        return batchAcceptedResponse(merges);
+    }
+    
+    /**
+     * 批量创建合照：上传一次照片，搭配多个场景
+     * photo1、photo2 为图片文件，items 部分为 JSON 数组（Content-Type: application/json），格式同上
+     */
+    @PostMapping(value = "/batch", consumes = MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<Map<String, Object>> createMergeBatchWithUpload(
+            @RequestParam("photo1") MultipartFile photo1,
+            @RequestParam("photo2") MultipartFile photo2,
+            @RequestPart("items") List<MergeBatchItem> items,
+            Authentication authentication) {
+        
+        User currentUser = (User) authentication.getPrincipal();
+        
+        // 积压不足以容纳整批时直接返回 429，不再保存上传的图片
+        mergeJobService.checkBacklog(currentUser.getId(), items.size());
+        
+        // 照片和整批合照在同一事务中写入，任何一步失败时照片也不会保存
+        List<PhotoMerge> merges = mergeSubmissionService.submitMergeBatch(currentUser, photo1, photo2, items);
+        return batchAcceptedResponse(merges);
+    }
+    
+    /**
+     * 查询批量合照的整体状态
+     * status：有处理中的合照时为 PROCESSING；全部完成为 COMPLETED；都未完成（失败或取消）为 FAILED；其余为 PARTIAL
+     */
+    @GetMapping("/groups/{groupId}")
+    public ResponseEntity<Map<String, Object>> getMergeGroupStatus(
+            @PathVariable String groupId,
+            Authentication authentication) {
+        User currentUser = (User) authentication.getPrincipal();
+        List<PhotoMerge> merges = photoMergeService.getMergeGroup(groupId, currentUser.getId());
+        
+        Map<String, Long> counts = new LinkedHashMap<>();
+        List<Map<String, Object>> items = new ArrayList<>(merges.size());
+        for (PhotoMerge merge : merges) {
+            counts.merge(merge.getStatus(), 1L, Long::sum);
+            Map<String, Object> item = new HashMap<>();
+            item.put("mergeId", merge.getId());
+            item.put("sceneId", merge.getScene().getId());
+            item.put("status", merge.getStatus());
+            item.put("completedAt", merge.getCompletedAt());
+            if (merge.isCompleted() && merge.getResultHash() != null) {
+                item.put("resultUrl", ServletUriComponentsBuilder.fromCurrentContextPath()
+                        .path("/api/merges/{id}/result")
+                        .queryParam("v", merge.getResultHash())
+                        .buildAndExpand(merge.getId())
+                        .toUriString());
+            }
+            items.add(item);
+        }
+        
+        long total = merges.size();
+        long processing = counts.getOrDefault("PROCESSING", 0L);
+        long completed = counts.getOrDefault("COMPLETED", 0L);
+        String status;
+        if (processing > 0) {
+            status = "PROCESSING";
+        } else if (completed == total) {
+            status = "COMPLETED";
+        } else if (completed == 0) {
+            status = "FAILED";
+        } else {
+            status = "PARTIAL";
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("groupId", groupId);
+        response.put("status", status);
+        response.put("total", total);
+        response.put("counts", counts);
+        response.put("progress", (total - processing) * 100 / total);
+        response.put("merges", items);
+        
+        // 处理中的状态随时会变，不允许缓存
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .body(response);
+    }
+    
+    /**
+     * 查询当前用户的合照排队情况
+     */
+    @GetMapping("/queue")
+    public ResponseEntity<Map<String, Object>> getQueueStatus(Authentication authentication) {
+        User currentUser = (User) authentication.getPrincipal();
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("backlog", mergeJobService.getBacklog(currentUser.getId()));
+        response.put("maxBacklog", mergeJobService.getMaxBacklogPerUser());
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .body(response);
+    }
+    
+    /**
+     * 订阅当前用户的合照状态事件（SSE）
+     * 断线重连时浏览器会自动带上 Last-Event-ID，服务端补发其后的事件；
+     * 收到 resync 事件时说明补发范围已过期，需重新拉取列表
+     */
+    @GetMapping(value = "/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public SseEmitter streamMergeEvents(
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+            Authentication authentication) {
+        User currentUser = (User) authentication.getPrincipal();
+        
+        Long lastId = null;
+        if (lastEventId != null && !lastEventId.isBlank()) {
+            try {
+                lastId = Long.parseLong(lastEventId.trim());
+            } catch (NumberFormatException ex) {
+                logger.debug("忽略无效的 Last-Event-ID: {}", lastEventId);
+            }
+        }
+        return mergeEventBus.subscribe(currentUser.getId(), lastId);
+    }
+    
+    /**
+     * 查询合照处理状态
+     * 只返回状态相关的字段，供客户端轮询
+     */
+    @GetMapping("/{id}/status")
+    public ResponseEntity<Map<String, Object>> getMergeStatus(
+            @PathVariable Long id,
+            Authentication authentication) {
+        User currentUser = (User) authentication.getPrincipal();
+        PhotoMerge merge = photoMergeService.getMerge(id, currentUser.getId());
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("mergeId", merge.getId());
+        response.put("status", merge.getStatus());
+        response.put("createdAt", merge.getCreatedAt());
+        response.put("completedAt", merge.getCompletedAt());
+        if (merge.isCompleted() && merge.getResultHash() != null) {
+            response.put("resultUrl", ServletUriComponentsBuilder.fromCurrentContextPath()
+                    .path("/api/merges/{id}/result")
+                    .queryParam("v", merge.getResultHash())
+                    .buildAndExpand(merge.getId())
+                    .toUriString());
+        }
+        
+        // 处理中的状态随时会变，不允许缓存
+        return ResponseEntity.ok()
+                .cacheControl(CacheControl.noStore())
+                .body(response);
+    }
+    
+    /**
+     * 构建已受理响应，Location 指向状态查询地址
+     */
+    private ResponseEntity<Map<String, Object>> acceptedResponse(PhotoMerge merge, String message) {
+        URI statusUri = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/api/merges/{id}/status")
+                .buildAndExpand(merge.getId())
+                .toUri();
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("message", message);
+        response.put("mergeId", merge.getId());
+        response.put("status", merge.getStatus());
+        response.put("statusUrl", statusUri.toString());
+        
+        return ResponseEntity.accepted().location(statusUri).body(response);
+    }
+    
+    /**
+     * 构建批量提交的已受理响应，Location 指向分组状态查询地址
+     */
+    private ResponseEntity<Map<String, Object>> batchAcceptedResponse(List<PhotoMerge> merges) {
+        String groupId = merges.get(0).getGroupId();
+        URI statusUri = ServletUriComponentsBuilder.fromCurrentContextPath()
+                .path("/api/merges/groups/{groupId}")
+                .buildAndExpand(groupId)
+                .toUri();
+        
+        List<Map<String, Object>> items = new ArrayList<>(merges.size());
+        for (PhotoMerge merge : merges) {
+            Map<String, Object> item = new HashMap<>();
+            item.put("mergeId", merge.getId());
+            item.put("sceneId", merge.getScene().getId());
+            item.put("status", merge.getStatus());
+            items.add(item);
+        }
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("message", "批量合照请求已提交，正在处理中");
+        response.put("groupId", groupId);
+        response.put("merges", items);
+        response.put("statusUrl", statusUri.toString());
+        
+        return ResponseEntity.accepted().location(statusUri).body(response);
+    }
+    
     /**
      * 获取合照结果图片
+     * 携带与 resultHash 一致的 v 参数时，结果内容固定不变，可长期缓存；
+     * size 参数可选 thumb/medium/large，规格图尚未生成时返回原图
      */
     @GetMapping("/{id}/result")
-    public ResponseEntity<Resource> getMergeResult(
+    public void getMergeResult(
             @PathVariable Long id,
+            @RequestParam(value = "v", required = false) String version,
+            @RequestParam(value = "size", required = false) String size,
             Authentication authentication,
-            HttpServletRequest request) {
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        
+        if (size != null && !ImageVariantService.isSupportedSize(size)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "不支持的图片规格: " + size);
+            return;
+        }
         
         User currentUser = (User) authentication.getPrincipal();
         
-        // 获取合照资源
-        Resource resource = photoMergeService.getMergeResource(id, currentUser.getId());
+        // 先用数据库中的哈希和完成时间做协商缓存校验，命中时不访问文件
+        PhotoMerge merge = photoMergeService.getMerge(id, currentUser.getId());
+        ImageVariant variant = findVariant(merge, size);
+        if (checkResultNotModified(merge, variant, version, request, response)) {
+            return;
+        }
         
         // 确定文件的内容类型
-        String contentType;
-        try {
-            contentType = request.getServletContext().getMimeType(resource.getFile().getAbsolutePath());
-        } catch (IOException ex) {
-            logger.warn("无法确定文件类型", ex);
+        String contentType = variant != null ? MediaType.IMAGE_JPEG_VALUE
+                : merge.getResultPath() != null ? request.getServletContext().getMimeType(merge.getResultPath()) : null;
+        if (contentType == null) {
             contentType = "application/octet-stream";
         }
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.parseMediaType(contentType))
-                .header(HttpHeaders.CONTENT_DISPOSITION, "inline; filename=\"" + resource.getFilename() + "\"")
-                .body(resource);
+        serveMergeResult(merge, variant, contentType, null, request, response);
     }
     
     /**
      * 下载合照结果
+     * 支持断点续传（Range 请求）
      */
     @GetMapping("/{id}/download")
-    public ResponseEntity<Resource> downloadMergeResult(
+    public void downloadMergeResult(
             @PathVariable Long id,
-            Authentication authentication) {
+            @RequestParam(value = "v", required = false) String version,
+            @RequestParam(value = "size", required = false) String size,
+            Authentication authentication,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+        
+        if (size != null && !ImageVariantService.isSupportedSize(size)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "不支持的图片规格: " + size);
+            return;
+        }
         
         User currentUser = (User) authentication.getPrincipal();
         
-        // 获取合照资源
-        Resource resource = photoMergeService.getMergeResource(id, currentUser.getId());
+        PhotoMerge merge = photoMergeService.getMerge(id, currentUser.getId());
+        ImageVariant variant = findVariant(merge, size);
+        if (checkResultNotModified(merge, variant, version, request, response)) {
+            return;
+        }
         
-        return ResponseEntity.ok()
-                .contentType(MediaType.APPLICATION_OCTET_STREAM)
-                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"merge_" + id + ".jpg\"")
-                .body(resource);
+        String filename = variant != null ? "merge_" + id + "_" + variant.getVariant() + ".jpg" : "merge_" + id + ".jpg";
+        serveMergeResult(merge, variant, MediaType.APPLICATION_OCTET_STREAM_VALUE,
+                "attachment; filename=\"" + filename + "\"", request, response);
+    }
+    
+    /**
+     * 查询已完成合照的指定规格，未指定或尚未生成时返回 null
+     */
+    private ImageVariant findVariant(PhotoMerge merge, String size) {
+        if (size == null || !merge.isCompleted()) {
+            return null;
+        }
+        return photoMergeService.getMergeVariant(merge, size).orElse(null);
+    }
+    
+    /**
+     * 输出合照结果内容
+     * 刚完成的结果会被反复读取，优先从热点缓存输出
+     */
+    private void serveMergeResult(PhotoMerge merge, ImageVariant variant, String contentType, String contentDisposition,
+                                  HttpServletRequest request, HttpServletResponse response) throws IOException {
+        String logicalPath = variant != null ? variant.getFilePath() : merge.getResultPath();
+        CachedFile cached = merge.isCompleted() ? hotFileCache.get(logicalPath) : null;
+        Path file = null;
+        if (cached == null) {
+            if (variant != null) {
+                file = Paths.get(variant.getFilePath());
+            } else {
+                // 获取合照资源
+                Resource resource = photoMergeService.getMergeResource(merge);
+                file = resource.getFile().toPath();
+            }
+            cached = hotFileCache.load(logicalPath, file);
+        }
+        
+        if (contentDisposition == null) {
+            contentDisposition = "inline; filename=\"" + Paths.get(logicalPath).getFileName() + "\"";
+        }
+        
+        String etag = resultEtag(merge, variant);
+        if (cached != null) {
+            fileServingService.serveCached(cached, contentType, contentDisposition,
+                    etag, resultLastModified(merge), request, response);
+        } else {
+            fileServingService.serveFile(file, contentType, contentDisposition,
+                    etag, resultLastModified(merge), request, response);
+        }
+    }
+    
+    /**
+     * 合照结果的协商缓存校验
+     * 已完成的结果在重新生成前不会变化；URL 中带上匹配的版本号时按 immutable 长期缓存，
+     * 否则要求客户端每次用 ETag 重新校验，保证重新生成后能拿到新结果
+     */
+    private boolean checkResultNotModified(PhotoMerge merge, ImageVariant variant, String version,
+                                           HttpServletRequest request, HttpServletResponse response) {
+        if (!merge.isCompleted()) {
+            return false;
+        }
+        
+        CacheControl cacheControl;
+        if (version != null && version.equals(merge.getResultHash())) {
+            cacheControl = CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable();
+        } else {
+            cacheControl = CacheControl.noCache().cachePrivate();
+        }
+        return fileServingService.checkNotModified(resultEtag(merge, variant), resultLastModified(merge),
+                cacheControl, request, response);
+    }
+    
+    /**
+     * 结果的 ETag，规格图在结果哈希后附加规格名称
+     */
+    private String resultEtag(PhotoMerge merge, ImageVariant variant) {
+        if (merge.getResultHash() == null) {
+            return null;
+        }
+        return variant != null
+                ? "\"" + merge.getResultHash() + "-" + variant.getVariant() + "\""
+                : "\"" + merge.getResultHash() + "\"";
+    }
+    
+    private long resultLastModified(PhotoMerge merge) {
+        return merge.getCompletedAt() != null
+                ? merge.getCompletedAt().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli() : -1;
     }
     
     /**
@@ -210,6 +528,27 @@ public class PhotoMergeController {
         return ResponseEntity.ok(response);
     }
     
+    /**
+     * 取消处理中的合照，排队中的任务移出队列，正在进行的 AI 请求被中止；已完成或已失败时返回 409
+     */
+    @PostMapping("/{id}/cancel")
+    public ResponseEntity<Map<String, Object>> cancelMerge(
+            @PathVariable Long id,
+            Authentication authentication) {
+        
+        User currentUser = (User) authentication.getPrincipal();
+        
+        PhotoMerge merge = photoMergeService.cancelMerge(id, currentUser.getId());
+        
+        Map<String, Object> response = new HashMap<>();
+        response.put("success", true);
+        response.put("message", "合照已取消");
+        response.put("mergeId", merge.getId());
+        response.put("status", merge.getStatus());
+        
+        return ResponseEntity.ok(response);
+    }
+    
     /**
      * 重新生成合照
      */
@@ -220,13 +559,42 @@ public class PhotoMergeController {
         
         User currentUser = (User) authentication.getPrincipal();
         
-        // 异步处理合照重新生成
-        photoMergeService.regenerateMerge(id, currentUser.getId());
+        // 加入任务队列，不等待生成
+        PhotoMerge merge = photoMergeService.regenerateMerge(id, currentUser.getId());
         
-        Map<String, Object> response = new HashMap<>();
-        response.put("success", true);
-        response.put("message", "合照重新生成请求已提交，正在处理中");
+        return acceptedResponse(merge, "合照重新生成请求已提交，正在处理中");
+    }
+    
+    /**
+     * 批量创建合照的请求体
+     */
+    public static class BatchMergeRequest {
+        private Long photo1Id;
+        private Long photo2Id;
+        private List<MergeBatchItem> items;
+        
+        public Long getPhoto1Id() {
+            return photo1Id;
+        }
+        
+        public void setPhoto1Id(Long photo1Id) {
+            this.photo1Id = photo1Id;
+        }
+        
+        public Long getPhoto2Id() {
+            return photo2Id;
+        }
         
-        return ResponseEntity.accepted().body(response);
+        public void setPhoto2Id(Long photo2Id) {
+            this.photo2Id = photo2Id;
+        }
+        
+        public List<MergeBatchItem> getItems() {
+            return items;
+        }
+        
+        public void setItems(List<MergeBatchItem> items) {
+            this.items = items;
+        }
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,153 @@
+package com.example.demo.controller;
+
+import com.example.demo.entity.UploadSession;
+import com.example.demo.entity.User;
+import com.example.demo.service.ResumableUploadService;
+import jakarta.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 断点续传控制器
+ * 参照 tus 协议：POST 创建会话（Upload-Length 头给出总大小），HEAD 查询 Upload-Offset，
+ * PATCH 从 Upload-Offset 开始提交分片，DELETE 取消；最后一个分片写完后返回生成的照片
+ */
+@RestController
+@RequestMapping("/api/photos/uploads")
+public class ResumableUploadController {
+    
+    private static final Logger logger = LoggerFactory.getLogger(ResumableUploadController.class);
+    
+    private static final String UPLOAD_OFFSET = "Upload-Offset";
+    private static final String UPLOAD_LENGTH = "Upload-Length";
+    private static final String UPLOAD_EXPIRES = "Upload-Expires";
+    
+    private final ResumableUploadService resumableUploadService;
+    
+    @Autowired
+    public ResumableUploadController(ResumableUploadService resumableUploadService) {
+        this.resumableUploadService = resumableUploadService;
+    }
+    
+    /**
+     * 创建上传会话
+     */
+    @PostMapping
+    public ResponseEntity<Map<String, Object>> createSession(
+            @RequestHeader(UPLOAD_LENGTH) long uploadLength,
+            @RequestParam(value = "fileName", required = false) String fileName,
+            Authentication authentication) {
+        
+        User currentUser = (User) authentication.getPrincipal();
+        UploadSession session = resumableUploadService.createSession(currentUser.getId(), fileName, uploadLength);
+        
+        URI location = ServletUriComponentsBuilder.fromCurrentRequest()
+                .path("/{id}")
+                .buildAndExpand(session.getId())
+                .toUri();
+        return ResponseEntity.created(location)
+                .headers(sessionHeaders(session))
+                .body(toResponse(session));
+    }
+    
+    /**
+     * 查询已接收的偏移量
+     */
+    @RequestMapping(value = "/{id}", method = RequestMethod.HEAD)
+    public ResponseEntity<Void> getOffset(@PathVariable String id, Authentication authentication) {
+        User currentUser = (User) authentication.getPrincipal();
+        UploadSession session = resumableUploadService.getSession(id, currentUser.getId());
+        return ResponseEntity.ok()
+                .headers(sessionHeaders(session))
+                .cacheControl(CacheControl.noStore())
+                .build();
+    }
+    
+    /**
+     * 查询上传会话状态
+     */
+    @GetMapping("/{id}")
+    public ResponseEntity<Map<String, Object>> getSession(@PathVariable String id, Authentication authentication) {
+        User currentUser = (User) authentication.getPrincipal();
+        UploadSession session = resumableUploadService.getSession(id, currentUser.getId());
+        return ResponseEntity.ok()
+                .headers(sessionHeaders(session))
+                .cacheControl(CacheControl.noStore())
+                .body(toResponse(session));
+    }
+    
+    /**
+     * 提交分片
+     * 请求体为分片原始字节，未完成时返回 204，完成时返回 200 和照片信息
+     */
+    @PatchMapping("/{id}")
+    public ResponseEntity<Map<String, Object>> appendChunk(
+            @PathVariable String id,
+            @RequestHeader(UPLOAD_OFFSET) long uploadOffset,
+            Authentication authentication,
+            HttpServletRequest request) throws IOException {
+        
+        User currentUser = (User) authentication.getPrincipal();
+        
+        UploadSession session;
+        try (InputStream body = request.getInputStream()) {
+            session = resumableUploadService.appendChunk(id, currentUser, uploadOffset, body);
+        }
+        logger.debug("分片已写入: {}，偏移量 {}/{}", id, session.getUploadOffset(), session.getTotalSize());
+        
+        if (!session.isCompleted()) {
+            return ResponseEntity.status(HttpStatus.NO_CONTENT).headers(sessionHeaders(session)).build();
+        }
+        return ResponseEntity.ok().headers(sessionHeaders(session)).body(toResponse(session));
+    }
+    
+    /**
+     * 取消上传
+     */
+    @DeleteMapping("/{id}")
+    public ResponseEntity<Void> cancelSession(@PathVariable String id, Authentication authentication) {
+        User currentUser = (User) authentication.getPrincipal();
+        resumableUploadService.cancelSession(id, currentUser.getId());
+        return ResponseEntity.noContent().build();
+    }
+    
+    private HttpHeaders sessionHeaders(UploadSession session) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(UPLOAD_OFFSET, String.valueOf(session.getUploadOffset()));
+        headers.set(UPLOAD_LENGTH, String.valueOf(session.getTotalSize()));
+        headers.set(UPLOAD_EXPIRES, session.getExpiresAt().toString());
+        return headers;
+    }
+    
+    private Map<String, Object> toResponse(UploadSession session) {
+        Map<String, Object> response = new HashMap<>();
+        response.put("id", session.getId());
+        response.put("fileName", session.getFileName());
+        response.put("offset", session.getUploadOffset());
+        response.put("length", session.getTotalSize());
+        response.put("status", session.getStatus());
+        response.put("expiresAt", session.getExpiresAt());
+        if (session.getPhotoId() != null) {
+            response.put("photoId", session.getPhotoId());
+            response.put("url", ServletUriComponentsBuilder.fromCurrentContextPath()
+                    .path("/api/photos/")
+                    .path(session.getPhotoId().toString())
+                    .toUriString());
+        }
+        return response;
+    }
+}
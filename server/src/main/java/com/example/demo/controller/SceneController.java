@@ -1,13 +1,27 @@
 package com.example.demo.controller;
 
+import com.example.demo.entity.ImageVariant;
 import com.example.demo.entity.Scene;
+import com.example.demo.service.CachedFile;
+import com.example.demo.service.FileServingService;
+import com.example.demo.service.FileStorageService;
+import com.example.demo.service.HotFileCache;
+import com.example.demo.service.ImageVariantService;
 import com.example.demo.service.SceneService;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -20,10 +34,17 @@ public class SceneController {
     private static final Logger logger = LoggerFactory.getLogger(SceneController.class);
     
     private final SceneService sceneService;
+    private final FileStorageService fileStorageService;
+    private final FileServingService fileServingService;
+    private final HotFileCache hotFileCache;
     
     @Autowired
-    public SceneController(SceneService sceneService) {
+    public SceneController(SceneService sceneService, FileStorageService fileStorageService,
+                           FileServingService fileServingService, HotFileCache hotFileCache) {
         this.sceneService = sceneService;
+        this.fileStorageService = fileStorageService;
+        this.fileServingService = fileServingService;
+        this.hotFileCache = hotFileCache;
     }
     
     /**
@@ -46,6 +67,52 @@ public class SceneController {
         return ResponseEntity.ok(scene);
     }
     
+    /**
+     * 获取场景预览图
+     * size 参数可选 thumb/medium/large，规格图尚未生成时返回原图
+     */
+    @GetMapping("/{id}/preview")
+    public void getScenePreview(@PathVariable Long id,
+                                @RequestParam(value = "size", required = false) String size,
+                                HttpServletRequest request,
+                                HttpServletResponse response) throws IOException {
+        if (size != null && !ImageVariantService.isSupportedSize(size)) {
+            response.sendError(HttpStatus.BAD_REQUEST.value(), "不支持的图片规格: " + size);
+            return;
+        }
+        
+        Scene scene = sceneService.getScene(id);
+        ImageVariant variant = size != null ? sceneService.getPreviewVariant(id, size).orElse(null) : null;
+        String logicalPath = variant != null ? variant.getFilePath() : scene.getPreviewImage();
+        if (logicalPath == null || logicalPath.isEmpty()) {
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        
+        String contentType = variant != null ? MediaType.IMAGE_JPEG_VALUE
+                : request.getServletContext().getMimeType(logicalPath);
+        if (contentType == null) {
+            contentType = "application/octet-stream";
+        }
+        String disposition = "inline; filename=\"" + Paths.get(logicalPath).getFileName() + "\"";
+        
+        // 预览图和规格图都在热点缓存范围内，优先从缓存输出
+        CachedFile cached = hotFileCache.get(logicalPath);
+        if (cached == null) {
+            Path file = fileStorageService.resolveFile(logicalPath);
+            if (file == null) {
+                response.sendError(HttpStatus.NOT_FOUND.value());
+                return;
+            }
+            cached = hotFileCache.load(logicalPath, file);
+            if (cached == null) {
+                fileServingService.serveFile(file, contentType, disposition, CacheControl.noCache(), request, response);
+                return;
+            }
+        }
+        fileServingService.serveCached(cached, contentType, disposition, CacheControl.noCache(), request, response);
+    }
+    
     /**
      * 搜索场景
      */
@@ -0,0 +1,127 @@
+package com.example.demo.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "image_variants",
+       uniqueConstraints = @UniqueConstraint(columnNames = {"owner_type", "owner_id", "variant"}))
+public class ImageVariant {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+    
+    // 所属对象类型：PHOTO / SCENE / MERGE
+    @Column(name = "owner_type", nullable = false, length = 20)
+    private String ownerType;
+    
+    @Column(name = "owner_id", nullable = false)
+    private Long ownerId;
+    
+    // 规格名称：thumb / medium / large
+    @Column(nullable = false, length = 20)
+    private String variant;
+    
+    @Column(nullable = false)
+    private Integer width;
+    
+    @Column(nullable = false)
+    private Integer height;
+    
+    @Column(name = "file_path", nullable = false)
+    private String filePath;
+    
+    @Column(name = "file_size", nullable = false)
+    private Long fileSize;
+    
+    @Column(name = "created_at", nullable = false, updatable = false)
+    @CreationTimestamp
+    private LocalDateTime createdAt;
+    
+    // 默认构造函数
+    public ImageVariant() {
+    }
+    
+    // 带基本信息的构造函数
+    public ImageVariant(String ownerType, Long ownerId, String variant, Integer width, Integer height,
+                        String filePath, Long fileSize) {
+        this.ownerType = ownerType;
+        this.ownerId = ownerId;
+        this.variant = variant;
+        this.width = width;
+        this.height = height;
+        this.filePath = filePath;
+        this.fileSize = fileSize;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getOwnerType() {
+        return ownerType;
+    }
+
+    public void setOwnerType(String ownerType) {
+        this.ownerType = ownerType;
+    }
+
+    public Long getOwnerId() {
+        return ownerId;
+    }
+
+    public void setOwnerId(Long ownerId) {
+        this.ownerId = ownerId;
+    }
+
+    public String getVariant() {
+        return variant;
+    }
+
+    public void setVariant(String variant) {
+        this.variant = variant;
+    }
+
+    public Integer getWidth() {
+        return width;
+    }
+
+    public void setWidth(Integer width) {
+        this.width = width;
+    }
+
+    public Integer getHeight() {
+        return height;
+    }
+
+    public void setHeight(Integer height) {
+        this.height = height;
+    }
+
+    public String getFilePath() {
+        return filePath;
+    }
+
+    public void setFilePath(String filePath) {
+        this.filePath = filePath;
+    }
+
+    public Long getFileSize() {
+        return fileSize;
+    }
+
+    public void setFileSize(Long fileSize) {
+        this.fileSize = fileSize;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+}
@@ -0,0 +1,173 @@
+package com.example.demo.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "merge_jobs")
+public class MergeJob {
+
+    public static final String TYPE_GENERATE = "GENERATE";
+    public static final String TYPE_REGENERATE = "REGENERATE";
+
+    public static final String STATUS_QUEUED = "QUEUED";
+    public static final String STATUS_RUNNING = "RUNNING";
+    public static final String STATUS_DONE = "DONE";
+    public static final String STATUS_FAILED = "FAILED";
+    public static final String STATUS_CANCELLED = "CANCELLED";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "merge_id", nullable = false)
+    private Long mergeId;
+
+    // 合照所属用户，用于按用户公平调度和限制积压
+    @Column(name = "user_id")
+    private Long userId;
+
+    // 任务类型：GENERATE / REGENERATE
+    @Column(name = "job_type", nullable = false, length = 20)
+    private String jobType;
+
+    // 状态：QUEUED / RUNNING / DONE / FAILED / CANCELLED
+    @Column(nullable = false, length = 20)
+    private String status;
+
+    // 已领取次数，超过上限后不再重试
+    @Column(nullable = false)
+    private Integer attempts = 0;
+
+    // 领取该任务的工作节点
+    @Column(name = "locked_by", length = 100)
+    private String lockedBy;
+
+    // 租约到期时间，工作节点通过心跳续期，过期未续期的任务会被重新放回队列
+    @Column(name = "lease_until")
+    private LocalDateTime leaseUntil;
+
+    // 最早可被领取的时间，失败重试时向后推迟
+    @Column(name = "available_at", nullable = false)
+    private LocalDateTime availableAt;
+
+    @Column(name = "last_error", length = 1000)
+    private String lastError;
+
+    @Column(name = "created_at", nullable = false, updatable = false)
+    @CreationTimestamp
+    private LocalDateTime createdAt;
+
+    @Column(name = "finished_at")
+    private LocalDateTime finishedAt;
+
+    // 默认构造函数
+    public MergeJob() {
+    }
+
+    public MergeJob(Long mergeId, Long userId, String jobType) {
+        this.mergeId = mergeId;
+        this.userId = userId;
+        this.jobType = jobType;
+        this.status = STATUS_QUEUED;
+        this.availableAt = LocalDateTime.now();
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public Long getMergeId() {
+        return mergeId;
+    }
+
+    public void setMergeId(Long mergeId) {
+        this.mergeId = mergeId;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public String getJobType() {
+        return jobType;
+    }
+
+    public void setJobType(String jobType) {
+        this.jobType = jobType;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLockedBy() {
+        return lockedBy;
+    }
+
+    public void setLockedBy(String lockedBy) {
+        this.lockedBy = lockedBy;
+    }
+
+    public LocalDateTime getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public void setLeaseUntil(LocalDateTime leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
+    public LocalDateTime getAvailableAt() {
+        return availableAt;
+    }
+
+    public void setAvailableAt(LocalDateTime availableAt) {
+        this.availableAt = availableAt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getFinishedAt() {
+        return finishedAt;
+    }
+
+    public void setFinishedAt(LocalDateTime finishedAt) {
+        this.finishedAt = finishedAt;
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.demo.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "merge_results")
+public class MergeResult {
+
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_READY = "READY";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // 输入指纹：两张照片、场景预览图的内容哈希，规范化后的提示词和模型版本的 SHA-256
+    @Column(nullable = false, unique = true, length = 64)
+    private String fingerprint;
+
+    // 状态：PENDING（某个节点正在生成）/ READY（结果可用）
+    @Column(nullable = false, length = 20)
+    private String status = STATUS_READY;
+
+    // 正在生成的节点及其租约，节点失联后其他节点可在租约过期后接手
+    @Column(length = 100)
+    private String owner;
+
+    @Column(name = "lease_until")
+    private LocalDateTime leaseUntil;
+
+    @Column(name = "result_path", length = 500)
+    private String resultPath;
+
+    @Column(name = "result_hash", length = 64)
+    private String resultHash;
+
+    @Column(name = "model_version", length = 50)
+    private String modelVersion;
+
+    // 命中次数
+    @Column(name = "hit_count", nullable = false)
+    private Long hitCount = 0L;
+
+    @Column(name = "created_at", nullable = false, updatable = false)
+    @CreationTimestamp
+    private LocalDateTime createdAt;
+
+    @Column(name = "last_hit_at")
+    private LocalDateTime lastHitAt;
+
+    // 默认构造函数
+    public MergeResult() {
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public boolean isReady() {
+        return STATUS_READY.equals(status);
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public void setOwner(String owner) {
+        this.owner = owner;
+    }
+
+    public LocalDateTime getLeaseUntil() {
+        return leaseUntil;
+    }
+
+    public void setLeaseUntil(LocalDateTime leaseUntil) {
+        this.leaseUntil = leaseUntil;
+    }
+
+    public String getResultPath() {
+        return resultPath;
+    }
+
+    public void setResultPath(String resultPath) {
+        this.resultPath = resultPath;
+    }
+
+    public String getResultHash() {
+        return resultHash;
+    }
+
+    public void setResultHash(String resultHash) {
+        this.resultHash = resultHash;
+    }
+
+    public String getModelVersion() {
+        return modelVersion;
+    }
+
+    public void setModelVersion(String modelVersion) {
+        this.modelVersion = modelVersion;
+    }
+
+    public Long getHitCount() {
+        return hitCount;
+    }
+
+    public void setHitCount(Long hitCount) {
+        this.hitCount = hitCount;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public LocalDateTime getLastHitAt() {
+        return lastHitAt;
+    }
+
+    public void setLastHitAt(LocalDateTime lastHitAt) {
+        this.lastHitAt = lastHitAt;
+    }
+}
@@ -42,6 +42,10 @@ public class Photo {
     @Column(name = "description")
     private String description;
     
+    // 文件内容的 SHA-256，写入时计算，用作强 ETag，同时关联 photo_blobs 中的内容记录
+    @Column(name = "content_hash", length = 64)
+    private String contentHash;
+    
     // 默认构造函数
     public Photo() {
     }
@@ -106,6 +110,10 @@ public class Photo {
     public LocalDateTime getUploadTime() {
         return uploadTime;
     }
+    
+    public void setUploadTime(LocalDateTime uploadTime) {
+        this.uploadTime = uploadTime;
+    }
 
     public String getDescription() {
         return description;
@@ -114,4 +122,12 @@ public class Photo {
     public void setDescription(String description) {
         this.description = description;
     }
-} 
\ No newline at end of file
+
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+}
@@ -35,6 +35,18 @@ public class PhotoMerge {
     @Column(name = "result_path")
     private String resultPath;
     
+    // 结果文件的 SHA-256，写入时计算，用作强 ETag 和结果版本号
+    @Column(name = "result_hash", length = 64)
+    private String resultHash;
+    
+    // 输入指纹，相同指纹的合照共享结果，见 MergeResultCache
+    @Column(name = "input_fingerprint", length = 64)
+    private String inputFingerprint;
+    
+    // 批量提交的分组标识，同一批次（同一对照片搭配多个场景）的合照相同，单独提交时为空
+    @Column(name = "group_id", length = 36)
+    private String groupId;
+    
     @Column(nullable = false)
     private String status = "PROCESSING";
     
@@ -114,6 +126,30 @@ public class PhotoMerge {
         this.resultPath = resultPath;
     }
 
+    public String getInputFingerprint() {
+        return inputFingerprint;
+    }
+
+    public void setInputFingerprint(String inputFingerprint) {
+        this.inputFingerprint = inputFingerprint;
+    }
+    
+    public String getGroupId() {
+        return groupId;
+    }
+    
+    public void setGroupId(String groupId) {
+        this.groupId = groupId;
+    }
+
+    public String getResultHash() {
+        return resultHash;
+    }
+
+    public void setResultHash(String resultHash) {
+        this.resultHash = resultHash;
+    }
+
     public String getStatus() {
         return status;
     }
@@ -126,6 +162,10 @@ public class PhotoMerge {
         return createdAt;
     }
 
+    public void setCreatedAt(LocalDateTime createdAt) {
+        this.createdAt = createdAt;
+    }
+
     public LocalDateTime getCompletedAt() {
         return completedAt;
     }
@@ -146,6 +186,11 @@ public class PhotoMerge {
         this.status = "FAILED";
     }
     
+    // 辅助方法：标记为已取消
+    public void markAsCancelled() {
+        this.status = "CANCELLED";
+    }
+    
     // 辅助方法：检查是否处理中
     public boolean isProcessing() {
         return "PROCESSING".equals(this.status);
@@ -160,4 +205,9 @@ public class PhotoMerge {
     public boolean isFailed() {
         return "FAILED".equals(this.status);
     }
+    
+    // 辅助方法：检查是否已取消
+    public boolean isCancelled() {
+        return "CANCELLED".equals(this.status);
+    }
 } 
\ No newline at end of file
@@ -0,0 +1,132 @@
+package com.example.demo.entity;
+
+import jakarta.persistence.*;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "upload_sessions")
+public class UploadSession {
+
+    @Id
+    @Column(length = 36)
+    private String id;
+    
+    @Column(name = "user_id", nullable = false)
+    private Long userId;
+    
+    @Column(name = "file_name", nullable = false)
+    private String fileName;
+    
+    // 客户端声明的文件总大小
+    @Column(name = "total_size", nullable = false)
+    private Long totalSize;
+    
+    // 已接收的字节数，下一个分片必须从这里开始
+    @Column(name = "upload_offset", nullable = false)
+    private Long uploadOffset;
+    
+    // 分片写入的暂存文件
+    @Column(name = "staging_path", nullable = false, length = 500)
+    private String stagingPath;
+    
+    // 状态：UPLOADING / COMPLETED
+    @Column(nullable = false, length = 20)
+    private String status;
+    
+    // 完成后生成的照片
+    @Column(name = "photo_id")
+    private Long photoId;
+    
+    @Column(name = "created_at", nullable = false, updatable = false)
+    @CreationTimestamp
+    private LocalDateTime createdAt;
+    
+    @Column(name = "expires_at", nullable = false)
+    private LocalDateTime expiresAt;
+    
+    // 默认构造函数
+    public UploadSession() {
+    }
+    
+    public boolean isCompleted() {
+        return "COMPLETED".equals(status);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Long getUserId() {
+        return userId;
+    }
+
+    public void setUserId(Long userId) {
+        this.userId = userId;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    public Long getTotalSize() {
+        return totalSize;
+    }
+
+    public void setTotalSize(Long totalSize) {
+        this.totalSize = totalSize;
+    }
+
+    public Long getUploadOffset() {
+        return uploadOffset;
+    }
+
+    public void setUploadOffset(Long uploadOffset) {
+        this.uploadOffset = uploadOffset;
+    }
+
+    public String getStagingPath() {
+        return stagingPath;
+    }
+
+    public void setStagingPath(String stagingPath) {
+        this.stagingPath = stagingPath;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public void setStatus(String status) {
+        this.status = status;
+    }
+
+    public Long getPhotoId() {
+        return photoId;
+    }
+
+    public void setPhotoId(Long photoId) {
+        this.photoId = photoId;
+    }
+
+    public LocalDateTime getCreatedAt() {
+        return createdAt;
+    }
+
+    public LocalDateTime getExpiresAt() {
+        return expiresAt;
+    }
+
+    public void setExpiresAt(LocalDateTime expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+}
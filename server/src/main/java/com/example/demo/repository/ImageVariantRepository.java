@@ -0,0 +1,21 @@
+package com.example.demo.repository;
+
+import com.example.demo.entity.ImageVariant;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ImageVariantRepository extends JpaRepository<ImageVariant, Long> {
+    
+    // 查询对象的指定规格
+    Optional<ImageVariant> findByOwnerTypeAndOwnerIdAndVariant(String ownerType, Long ownerId, String variant);
+    
+    // 查询对象的所有规格
+    List<ImageVariant> findByOwnerTypeAndOwnerId(String ownerType, Long ownerId);
+    
+    // 检查对象是否已生成规格图
+    boolean existsByOwnerTypeAndOwnerId(String ownerType, Long ownerId);
+}
@@ -0,0 +1,80 @@
+package com.example.demo.repository;
+
+import com.example.demo.entity.MergeJob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface MergeJobRepository extends JpaRepository<MergeJob, Long> {
+
+    // 查询候选任务 {id, user_id}：每个用户最早提交的若干个，避免单个用户的积压占满候选范围
+    @Query(value = "SELECT c.id, c.user_id FROM ("
+            + "SELECT id, user_id, row_number() OVER (PARTITION BY user_id ORDER BY id) AS rn "
+            + "FROM merge_jobs WHERE status = 'QUEUED' AND available_at <= :now) c "
+            + "WHERE c.rn <= :perUser ORDER BY c.id LIMIT :maxTotal", nativeQuery = true)
+    List<Object[]> findCandidates(@Param("now") LocalDateTime now, @Param("perUser") int perUser,
+                                  @Param("maxTotal") int maxTotal);
+
+    // 锁定选中的任务，已被其他节点锁定或领走的行直接跳过，需在事务中调用
+    @Query(value = "SELECT * FROM merge_jobs WHERE id IN (:ids) AND status = 'QUEUED' "
+            + "FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<MergeJob> lockQueued(@Param("ids") Collection<Long> ids);
+
+    // 锁定一批租约已过期的运行中任务，需在事务中调用
+    @Query(value = "SELECT * FROM merge_jobs WHERE status = 'RUNNING' AND lease_until < :now "
+            + "ORDER BY id LIMIT :limit FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<MergeJob> lockExpired(@Param("now") LocalDateTime now, @Param("limit") int limit);
+
+    // 为本节点仍持有的任务续租
+    @Transactional
+    @Modifying
+    @Query("UPDATE MergeJob j SET j.leaseUntil = :leaseUntil "
+            + "WHERE j.id IN :ids AND j.lockedBy = :worker AND j.status = 'RUNNING'")
+    int renewLeases(@Param("ids") Collection<Long> ids, @Param("worker") String worker,
+                    @Param("leaseUntil") LocalDateTime leaseUntil);
+
+    // 标记任务完成，仅当本节点仍持有租约时成功
+    @Transactional
+    @Modifying
+    @Query("UPDATE MergeJob j SET j.status = 'DONE', j.finishedAt = :now, j.leaseUntil = null "
+            + "WHERE j.id = :id AND j.lockedBy = :worker AND j.status = 'RUNNING'")
+    int markDone(@Param("id") Long id, @Param("worker") String worker, @Param("now") LocalDateTime now);
+
+    // 取消合照未结束的任务，排队中的不会再被领取，执行中的在续租和完成时失效
+    @Transactional
+    @Modifying
+    @Query("UPDATE MergeJob j SET j.status = 'CANCELLED', j.finishedAt = :now, j.leaseUntil = null "
+            + "WHERE j.mergeId = :mergeId AND j.status IN ('QUEUED', 'RUNNING')")
+    int cancelByMergeId(@Param("mergeId") Long mergeId, @Param("now") LocalDateTime now);
+
+    // 查询指定任务中已被取消的任务ID
+    @Query("SELECT j.id FROM MergeJob j WHERE j.id IN :ids AND j.status = 'CANCELLED'")
+    List<Long> findCancelledIds(@Param("ids") Collection<Long> ids);
+
+    // 删除合照对应的任务
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM MergeJob j WHERE j.mergeId = :mergeId")
+    int deleteByMergeId(@Param("mergeId") Long mergeId);
+
+    // 合照是否有处于指定状态的任务
+    boolean existsByMergeIdAndStatusIn(Long mergeId, Collection<String> statuses);
+
+    // 统计用户处于指定状态的任务数
+    long countByUserIdAndStatusIn(Long userId, Collection<String> statuses);
+
+    // 按用户统计排队中的任务数 {user_id, count}
+    @Query("SELECT j.userId, COUNT(j) FROM MergeJob j WHERE j.status = 'QUEUED' GROUP BY j.userId")
+    List<Object[]> countQueuedByUser();
+
+    // 统计某状态的任务数
+    long countByStatus(String status);
+}
@@ -0,0 +1,85 @@
+package com.example.demo.repository;
+
+import com.example.demo.entity.MergeResult;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface MergeResultRepository extends JpaRepository<MergeResult, Long> {
+
+    // 根据输入指纹查询
+    Optional<MergeResult> findByFingerprint(String fingerprint);
+
+    // 根据一批输入指纹查询
+    List<MergeResult> findByFingerprintIn(Collection<String> fingerprints);
+
+    // 写入或替换指纹对应的结果，重新生成后指向新结果；正在生成的占位记录转为可用
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO merge_results (fingerprint, status, result_path, result_hash, model_version, hit_count, created_at) "
+            + "VALUES (:fingerprint, 'READY', :resultPath, :resultHash, :modelVersion, 0, CURRENT_TIMESTAMP) "
+            + "ON CONFLICT (fingerprint) DO UPDATE SET status = 'READY', owner = NULL, lease_until = NULL, "
+            + "result_path = EXCLUDED.result_path, result_hash = EXCLUDED.result_hash, "
+            + "model_version = EXCLUDED.model_version, created_at = CURRENT_TIMESTAMP",
+            nativeQuery = true)
+    int upsert(@Param("fingerprint") String fingerprint, @Param("resultPath") String resultPath,
+               @Param("resultHash") String resultHash, @Param("modelVersion") String modelVersion);
+
+    // 插入生成中的占位记录，指纹已存在时不插入，返回 1 表示本节点负责生成
+    @Transactional
+    @Modifying
+    @Query(value = "INSERT INTO merge_results (fingerprint, status, owner, lease_until, model_version, hit_count, created_at) "
+            + "VALUES (:fingerprint, 'PENDING', :owner, :leaseUntil, :modelVersion, 0, CURRENT_TIMESTAMP) "
+            + "ON CONFLICT (fingerprint) DO NOTHING", nativeQuery = true)
+    int insertPending(@Param("fingerprint") String fingerprint, @Param("owner") String owner,
+                      @Param("leaseUntil") LocalDateTime leaseUntil, @Param("modelVersion") String modelVersion);
+
+    // 接手租约已过期的占位记录
+    @Transactional
+    @Modifying
+    @Query("UPDATE MergeResult r SET r.owner = :owner, r.leaseUntil = :leaseUntil "
+            + "WHERE r.fingerprint = :fingerprint AND r.status = 'PENDING' AND r.leaseUntil < :now")
+    int takeOverExpired(@Param("fingerprint") String fingerprint, @Param("owner") String owner,
+                        @Param("leaseUntil") LocalDateTime leaseUntil, @Param("now") LocalDateTime now);
+
+    // 为本节点正在生成的占位记录续租
+    @Transactional
+    @Modifying
+    @Query("UPDATE MergeResult r SET r.leaseUntil = :leaseUntil "
+            + "WHERE r.fingerprint IN :fingerprints AND r.owner = :owner AND r.status = 'PENDING'")
+    int renewPending(@Param("fingerprints") Collection<String> fingerprints, @Param("owner") String owner,
+                     @Param("leaseUntil") LocalDateTime leaseUntil);
+
+    // 生成失败时删除本节点的占位记录，等待中的请求可以重新尝试
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM MergeResult r WHERE r.fingerprint = :fingerprint AND r.owner = :owner AND r.status = 'PENDING'")
+    int deletePending(@Param("fingerprint") String fingerprint, @Param("owner") String owner);
+
+    // 记录一次命中
+    @Transactional
+    @Modifying
+    @Query("UPDATE MergeResult r SET r.hitCount = r.hitCount + 1, r.lastHitAt = :now WHERE r.id = :id")
+    int recordHit(@Param("id") Long id, @Param("now") LocalDateTime now);
+
+    // 为一批记录各记录一次命中
+    @Transactional
+    @Modifying
+    @Query("UPDATE MergeResult r SET r.hitCount = r.hitCount + 1, r.lastHitAt = :now WHERE r.id IN :ids")
+    int recordHits(@Param("ids") Collection<Long> ids, @Param("now") LocalDateTime now);
+
+    // 删除指向某个结果文件的缓存记录
+    @Transactional
+    @Modifying
+    @Query("DELETE FROM MergeResult r WHERE r.resultPath = :resultPath")
+    int deleteByResultPath(@Param("resultPath") String resultPath);
+}
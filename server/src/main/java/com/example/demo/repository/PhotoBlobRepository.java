@@ -0,0 +1,40 @@
+package com.example.demo.repository;
+
+import com.example.demo.entity.PhotoBlob;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Optional;
+
+@Repository
+public interface PhotoBlobRepository extends JpaRepository<PhotoBlob, Long> {
+    
+    // 根据内容哈希查询
+    Optional<PhotoBlob> findBySha256(String sha256);
+    
+    // 查询内容对应的文件路径（直接查库，不受持久化上下文中旧实体的影响）
+    @Query("SELECT b.filePath FROM PhotoBlob b WHERE b.sha256 = :sha256")
+    String findFilePathBySha256(@Param("sha256") String sha256);
+    
+    // 增加引用：内容不存在时插入新记录，已存在时引用数加一，并发上传同一内容时由唯一约束保证只有一条记录
+    @Modifying
+    @Query(value = "INSERT INTO photo_blobs (sha256, file_path, file_size, content_type, ref_count, created_at) "
+            + "VALUES (:sha256, :filePath, :fileSize, :contentType, 1, CURRENT_TIMESTAMP) "
+            + "ON CONFLICT (sha256) DO UPDATE SET ref_count = photo_blobs.ref_count + 1",
+            nativeQuery = true)
+    int addReference(@Param("sha256") String sha256, @Param("filePath") String filePath,
+                     @Param("fileSize") long fileSize, @Param("contentType") String contentType);
+    
+    // 减少引用
+    @Modifying
+    @Query(value = "UPDATE photo_blobs SET ref_count = ref_count - 1 WHERE sha256 = :sha256", nativeQuery = true)
+    int removeReference(@Param("sha256") String sha256);
+    
+    // 删除已无引用的记录，返回删除的行数
+    @Modifying
+    @Query(value = "DELETE FROM photo_blobs WHERE sha256 = :sha256 AND ref_count <= 0", nativeQuery = true)
+    int deleteIfUnreferenced(@Param("sha256") String sha256);
+}
@@ -34,6 +34,16 @@ public interface PhotoMergeRepository extends JpaRepository<PhotoMerge, Long> {
     // 统计用户的合照总数
     long countByUserId(Long userId);
     
+    // 查询合照记录并一并加载照片和场景，供后台任务在无会话的线程中使用
+    @Query("SELECT pm FROM PhotoMerge pm JOIN FETCH pm.photo1 JOIN FETCH pm.photo2 JOIN FETCH pm.scene WHERE pm.id = ?1")
+    Optional<PhotoMerge> findWithInputsById(Long id);
+    
+    // 查询同一批次的合照，按提交顺序排列
+    List<PhotoMerge> findByGroupIdAndUserIdOrderById(String groupId, Long userId);
+    
+    // 统计引用某个结果文件的合照数（相同输入的合照共享结果文件）
+    long countByResultPath(String resultPath);
+    
     // 查询使用特定照片的合照记录
     @Query("SELECT pm FROM PhotoMerge pm WHERE pm.photo1.id = ?1 OR pm.photo2.id = ?1")
     List<PhotoMerge> findByPhotoId(Long photoId);
@@ -0,0 +1,31 @@
+package com.example.demo.repository;
+
+import com.example.demo.entity.UploadSession;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+    
+    // 根据ID和用户ID查询上传会话，确保当前用户只能访问自己的会话
+    Optional<UploadSession> findByIdAndUserId(String id, Long userId);
+    
+    // 查询已过期的会话
+    List<UploadSession> findByExpiresAtBefore(LocalDateTime time);
+    
+    // 推进上传偏移量，仅当偏移量仍为预期值时成功，防止并发分片互相覆盖进度
+    @Transactional
+    @Modifying
+    @Query("UPDATE UploadSession s SET s.uploadOffset = :newOffset, s.expiresAt = :expiresAt "
+            + "WHERE s.id = :id AND s.uploadOffset = :expectedOffset")
+    int advanceOffset(@Param("id") String id, @Param("expectedOffset") long expectedOffset,
+                      @Param("newOffset") long newOffset, @Param("expiresAt") LocalDateTime expiresAt);
+}
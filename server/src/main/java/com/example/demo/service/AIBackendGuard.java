@@ -0,0 +1,148 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * AI 服务调用保护
+ * 每次调用前先经过熔断器和自适应并发上限：后端失败率过高时熔断，直接拒绝；
+ * 后端变慢时并发上限随延迟收缩，超出上限的调用同样被拒绝。被拒绝的调用抛出 MergeDeferredException，
+ * 合照任务推迟后重新领取，不计入失败次数，也不会在慢后端上堆积等待的工作线程
+ */
+@Component
+public class AIBackendGuard {
+
+    private static final Logger logger = LoggerFactory.getLogger(AIBackendGuard.class);
+
+    private final AdaptiveConcurrencyLimiter limiter;
+    private final CircuitBreaker breaker;
+    private final long limitRetryDelaySeconds;
+
+    private final Counter limitRejections;
+    private final Counter breakerRejections;
+
+    public AIBackendGuard(@Value("${ai.limiter.initial-limit:4}") int initialLimit,
+                          @Value("${ai.limiter.min-limit:1}") int minLimit,
+                          @Value("${ai.limiter.max-limit:64}") int maxLimit,
+                          @Value("${ai.limiter.smoothing:0.5}") double smoothing,
+                          @Value("${ai.limiter.retry-delay-seconds:5}") long limitRetryDelaySeconds,
+                          @Value("${ai.breaker.window-size:20}") int windowSize,
+                          @Value("${ai.breaker.min-calls:10}") int minCalls,
+                          @Value("${ai.breaker.failure-rate-threshold:0.5}") double failureRateThreshold,
+                          @Value("${ai.breaker.open-seconds:30}") long openSeconds,
+                          @Value("${ai.breaker.half-open-calls:3}") int halfOpenCalls,
+                          MeterRegistry meterRegistry) {
+        this.limiter = new AdaptiveConcurrencyLimiter(initialLimit, minLimit, maxLimit, smoothing);
+        this.breaker = new CircuitBreaker(windowSize, minCalls, failureRateThreshold, openSeconds * 1000, halfOpenCalls);
+        this.limitRetryDelaySeconds = limitRetryDelaySeconds;
+
+        this.limitRejections = Counter.builder("ai.requests.rejected").tag("reason", "limit")
+                .description("超出并发上限被拒绝的AI调用次数").register(meterRegistry);
+        this.breakerRejections = Counter.builder("ai.requests.rejected").tag("reason", "breaker")
+                .description("熔断期间被拒绝的AI调用次数").register(meterRegistry);
+        Gauge.builder("ai.limiter.limit", limiter, AdaptiveConcurrencyLimiter::getLimit)
+                .description("AI调用当前并发上限").register(meterRegistry);
+        Gauge.builder("ai.limiter.inflight", limiter, AdaptiveConcurrencyLimiter::getInFlight)
+                .description("AI调用在途数").register(meterRegistry);
+        Gauge.builder("ai.breaker.state", breaker, b -> b.getState().ordinal())
+                .description("AI熔断器状态：0 关闭，1 打开，2 半开").register(meterRegistry);
+    }
+
+    /**
+     * 申请一次调用
+     *
+     * @return 调用许可，调用结束后必须且只能调用一次其 onSuccess、onFailure 或 onIgnored
+     * @throws MergeDeferredException 熔断中或在途调用已达上限
+     */
+    public Permit acquire() {
+        long generation = breaker.tryAcquire();
+        if (generation == CircuitBreaker.REJECTED) {
+            breakerRejections.increment();
+            long delaySeconds = Math.max(1, (breaker.remainingOpenMillis() + 999) / 1000);
+            throw new MergeDeferredException("AI服务熔断中", delaySeconds);
+        }
+        if (!limiter.tryAcquire()) {
+            breaker.onIgnored(generation);
+            limitRejections.increment();
+            throw new MergeDeferredException("AI服务并发已达上限 " + limiter.getLimit(), limitRetryDelaySeconds);
+        }
+        return new Permit(generation);
+    }
+
+    public int getLimit() {
+        return limiter.getLimit();
+    }
+
+    public int getInFlight() {
+        return limiter.getInFlight();
+    }
+
+    public CircuitBreaker.State getBreakerState() {
+        return breaker.getState();
+    }
+
+    /**
+     * 一次调用的许可，记录发放时熔断器的代数
+     */
+    public class Permit {
+        private final long generation;
+        private boolean released;
+
+        private Permit(long generation) {
+            this.generation = generation;
+        }
+
+        /**
+         * 调用成功，按延迟调整并发上限
+         *
+         * @param latencyNanos 请求发出到收到完整响应的耗时，不含本地准备时间
+         */
+        public void onSuccess(long latencyNanos) {
+            if (release()) {
+                limiter.onSuccess(latencyNanos);
+                CircuitBreaker.State before = breaker.getState();
+                breaker.onSuccess(generation);
+                if (before == CircuitBreaker.State.HALF_OPEN && breaker.getState() == CircuitBreaker.State.CLOSED) {
+                    logger.info("AI服务已恢复，熔断结束");
+                }
+            }
+        }
+
+        /**
+         * 超时或后端出错
+         */
+        public void onFailure() {
+            if (release()) {
+                limiter.onDropped();
+                CircuitBreaker.State before = breaker.getState();
+                breaker.onFailure(generation);
+                if (before != CircuitBreaker.State.OPEN && breaker.getState() == CircuitBreaker.State.OPEN) {
+                    logger.warn("AI服务失败率过高，熔断 {} 秒", (breaker.remainingOpenMillis() + 999) / 1000);
+                }
+            }
+        }
+
+        /**
+         * 调用结束但与后端健康状况无关（如请求参数错误）
+         */
+        public void onIgnored() {
+            if (release()) {
+                limiter.onIgnored();
+                breaker.onIgnored(generation);
+            }
+        }
+
+        private synchronized boolean release() {
+            if (released) {
+                return false;
+            }
+            released = true;
+            return true;
+        }
+    }
+}
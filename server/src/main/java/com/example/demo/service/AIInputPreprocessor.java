@@ -0,0 +1,211 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * AI 输入预处理
+ * 模型只按固定分辨率处理输入，发送前把两张照片和场景图等比缩小到 ai.input.max-dimension 以内，
+ * 重新编码为 JPEG（不带 EXIF 等元数据），减少上行流量和 AI 服务的处理时间。
+ * 场景图被所有合照共用，缩小结果由 ImageResizeService 的派生图缓存保存，每次请求在暂存目录建立硬链接后使用，
+ * 不受缓存淘汰影响；照片缩小结果写入暂存目录，请求结束后删除，
+ * 批量提交的合照（同一对照片搭配多个场景）的照片也经派生图缓存处理，整批只缩小一次。
+ * 无法解码的图片（如 ImageIO 不支持的格式）按原图发送
+ */
+@Service
+public class AIInputPreprocessor {
+
+    private static final Logger logger = LoggerFactory.getLogger(AIInputPreprocessor.class);
+
+    private final ImageProcessingService imageProcessingService;
+    private final ImageResizeService imageResizeService;
+    private final FileStorageService fileStorageService;
+    private final boolean enabled;
+    private final int maxDimension;
+    private final int quality;
+
+    private final Counter originalBytes;
+    private final Counter savedBytes;
+
+    public AIInputPreprocessor(ImageProcessingService imageProcessingService,
+                               ImageResizeService imageResizeService,
+                               FileStorageService fileStorageService,
+                               @Value("${ai.input.enabled:true}") boolean enabled,
+                               @Value("${ai.input.max-dimension:1024}") int maxDimension,
+                               @Value("${ai.input.quality:90}") int quality,
+                               MeterRegistry meterRegistry) {
+        this.imageProcessingService = imageProcessingService;
+        this.imageResizeService = imageResizeService;
+        this.fileStorageService = fileStorageService;
+        this.enabled = enabled;
+        this.maxDimension = maxDimension;
+        this.quality = quality;
+
+        this.originalBytes = Counter.builder("ai.input.bytes.original")
+                .description("AI输入图片预处理前的总字节数").register(meterRegistry);
+        this.savedBytes = Counter.builder("ai.input.bytes.saved")
+                .description("AI输入图片预处理节省的字节数").register(meterRegistry);
+    }
+
+    /**
+     * 预处理一次合照请求的输入
+     *
+     * @return 预处理后的文件，请求结束后须关闭以删除临时文件
+     * @throws IOException 原图不存在
+     */
+    public PreparedInput prepare(String photo1Path, String photo2Path, String scenePath) throws IOException {
+        return prepare(photo1Path, photo2Path, scenePath, false);
+    }
+
+    /**
+     * 预处理一次合照请求的输入
+     *
+     * @param sharedPhotos 照片是否会被多个请求使用（批量提交），是时缩小结果放入派生图缓存供后续请求复用
+     * @return 预处理后的文件，请求结束后须关闭以删除临时文件
+     * @throws IOException 原图不存在
+     */
+    public PreparedInput prepare(String photo1Path, String photo2Path, String scenePath,
+                                 boolean sharedPhotos) throws IOException {
+        PreparedInput input = new PreparedInput();
+        try {
+            input.photo1 = sharedPhotos ? normalizeShared(Paths.get(photo1Path), input)
+                    : normalizePhoto(Paths.get(photo1Path), input);
+            input.photo2 = sharedPhotos ? normalizeShared(Paths.get(photo2Path), input)
+                    : normalizePhoto(Paths.get(photo2Path), input);
+            input.scene = normalizeShared(Paths.get(scenePath), input);
+        } catch (IOException | RuntimeException ex) {
+            input.close();
+            throw ex;
+        }
+        if (enabled) {
+            logger.info("AI输入已预处理: {} 字节 -> {} 字节", input.originalBytes, input.preparedBytes);
+        }
+        return input;
+    }
+
+    private Path normalizePhoto(Path source, PreparedInput input) throws IOException {
+        long size = Files.size(source);
+        if (!enabled) {
+            return input.record(source, size, size);
+        }
+        Path target = fileStorageService.createStagingFile("ai-input-");
+        input.temporaryFiles.add(target);
+        try {
+            BufferedImage image = imageProcessingService.decode(source, maxDimension, maxDimension);
+            image = imageProcessingService.resize(image, maxDimension, maxDimension, true);
+            long written = imageProcessingService.writeJpeg(image, target, quality / 100f);
+            return input.record(target, size, written);
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("AI输入图片无法预处理，按原图发送: {}，{}", source, ex.getMessage());
+            return input.record(source, size, size);
+        }
+    }
+
+    private Path normalizeShared(Path source, PreparedInput input) throws IOException {
+        long size = Files.size(source);
+        if (!enabled) {
+            return input.record(source, size, size);
+        }
+        try {
+            Path pinned = pinResized(source, input);
+            return input.record(pinned, size, Files.size(pinned));
+        } catch (IOException | RuntimeException ex) {
+            logger.warn("AI输入图片无法预处理，按原图发送: {}，{}", source, ex.getMessage());
+            return input.record(source, size, size);
+        }
+    }
+
+    /**
+     * 取派生图缓存中的缩小结果，并在暂存目录为本次请求建立指向同一内容的硬链接（不支持时复制）
+     * 请求体在发送时才打开文件，期间缓存可能淘汰并删除该文件；淘汰只删除缓存中的名字，请求持有的链接不受影响，
+     * 请求结束后随临时文件删除。取到后、链接前恰好被淘汰时重新取一次
+     */
+    private Path pinResized(Path source, PreparedInput input) throws IOException {
+        Path target = fileStorageService.createStagingFile("ai-input-");
+        input.temporaryFiles.add(target);
+        Files.delete(target);
+        for (int attempt = 1; ; attempt++) {
+            Path resized = imageResizeService.getResized(source, maxDimension, maxDimension, quality, true);
+            try {
+                linkOrCopy(resized, target);
+                return target;
+            } catch (NoSuchFileException ex) {
+                if (attempt >= 2) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private static void linkOrCopy(Path source, Path target) throws IOException {
+        try {
+            Files.createLink(target, source);
+        } catch (NoSuchFileException ex) {
+            throw ex;
+        } catch (UnsupportedOperationException | FileSystemException ex) {
+            // 文件系统不支持硬链接或跨设备
+            Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * 预处理后的输入文件
+     */
+    public class PreparedInput implements AutoCloseable {
+        private Path photo1;
+        private Path photo2;
+        private Path scene;
+        private long originalBytes;
+        private long preparedBytes;
+        private final List<Path> temporaryFiles = new ArrayList<>();
+
+        private Path record(Path file, long original, long prepared) {
+            originalBytes += original;
+            preparedBytes += prepared;
+            AIInputPreprocessor.this.originalBytes.increment(original);
+            savedBytes.increment(Math.max(0, original - prepared));
+            return file;
+        }
+
+        public Path getPhoto1() {
+            return photo1;
+        }
+
+        public Path getPhoto2() {
+            return photo2;
+        }
+
+        public Path getScene() {
+            return scene;
+        }
+
+        /**
+         * 删除本次请求生成的临时文件
+         */
+        @Override
+        public void close() {
+            for (Path file : temporaryFiles) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException ex) {
+                    logger.warn("删除AI输入临时文件失败: {}", file, ex);
+                }
+            }
+        }
+    }
+}
@@ -1,34 +1,105 @@
 package com.example.demo.service;
 
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.FileSystemResource;
-import org.springframework.http.*;
 import org.springframework.stereotype.Service;
-import org.springframework.util.LinkedMultiValueMap;
-import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.RestTemplate;
 
-import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * AI 合照服务客户端
+ * 基于 java.net.http.HttpClient：客户端全局共用，连接由其内部连接池复用（HTTP/2 时同一连接多路复用，
+ * 服务端不支持时自动降级为 HTTP/1.1 keep-alive）；建连和每次请求分别有超时；
+ * 请求异步发送，读取响应不占用调用方线程。请求体从文件流式读取，响应体边接收边写入暂存文件并计算哈希，
+ * 每个请求占用的堆内存与图片大小无关。调用经过 AIBackendGuard 的熔断和自适应并发限制，
+ * 输入图片先由 AIInputPreprocessor 缩小到模型的输入分辨率
+ */
 @Service
 public class AIService {
     
     private static final Logger logger = LoggerFactory.getLogger(AIService.class);
     
-    private final RestTemplate restTemplate;
+    private final String apiUrl;
+    private final String apiKey;
+    private final boolean mockEnabled;
+    private final Duration requestTimeout;
+    private final long maxResponseBytes;
+    private final FileStorageService fileStorageService;
+    private final AIBackendGuard backendGuard;
+    private final AIInputPreprocessor inputPreprocessor;
+    private final ExecutorService httpExecutor;
+    private final HttpClient httpClient;
     
-    @Value("${ai.api.url:https://api.example.com/merge-photos}")
-    private String apiUrl;
+    public AIService(FileStorageService fileStorageService,
+                     AIBackendGuard backendGuard,
+                     AIInputPreprocessor inputPreprocessor,
+                     @Value("${ai.api.url:https://api.example.com/merge-photos}") String apiUrl,
+                     @Value("${ai.api.key:demo-key}") String apiKey,
+                     @Value("${ai.mock.enabled:false}") boolean mockEnabled,
+                     @Value("${ai.api.connect-timeout-ms:5000}") long connectTimeoutMs,
+                     @Value("${ai.api.request-timeout-ms:120000}") long requestTimeoutMs,
+                     @Value("${ai.api.http-threads:4}") int httpThreads,
+                     @Value("${ai.api.max-response-bytes:52428800}") long maxResponseBytes) {
+        this.fileStorageService = fileStorageService;
+        this.backendGuard = backendGuard;
+        this.inputPreprocessor = inputPreprocessor;
+        this.apiUrl = apiUrl;
+        this.apiKey = apiKey;
+        this.mockEnabled = mockEnabled;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.maxResponseBytes = maxResponseBytes;
+        
+        AtomicInteger counter = new AtomicInteger();
+        // 只处理连接上的读写、回调和响应体写盘，少量线程即可
+        this.httpExecutor = Executors.newFixedThreadPool(httpThreads, runnable -> {
+            Thread thread = new Thread(runnable, "ai-http-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .executor(httpExecutor)
+                .build();
+    }
     
-    @Value("${ai.api.key:demo-key}")
-    private String apiKey;
+    @PreDestroy
+    public void shutdown() {
+        httpExecutor.shutdownNow();
+    }
     
-    public AIService() {
-        this.restTemplate = new RestTemplate();
+    /**
+     * 是否使用固定示例图片代替AI服务（ai.mock.enabled），前后端联通测试用；
+     * 需要压测完整链路时关闭，并将 ai.api.url 指向本地模拟服务
+     */
+    public boolean isMockEnabled() {
+        return mockEnabled;
     }
     
     /**
@@ -38,80 +109,205 @@ public class AIService {
      * @param photo2Path 照片2路径
      * @param scenePath 场景图片路径
      * @param promptText 提示文本
-     * @return 返回生成的图片二进制数据
+     * @return 暂存目录中的结果文件（含大小、SHA-256、识别出的内容类型），由调用方移动或丢弃
+     */
+    public StoredFile generateMergedPhoto(String photo1Path, String photo2Path, String scenePath, String promptText) {
+        try {
+            return generateMergedPhotoAsync(photo1Path, photo2Path, scenePath, promptText).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new RuntimeException("调用AI服务失败: " + e.getCause(), e.getCause());
+        }
+    }
+    
+    /**
+     * 异步发送请求到AI服务生成合照
+     * 照片直接从文件流式写入请求体，响应体直接写入暂存文件，都不整体读入内存；
+     * 从发出请求起超过 ai.api.request-timeout-ms 仍未收到完整响应（包括响应头已到、响应体停滞的情况）
+     * 或响应体超过 ai.api.max-response-bytes 时失败，超时的请求随即中止
+     * 
+     * @return 完成时为暂存目录中的结果文件，失败时以 RuntimeException 结束，已写入的部分会被删除；
+     *         熔断中或并发已达上限时以 MergeDeferredException 结束，请求不会发出；
+     *         取消返回的 Future 会中止 HTTP 请求并删除已接收的部分
+     */
+    public CompletableFuture<StoredFile> generateMergedPhotoAsync(String photo1Path, String photo2Path,
+                                                              String scenePath, String promptText) {
+        return generateMergedPhotoAsync(photo1Path, photo2Path, scenePath, promptText, false);
+    }
+    
+    /**
+     * 异步发送请求到AI服务生成合照
+     * 
+     * @param sharedPhotos 照片是否被同一批次的多个合照共用，是时照片的预处理结果在批次内复用
+     * @see #generateMergedPhotoAsync(String, String, String, String)
+     */
+    public CompletableFuture<StoredFile> generateMergedPhotoAsync(String photo1Path, String photo2Path,
+                                                              String scenePath, String promptText,
+                                                              boolean sharedPhotos) {
+        PreparedCall call;
+        try {
+            call = prepareCall(photo1Path, photo2Path, scenePath, promptText, sharedPhotos);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return send(call);
+    }
+    
+    /**
+     * 准备一次调用：申请调用许可、预处理输入图片并构建请求，不发送
+     * 合照流水线中由预处理阶段调用，发送由 AI 调用阶段进行
+     * 
+     * @return 准备好的调用，之后必须 send 或 discard
+     * @throws MergeDeferredException 熔断中或并发已达上限
+     * @throws RuntimeException 输入图片无法读取
      */
-    public byte[] generateMergedPhoto(String photo1Path, String photo2Path, String scenePath, String promptText) {
+    public PreparedCall prepareCall(String photo1Path, String photo2Path, String scenePath, String promptText,
+                                    boolean sharedPhotos) {
         logger.info("准备调用AI服务生成合照");
         logger.info("照片1路径: {}", photo1Path);
         logger.info("照片2路径: {}", photo2Path);
         logger.info("场景路径: {}", scenePath);
         logger.info("提示文本: {}", promptText);
         
+        // 先申请调用许可，熔断期间不做无用的预处理
+        AIBackendGuard.Permit permit;
         try {
-            // 准备文件资源
-            File photo1File = new File(photo1Path);
-            File photo2File = new File(photo2Path);
-            File sceneFile = new File(scenePath);
+            permit = backendGuard.acquire();
+        } catch (MergeDeferredException e) {
+            logger.warn("AI服务调用被拒绝: {}", e.getMessage());
+            throw e;
+        }
+        
+        AIInputPreprocessor.PreparedInput input = null;
+        try {
+            input = inputPreprocessor.prepare(photo1Path, photo2Path, scenePath, sharedPhotos);
             
             // 构建多部分请求体
-            MultiValueMap<String, Object> body = new LinkedMultiValueMap<>();
-            body.add("photo1", new FileSystemResource(photo1File));
-            body.add("photo2", new FileSystemResource(photo2File));
-            body.add("scene", new FileSystemResource(sceneFile));
-            body.add("prompt", promptText);
-            
-            // 设置请求头
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.MULTIPART_FORM_DATA);
-            headers.set("X-API-Key", apiKey);
-            
-            // 创建请求实体
-            HttpEntity<MultiValueMap<String, Object>> requestEntity = new HttpEntity<>(body, headers);
+            MultipartBody body = new MultipartBody();
+            body.addFile("photo1", input.getPhoto1());
+            body.addFile("photo2", input.getPhoto2());
+            body.addFile("scene", input.getScene());
+            body.addText("prompt", promptText);
             
-            // 发送请求到AI服务
-            ResponseEntity<byte[]> response = restTemplate.exchange(
-                    apiUrl,
-                    HttpMethod.POST,
-                    requestEntity,
-                    byte[].class
-            );
-            
-            // 检查响应状态
-            if (response.getStatusCode().is2xxSuccessful()) {
-                logger.info("AI服务成功生成合照");
-                return response.getBody();
-            } else {
-                logger.error("AI服务返回错误: {}", response.getStatusCode());
-                throw new RuntimeException("AI服务生成合照失败: " + response.getStatusCode());
+            HttpRequest request = HttpRequest.newBuilder(URI.create(apiUrl))
+                    .timeout(requestTimeout)
+                    .header("Content-Type", body.contentType())
+                    .header("X-API-Key", apiKey)
+                    .POST(body.publisher())
+                    .build();
+            return new PreparedCall(permit, input, request, fileStorageService.createStagingFile("ai-"));
+        } catch (IOException | RuntimeException e) {
+            permit.onIgnored();
+            if (input != null) {
+                input.close();
             }
-        } catch (Exception e) {
-            logger.error("调用AI服务失败", e);
+            logger.error("构建AI服务请求失败", e);
             throw new RuntimeException("调用AI服务失败: " + e.getMessage(), e);
         }
     }
     
     /**
-     * 模拟AI服务生成合照（用于测试）
-     * 在实际AI服务不可用的情况下使用此方法模拟生成
+     * 发送准备好的调用
+     * 照片直接从文件流式写入请求体，响应体直接写入暂存文件，都不整体读入内存；
+     * 从发出请求起超过 ai.api.request-timeout-ms 仍未收到完整响应（包括响应头已到、响应体停滞的情况）
+     * 或响应体超过 ai.api.max-response-bytes 时失败，超时的请求随即中止
+     * 
+     * @return 完成时为暂存目录中的结果文件，失败时以 RuntimeException 结束，已写入的部分会被删除；
+     *         取消返回的 Future 会中止 HTTP 请求并删除已接收的部分
      */
-    public byte[] mockGenerateMergedPhoto(String photo1Path, String photo2Path, String scenePath, String promptText) {
-        logger.info("使用模拟方法生成合照");
-        
-        try {
-            // 简单返回第一张照片的内容作为结果
-            // 在实际应用中，这里应该调用真正的AI服务
-            Path path = Paths.get(photo1Path);
-            return java.nio.file.Files.readAllBytes(path);
-        } catch (Exception e) {
-            logger.error("模拟生成合照失败", e);
-            throw new RuntimeException("模拟生成合照失败: " + e.getMessage(), e);
+    public CompletableFuture<StoredFile> send(PreparedCall call) {
+        if (!call.finished.compareAndSet(false, true)) {
+            return CompletableFuture.failedFuture(new IllegalStateException("调用已发送或已丢弃"));
         }
+        AIBackendGuard.Permit permit = call.permit;
+        AIInputPreprocessor.PreparedInput preparedInput = call.input;
+        HttpRequest request = call.request;
+        Path stagingFile = call.stagingFile;
+        long startTime = System.nanoTime();
+        // 只有成功的响应写入文件，错误响应的内容直接丢弃
+        HttpResponse.BodyHandler<StoredFile> handler = responseInfo -> responseInfo.statusCode() / 100 == 2
+                ? new HashingFileSubscriber(stagingFile, maxResponseBytes)
+                : HttpResponse.BodySubscribers.replacing(null);
+        CompletableFuture<HttpResponse<StoredFile>> exchange = httpClient.sendAsync(request, handler);
+        // HttpRequest.timeout 只限制等待响应头的时间，整个交换（含响应体）的期限在这里控制，到期时中止请求
+        AtomicBoolean timedOut = new AtomicBoolean();
+        CompletableFuture<Void> deadline = new CompletableFuture<Void>()
+                .orTimeout(requestTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        deadline.whenComplete((ignored, error) -> {
+            if (error instanceof TimeoutException) {
+                timedOut.set(true);
+                exchange.cancel(true);
+            }
+        });
+        CompletableFuture<StoredFile> result = new CompletableFuture<>();
+        // 调用方取消时中止 HTTP 请求，连接上未接收的响应直接丢弃
+        result.whenComplete((body, error) -> {
+            if (result.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+        exchange.whenComplete((response, error) -> {
+            deadline.complete(null);
+            long elapsedNanos = System.nanoTime() - startTime;
+            long elapsedMs = elapsedNanos / 1_000_000;
+            preparedInput.close();
+            if (error != null || response.statusCode() / 100 != 2) {
+                deleteQuietly(stagingFile);
+            }
+            if (error != null) {
+                if (result.isCancelled()) {
+                    // 主动取消与后端负载无关，只释放名额
+                    permit.onIgnored();
+                    logger.info("AI服务请求已取消，已等待 {} ms", elapsedMs);
+                    return;
+                }
+                permit.onFailure();
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                if (timedOut.get()) {
+                    cause = new HttpTimeoutException("超过 " + requestTimeout.toMillis() + " ms 未收到完整响应");
+                }
+                if (cause instanceof HttpTimeoutException) {
+                    logger.error("AI服务响应超时，已等待 {} ms", elapsedMs);
+                    result.completeExceptionally(new RuntimeException("AI服务响应超时", cause));
+                    return;
+                }
+                logger.error("调用AI服务失败", cause);
+                result.completeExceptionally(new RuntimeException("调用AI服务失败: " + cause.getMessage(), cause));
+                return;
+            }
+            
+            // 检查响应状态
+            if (response.statusCode() / 100 == 2) {
+                permit.onSuccess(elapsedNanos);
+                logger.info("AI服务成功生成合照，{}，{} 字节，耗时 {} ms", response.version(),
+                        response.body().getSize(), elapsedMs);
+                if (!result.complete(response.body())) {
+                    // 响应到达前调用方已取消，丢弃结果
+                    deleteQuietly(stagingFile);
+                }
+                return;
+            }
+            // 5xx 和 429 说明后端过载或故障，其他错误与后端负载无关
+            if (response.statusCode() >= 500 || response.statusCode() == 429) {
+                permit.onFailure();
+            } else {
+                permit.onIgnored();
+            }
+            logger.error("AI服务返回错误: {}", response.statusCode());
+            result.completeExceptionally(new RuntimeException("AI服务生成合照失败: " + response.statusCode()));
+        });
+        return result;
     }
     
     /**
      * 用于前后端联通测试，返回固定的示例图片
+     * 
+     * @return 暂存目录中的示例图片副本，由调用方移动或丢弃
      */
-    public byte[] generateTestImage() {
+    public StoredFile generateTestImage() {
         logger.info("生成测试图片用于前后端联通");
         
         try {
@@ -142,10 +338,88 @@ public class AIService {
                 }
             }
             
-            return java.nio.file.Files.readAllBytes(path);
+            try (InputStream in = java.nio.file.Files.newInputStream(path)) {
+                return fileStorageService.stageStream(in);
+            }
         } catch (Exception e) {
             logger.error("生成测试图片失败", e);
             throw new RuntimeException("生成测试图片失败: " + e.getMessage(), e);
         }
     }
-} 
\ No newline at end of file
+    
+    /**
+     * 已申请许可并完成预处理、尚未发送的调用
+     */
+    public static class PreparedCall {
+        private final AIBackendGuard.Permit permit;
+        private final AIInputPreprocessor.PreparedInput input;
+        private final HttpRequest request;
+        private final Path stagingFile;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        
+        private PreparedCall(AIBackendGuard.Permit permit, AIInputPreprocessor.PreparedInput input,
+                             HttpRequest request, Path stagingFile) {
+            this.permit = permit;
+            this.input = input;
+            this.request = request;
+            this.stagingFile = stagingFile;
+        }
+        
+        /**
+         * 放弃未发送的调用，释放许可并删除临时文件；已发送时不做任何事
+         */
+        public void discard() {
+            if (finished.compareAndSet(false, true)) {
+                permit.onIgnored();
+                input.close();
+                deleteQuietly(stagingFile);
+            }
+        }
+    }
+    
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("删除暂存文件失败: {}", file, e);
+        }
+    }
+    
+    /**
+     * multipart/form-data 请求体，文件部分用 BodyPublishers.ofFile 按需读取
+     */
+    private static class MultipartBody {
+        private final String boundary = "----AIServiceBoundary" + UUID.randomUUID().toString().replace("-", "");
+        private final List<HttpRequest.BodyPublisher> parts = new ArrayList<>();
+        
+        void addText(String name, String value) {
+            parts.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + name + "\"\r\n"
+                    + "Content-Type: text/plain; charset=UTF-8\r\n\r\n"
+                    + (value != null ? value : "") + "\r\n", StandardCharsets.UTF_8));
+        }
+        
+        void addFile(String name, Path file) throws IOException {
+            if (!Files.isRegularFile(file)) {
+                throw new FileNotFoundException(file.toString());
+            }
+            String contentType = Files.probeContentType(file);
+            parts.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "\r\n"
+                    + "Content-Disposition: form-data; name=\"" + name + "\"; filename=\"" + file.getFileName() + "\"\r\n"
+                    + "Content-Type: " + (contentType != null ? contentType : "application/octet-stream") + "\r\n\r\n",
+                    StandardCharsets.UTF_8));
+            parts.add(HttpRequest.BodyPublishers.ofFile(file));
+            parts.add(HttpRequest.BodyPublishers.ofString("\r\n"));
+        }
+        
+        String contentType() {
+            return "multipart/form-data; boundary=" + boundary;
+        }
+        
+        HttpRequest.BodyPublisher publisher() {
+            List<HttpRequest.BodyPublisher> all = new ArrayList<>(parts);
+            all.add(HttpRequest.BodyPublishers.ofString("--" + boundary + "--\r\n"));
+            return HttpRequest.BodyPublishers.concat(all.toArray(new HttpRequest.BodyPublisher[0]));
+        }
+    }
+}
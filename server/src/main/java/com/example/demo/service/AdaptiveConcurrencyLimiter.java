@@ -0,0 +1,108 @@
+package com.example.demo.service;
+
+/**
+ * 按延迟自适应的并发上限（Vegas 算法）
+ * 以最近两个窗口内的最小延迟作为后端无排队时的基准，用 上限 × (1 - 基准延迟 / 本次延迟) 估算后端排队的请求数：
+ * 排队少于 alpha 时上限增加 log10(上限)，多于 beta 时减少 log10(上限)，介于两者之间时不变。
+ * 超时或后端错误时按固定比例收缩。在途请求不到上限一半时不扩大上限，避免空闲期间上限无意义地涨到最大值
+ */
+public class AdaptiveConcurrencyLimiter {
+
+    // 后端出错时的收缩比例
+    private static final double BACKOFF_RATIO = 0.9;
+    // 基准延迟的窗口样本数，每个窗口结束时丢弃上上个窗口的最小值，使基准能跟随后端变化
+    private static final int RTT_WINDOW = 500;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double smoothing;
+
+    private double limit;
+    private int inFlight;
+    private long currentMinRtt = Long.MAX_VALUE;
+    private long previousMinRtt = Long.MAX_VALUE;
+    private int windowSamples;
+
+    /**
+     * @param initialLimit 初始上限
+     * @param minLimit 上限的最小值
+     * @param maxLimit 上限的最大值
+     * @param smoothing 每次调整时新值所占的比例（0-1）
+     */
+    public AdaptiveConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double smoothing) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.smoothing = Math.min(1.0, Math.max(0.01, smoothing));
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * 占用一个并发名额
+     *
+     * @return 在途请求已达上限时返回 false
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * 请求成功完成，按延迟调整上限
+     */
+    public synchronized void onSuccess(long rttNanos) {
+        int observedInFlight = inFlight;
+        inFlight--;
+        if (rttNanos <= 0) {
+            return;
+        }
+
+        currentMinRtt = Math.min(currentMinRtt, rttNanos);
+        if (++windowSamples >= RTT_WINDOW) {
+            previousMinRtt = currentMinRtt;
+            currentMinRtt = Long.MAX_VALUE;
+            windowSamples = 0;
+        }
+        long baseRtt = Math.min(currentMinRtt, previousMinRtt);
+
+        double step = Math.max(1.0, Math.log10(limit));
+        double queueSize = limit * (1 - (double) baseRtt / rttNanos);
+        if (queueSize <= 3 * step) {
+            if (observedInFlight * 2 >= limit) {
+                update(limit + step);
+            }
+        } else if (queueSize >= 6 * step) {
+            update(limit - step);
+        }
+    }
+
+    /**
+     * 请求超时或后端出错，收缩上限
+     */
+    public synchronized void onDropped() {
+        inFlight--;
+        update(limit * BACKOFF_RATIO);
+    }
+
+    /**
+     * 请求结束但与后端负载无关（如请求参数错误），只释放名额
+     */
+    public synchronized void onIgnored() {
+        inFlight--;
+    }
+
+    private void update(double newLimit) {
+        double smoothed = limit * (1 - smoothing) + newLimit * smoothing;
+        limit = Math.min(maxLimit, Math.max(minLimit, smoothed));
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
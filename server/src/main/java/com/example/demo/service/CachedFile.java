@@ -0,0 +1,37 @@
+package com.example.demo.service;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 热点缓存中的文件内容
+ * 内容保存在堆外只读 ByteBuffer 中，多个请求可并发读取
+ */
+public class CachedFile {
+
+    private final ByteBuffer content;
+    private final long lastModified;
+    private final String etag;
+
+    public CachedFile(ByteBuffer content, long lastModified) {
+        this.content = content.asReadOnlyBuffer();
+        this.lastModified = lastModified;
+        // 与直接读文件时生成的弱 ETag 保持一致
+        this.etag = FileServingService.weakEtag(content.remaining(), lastModified);
+    }
+
+    public ByteBuffer getContent() {
+        return content;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public int getWeight() {
+        return content.capacity();
+    }
+}
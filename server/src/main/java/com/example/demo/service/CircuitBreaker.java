@@ -0,0 +1,151 @@
+package com.example.demo.service;
+
+/**
+ * 基于失败率的熔断器
+ * 关闭状态下记录最近 windowSize 次调用的结果，样本数不少于 minCalls 且失败率达到阈值时打开；
+ * 打开期间直接拒绝调用，openMillis 后进入半开状态，放行 halfOpenCalls 次试探调用，
+ * 全部成功则关闭，任意一次失败则重新打开。
+ * 每次状态变化时代数加一，放行时返回当时的代数，结果只计入发放许可时的那一代：
+ * 打开之前放行、打开之后才结束的调用不会被当作半开状态的试探结果
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // tryAcquire 拒绝调用时的返回值
+    public static final long REJECTED = -1;
+
+    private final int windowSize;
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long openMillis;
+    private final int halfOpenCalls;
+
+    private State state = State.CLOSED;
+    // 环形窗口，true 表示失败
+    private final boolean[] outcomes;
+    private int recorded;
+    private int next;
+    private int failures;
+    private long openedAt;
+    private int halfOpenPermits;
+    private int halfOpenSuccesses;
+    private long generation;
+
+    public CircuitBreaker(int windowSize, int minCalls, double failureRateThreshold, long openMillis, int halfOpenCalls) {
+        this.windowSize = Math.max(1, windowSize);
+        this.minCalls = Math.max(1, Math.min(this.windowSize, minCalls));
+        this.failureRateThreshold = failureRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.outcomes = new boolean[this.windowSize];
+    }
+
+    /**
+     * 是否放行本次调用，放行后须以返回的代数调用 onSuccess、onFailure 或 onIgnored 之一
+     *
+     * @return 放行时为当前代数，拒绝时为 REJECTED
+     */
+    public synchronized long tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return REJECTED;
+            }
+            transition(State.HALF_OPEN);
+            halfOpenPermits = halfOpenCalls;
+            halfOpenSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (halfOpenPermits == 0) {
+                return REJECTED;
+            }
+            halfOpenPermits--;
+        }
+        return generation;
+    }
+
+    public synchronized void onSuccess(long permitGeneration) {
+        if (permitGeneration != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            if (++halfOpenSuccesses >= halfOpenCalls) {
+                close();
+            }
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(false);
+        }
+    }
+
+    public synchronized void onFailure(long permitGeneration) {
+        if (permitGeneration != generation) {
+            return;
+        }
+        if (state == State.HALF_OPEN) {
+            open();
+            return;
+        }
+        if (state == State.CLOSED) {
+            record(true);
+            if (recorded >= minCalls && (double) failures / recorded >= failureRateThreshold) {
+                open();
+            }
+        }
+    }
+
+    /**
+     * 调用结束但结果与后端健康状况无关，半开状态下归还试探名额
+     */
+    public synchronized void onIgnored(long permitGeneration) {
+        if (permitGeneration == generation && state == State.HALF_OPEN) {
+            halfOpenPermits++;
+        }
+    }
+
+    /**
+     * 打开状态下距离进入半开状态的剩余毫秒数，其他状态为 0
+     */
+    public synchronized long remainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, openMillis - (System.currentTimeMillis() - openedAt));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private void record(boolean failure) {
+        if (recorded == windowSize && outcomes[next]) {
+            failures--;
+        }
+        outcomes[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % windowSize;
+        recorded = Math.min(windowSize, recorded + 1);
+    }
+
+    private void open() {
+        transition(State.OPEN);
+        openedAt = System.currentTimeMillis();
+    }
+
+    private void close() {
+        transition(State.CLOSED);
+        recorded = 0;
+        next = 0;
+        failures = 0;
+    }
+
+    private void transition(State newState) {
+        state = newState;
+        generation++;
+    }
+}
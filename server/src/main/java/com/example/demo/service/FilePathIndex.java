@@ -0,0 +1,310 @@
+package com.example.demo.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件路径索引
+ * 启动时扫描上传目录和静态资源目录，记录所有存在的文件；之后通过写入/删除回调和 WatchService 保持同步。
+ * 查询不到的路径进入有界的否定缓存，短时间内重复请求不存在的文件不再访问磁盘
+ */
+@Component
+public class FilePathIndex {
+
+    private static final Logger logger = LoggerFactory.getLogger(FilePathIndex.class);
+
+    private final Path[] roots;
+    private final boolean watchEnabled;
+    private final int negativeCacheSize;
+    private final long negativeTtlMillis;
+    private final HotFileCache hotFileCache;
+
+    // 已知存在的文件（绝对规范路径）
+    private final Set<Path> knownFiles = ConcurrentHashMap.newKeySet();
+
+    // 否定缓存：路径 -> 过期时间，按插入顺序淘汰最旧条目
+    private final LinkedHashMap<Path, Long> missingFiles = new LinkedHashMap<>();
+
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private WatchService watchService;
+    private Thread watchThread;
+
+    public FilePathIndex(@Value("${file.index.watch:true}") boolean watchEnabled,
+                         @Value("${file.index.negative-cache-size:10000}") int negativeCacheSize,
+                         @Value("${file.index.negative-ttl-seconds:60}") long negativeTtlSeconds,
+                         HotFileCache hotFileCache) {
+        this.roots = new Path[] {
+                FileStorageService.UPLOAD_ROOT,
+                FileStorageService.STATIC_ROOT
+        };
+        this.watchEnabled = watchEnabled;
+        this.negativeCacheSize = negativeCacheSize;
+        this.negativeTtlMillis = TimeUnit.SECONDS.toMillis(negativeTtlSeconds);
+        this.hotFileCache = hotFileCache;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (watchEnabled) {
+            try {
+                watchService = FileSystems.getDefault().newWatchService();
+            } catch (IOException ex) {
+                logger.warn("无法创建目录监听服务，索引仅依赖写入/删除回调", ex);
+            }
+        }
+
+        for (Path root : roots) {
+            scan(root);
+        }
+        logger.info("文件路径索引已建立，共 {} 个文件", knownFiles.size());
+
+        if (watchService != null) {
+            watchThread = new Thread(this::watchLoop, "file-index-watcher");
+            watchThread.setDaemon(true);
+            watchThread.start();
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ex) {
+                logger.warn("关闭目录监听服务失败", ex);
+            }
+        }
+    }
+
+    /**
+     * 查找文件的实际位置
+     * 先查上传目录，再查静态资源目录中的对应位置，都不存在时返回 null
+     *
+     * @param requested 请求的路径（绝对规范路径）
+     * @return 实际文件位置
+     */
+    public Path resolve(Path requested) {
+        if (knownFiles.contains(requested)) {
+            return requested;
+        }
+        Path staticCounterpart = toStaticCounterpart(requested);
+        if (staticCounterpart != null && knownFiles.contains(staticCounterpart)) {
+            return staticCounterpart;
+        }
+        if (isMissing(requested)) {
+            return null;
+        }
+
+        // 索引未命中时探测一次磁盘，兜底监听遗漏或根目录以外的路径
+        if (Files.isRegularFile(requested)) {
+            addIfIndexed(requested);
+            return requested;
+        }
+        if (staticCounterpart != null && Files.isRegularFile(staticCounterpart)) {
+            addIfIndexed(staticCounterpart);
+            return staticCounterpart;
+        }
+        markMissing(requested);
+        return null;
+    }
+
+    /**
+     * 记录新写入的文件
+     */
+    public void fileStored(Path file) {
+        addIfIndexed(file);
+        clearMissing(file);
+        invalidateCached(file);
+    }
+
+    /**
+     * 记录已删除的文件
+     */
+    public void fileDeleted(Path file) {
+        knownFiles.remove(file);
+        invalidateCached(file);
+    }
+
+    /**
+     * 文件变化后使热点缓存失效，静态目录中的文件以上传目录下的逻辑路径缓存
+     */
+    private void invalidateCached(Path file) {
+        hotFileCache.invalidate(file.toString());
+        if (file.startsWith(FileStorageService.STATIC_ROOT)) {
+            hotFileCache.invalidate(FileStorageService.UPLOAD_ROOT.resolve(
+                    FileStorageService.STATIC_ROOT.relativize(file)).toString());
+        }
+    }
+
+    private void addIfIndexed(Path file) {
+        for (Path root : roots) {
+            if (file.startsWith(root)) {
+                knownFiles.add(file);
+                return;
+            }
+        }
+    }
+
+    private Path toStaticCounterpart(Path requested) {
+        if (requested.startsWith(FileStorageService.UPLOAD_ROOT)) {
+            return FileStorageService.STATIC_ROOT.resolve(FileStorageService.UPLOAD_ROOT.relativize(requested));
+        }
+        return null;
+    }
+
+    private boolean isMissing(Path path) {
+        synchronized (missingFiles) {
+            Long expiresAt = missingFiles.get(path);
+            if (expiresAt == null) {
+                return false;
+            }
+            if (expiresAt < System.currentTimeMillis()) {
+                missingFiles.remove(path);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private void markMissing(Path path) {
+        synchronized (missingFiles) {
+            missingFiles.remove(path);
+            missingFiles.put(path, System.currentTimeMillis() + negativeTtlMillis);
+            if (missingFiles.size() > negativeCacheSize) {
+                missingFiles.remove(missingFiles.keySet().iterator().next());
+            }
+        }
+    }
+
+    private void clearMissing(Path file) {
+        synchronized (missingFiles) {
+            missingFiles.remove(file);
+            // 静态目录中新出现的文件也可能对应上传目录下的某个否定记录
+            if (file.startsWith(FileStorageService.STATIC_ROOT)) {
+                missingFiles.remove(FileStorageService.UPLOAD_ROOT.resolve(
+                        FileStorageService.STATIC_ROOT.relativize(file)));
+            }
+        }
+    }
+
+    /**
+     * 扫描目录并注册监听
+     */
+    private void scan(Path directory) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    register(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        Path normalized = file.toAbsolutePath().normalize();
+                        knownFiles.add(normalized);
+                        clearMissing(normalized);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException ex) {
+            logger.warn("扫描目录失败: {}", directory, ex);
+        }
+    }
+
+    private void register(Path directory) {
+        if (watchService == null) {
+            return;
+        }
+        try {
+            WatchKey key = directory.register(watchService,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+            watchedDirectories.put(key, directory.toAbsolutePath().normalize());
+        } catch (IOException ex) {
+            logger.warn("无法监听目录: {}", directory, ex);
+        }
+    }
+
+    private void watchLoop() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+
+            Path directory = watchedDirectories.get(key);
+            if (directory != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    handleEvent(directory, event);
+                }
+            }
+
+            if (!key.reset()) {
+                watchedDirectories.remove(key);
+            }
+        }
+    }
+
+    private void handleEvent(Path directory, WatchEvent<?> event) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            // 事件溢出时无法得知具体变化，重新扫描整个目录
+            logger.warn("目录监听事件溢出，重新扫描: {}", directory);
+            scan(directory);
+            return;
+        }
+
+        Path changed = directory.resolve((Path) event.context()).normalize();
+        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+            if (Files.isDirectory(changed)) {
+                scan(changed);
+            } else {
+                knownFiles.add(changed);
+                clearMissing(changed);
+            }
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            // 不在索引中的可能是目录，一并移除其下的所有文件
+            if (!knownFiles.remove(changed)) {
+                knownFiles.removeIf(path -> path.startsWith(changed));
+            }
+            invalidateCached(changed);
+        } else if (event.kind() == StandardWatchEventKinds.ENTRY_MODIFY) {
+            invalidateCached(changed);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package com.example.demo.service;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 文件输出服务
+ * 直接把磁盘文件写入响应：支持 Range/206（单段与多段），
+ * 大文件优先走 Tomcat sendfile，其余情况用 FileChannel.transferTo，避免在堆上中转文件内容。
+ * 同时负责条件请求（ETag / Last-Modified / 304）
+ */
+@Service
+public class FileServingService {
+
+    private static final Logger logger = LoggerFactory.getLogger(FileServingService.class);
+
+    // Tomcat NIO 连接器识别的 sendfile 请求属性
+    private static final String SENDFILE_SUPPORT_ATTR = "org.apache.tomcat.sendfile.support";
+    private static final String SENDFILE_FILENAME_ATTR = "org.apache.tomcat.sendfile.filename";
+    private static final String SENDFILE_START_ATTR = "org.apache.tomcat.sendfile.start";
+    private static final String SENDFILE_END_ATTR = "org.apache.tomcat.sendfile.end";
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    // 文件大小达到该阈值时才交给 sendfile，小文件直接 transferTo 更划算
+    @Value("${file.serving.sendfile-threshold:49152}")
+    private long sendfileThreshold;
+
+    /**
+     * 校验条件请求
+     * 命中 If-None-Match / If-Modified-Since 时响应已被设置为 304，调用方直接返回即可，无需访问文件
+     *
+     * @param etag 强 ETag（含引号），没有时传 null
+     * @param lastModified 最后修改时间（毫秒），未知时传 -1
+     * @param cacheControl 缓存策略，可为空
+     * @return 是否已按 304/412 处理
+     */
+    public boolean checkNotModified(String etag, long lastModified, CacheControl cacheControl,
+                                    HttpServletRequest request, HttpServletResponse response) {
+        if (cacheControl != null) {
+            String headerValue = cacheControl.getHeaderValue();
+            if (headerValue != null) {
+                response.setHeader(HttpHeaders.CACHE_CONTROL, headerValue);
+            }
+        }
+        return new ServletWebRequest(request, response).checkNotModified(etag, lastModified);
+    }
+    
+    /**
+     * 根据文件大小和修改时间生成弱 ETag
+     */
+    public static String weakEtag(long size, long lastModified) {
+        return "W/\"" + Long.toHexString(size) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+    
+    /**
+     * 输出没有预存哈希的文件
+     * 以文件大小和修改时间生成弱 ETag，并处理条件请求
+     *
+     * @param file 文件路径
+     * @param contentType 内容类型
+     * @param contentDisposition Content-Disposition 头，可为空
+     * @param cacheControl 缓存策略，可为空
+     */
+    public void serveFile(Path file, String contentType, String contentDisposition, CacheControl cacheControl,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException ex) {
+            logger.warn("文件不存在: {}", file);
+            response.sendError(HttpStatus.NOT_FOUND.value());
+            return;
+        }
+        
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = weakEtag(attributes.size(), lastModified);
+        if (checkNotModified(etag, lastModified, cacheControl, request, response)) {
+            return;
+        }
+        serveFile(file, contentType, contentDisposition, etag, lastModified, request, response);
+    }
+
+    /**
+     * 输出文件内容
+     * 调用方应已通过 {@link #checkNotModified} 处理过条件请求
+     *
+     * @param file 文件路径
+     * @param contentType 内容类型
+     * @param contentDisposition Content-Disposition 头，可为空
+     * @param etag 当前 ETag，用于校验 If-Range，可为空
+     * @param lastModified 最后修改时间（毫秒），用于校验 If-Range，未知时传 -1
+     */
+    public void serveFile(Path file, String contentType, String contentDisposition, String etag, long lastModified,
+                          HttpServletRequest request, HttpServletResponse response) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            writeBody(new FileBody(file, channel), contentType, contentDisposition, etag, lastModified,
+                    request, response);
+        } catch (NoSuchFileException ex) {
+            logger.warn("文件不存在: {}", file);
+            if (!response.isCommitted()) {
+                response.sendError(HttpStatus.NOT_FOUND.value());
+            }
+        }
+    }
+
+    /**
+     * 输出热点缓存中的文件内容，并处理条件请求
+     *
+     * @param cachedFile 缓存项
+     * @param contentType 内容类型
+     * @param contentDisposition Content-Disposition 头，可为空
+     * @param cacheControl 缓存策略，可为空
+     */
+    public void serveCached(CachedFile cachedFile, String contentType, String contentDisposition,
+                            CacheControl cacheControl, HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        if (checkNotModified(cachedFile.getEtag(), cachedFile.getLastModified(), cacheControl, request, response)) {
+            return;
+        }
+        serveCached(cachedFile, contentType, contentDisposition, cachedFile.getEtag(), cachedFile.getLastModified(),
+                request, response);
+    }
+
+    /**
+     * 输出热点缓存中的文件内容
+     * 调用方应已通过 {@link #checkNotModified} 处理过条件请求
+     */
+    public void serveCached(CachedFile cachedFile, String contentType, String contentDisposition,
+                            String etag, long lastModified, HttpServletRequest request,
+                            HttpServletResponse response) throws IOException {
+        writeBody(new BufferBody(cachedFile.getContent()), contentType, contentDisposition, etag, lastModified,
+                request, response);
+    }
+
+    /**
+     * 按 Range 请求输出内容
+     */
+    private void writeBody(Body body, String contentType, String contentDisposition, String etag, long lastModified,
+                           HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long length = body.length();
+        boolean headOnly = "HEAD".equalsIgnoreCase(request.getMethod());
+
+        response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        if (contentDisposition != null) {
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, contentDisposition);
+        }
+
+        List<HttpRange> ranges;
+        try {
+            String rangeHeader = isIfRangeSatisfied(request, etag, lastModified)
+                    ? request.getHeader(HttpHeaders.RANGE) : null;
+            ranges = HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException ex) {
+            sendRangeNotSatisfiable(response, length);
+            return;
+        }
+
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpStatus.OK.value());
+            response.setContentType(contentType);
+            response.setContentLengthLong(length);
+            if (!headOnly) {
+                body.transfer(0, length, request, response);
+            }
+            return;
+        }
+
+        // 先把所有区间换算成绝对偏移，任何一个非法都按 416 处理
+        long[] starts = new long[ranges.size()];
+        long[] ends = new long[ranges.size()];
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                starts[i] = ranges.get(i).getRangeStart(length);
+                ends[i] = ranges.get(i).getRangeEnd(length);
+                if (starts[i] >= length || starts[i] > ends[i]) {
+                    throw new IllegalArgumentException("区间超出文件长度");
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            sendRangeNotSatisfiable(response, length);
+            return;
+        }
+
+        response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+        if (ranges.size() == 1) {
+            long count = ends[0] - starts[0] + 1;
+            response.setContentType(contentType);
+            response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + starts[0] + "-" + ends[0] + "/" + length);
+            response.setContentLengthLong(count);
+            if (!headOnly) {
+                body.transfer(starts[0], count, request, response);
+            }
+            return;
+        }
+
+        writeMultipartRanges(body, contentType, length, starts, ends, headOnly, response);
+    }
+
+    /**
+     * 输出 multipart/byteranges 响应，预先算好总长度以保持长连接
+     */
+    private void writeMultipartRanges(Body body, String contentType, long length,
+                                      long[] starts, long[] ends, boolean headOnly,
+                                      HttpServletResponse response) throws IOException {
+        String boundary = new String(MimeTypeUtils.generateMultipartBoundary(), StandardCharsets.US_ASCII);
+
+        List<byte[]> partHeaders = new ArrayList<>(starts.length);
+        long contentLength = 0;
+        for (int i = 0; i < starts.length; i++) {
+            String header = "--" + boundary + "\r\n"
+                    + HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n"
+                    + HttpHeaders.CONTENT_RANGE + ": bytes " + starts[i] + "-" + ends[i] + "/" + length + "\r\n\r\n";
+            byte[] headerBytes = header.getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(headerBytes);
+            contentLength += headerBytes.length + (ends[i] - starts[i] + 1) + CRLF.length;
+        }
+        byte[] closing = ("--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        contentLength += closing.length;
+
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(contentLength);
+        if (headOnly) {
+            return;
+        }
+
+        ServletOutputStream out = response.getOutputStream();
+        WritableByteChannel target = Channels.newChannel(out);
+        for (int i = 0; i < starts.length; i++) {
+            out.write(partHeaders.get(i));
+            body.transferTo(starts[i], ends[i] - starts[i] + 1, target);
+            out.write(CRLF);
+        }
+        out.write(closing);
+    }
+
+    /**
+     * If-Range 校验：条件不成立时忽略 Range，返回完整内容
+     * 弱 ETag 不能用于 If-Range 比较
+     */
+    private boolean isIfRangeSatisfied(HttpServletRequest request, String etag, long lastModified) {
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"")) {
+            return etag != null && etag.equals(ifRange);
+        }
+        if (ifRange.startsWith("W/")) {
+            return false;
+        }
+        long ifRangeDate;
+        try {
+            ifRangeDate = request.getDateHeader(HttpHeaders.IF_RANGE);
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+        return lastModified >= 0 && lastModified / 1000 == ifRangeDate / 1000;
+    }
+
+    private void sendRangeNotSatisfiable(HttpServletResponse response, long length) {
+        response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+        response.setContentLength(0);
+    }
+
+    /**
+     * 响应体数据源
+     */
+    private interface Body {
+
+        long length() throws IOException;
+
+        /**
+         * 作为整个响应体输出单个连续区间
+         */
+        void transfer(long position, long count, HttpServletRequest request,
+                      HttpServletResponse response) throws IOException;
+
+        /**
+         * 把指定区间写入目标通道
+         */
+        void transferTo(long position, long count, WritableByteChannel target) throws IOException;
+    }
+
+    /**
+     * 文件数据源：容器支持时交给 sendfile，否则走 transferTo
+     */
+    private class FileBody implements Body {
+
+        private final Path file;
+        private final FileChannel channel;
+
+        FileBody(Path file, FileChannel channel) {
+            this.file = file;
+            this.channel = channel;
+        }
+
+        @Override
+        public long length() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public void transfer(long position, long count, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+            if (count >= sendfileThreshold && Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTR))) {
+                request.setAttribute(SENDFILE_FILENAME_ATTR, file.toAbsolutePath().toString());
+                request.setAttribute(SENDFILE_START_ATTR, position);
+                request.setAttribute(SENDFILE_END_ATTR, position + count);
+                return;
+            }
+            transferTo(position, count, Channels.newChannel(response.getOutputStream()));
+        }
+
+        @Override
+        public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long end = position + count;
+            while (position < end) {
+                long written = channel.transferTo(position, end - position, target);
+                if (written <= 0) {
+                    break;
+                }
+                position += written;
+            }
+        }
+    }
+
+    /**
+     * 内存数据源：直接写出缓存中的 ByteBuffer 切片，不复制内容
+     */
+    private static class BufferBody implements Body {
+
+        private final ByteBuffer content;
+
+        BufferBody(ByteBuffer content) {
+            this.content = content;
+        }
+
+        @Override
+        public long length() {
+            return content.remaining();
+        }
+
+        @Override
+        public void transfer(long position, long count, HttpServletRequest request,
+                             HttpServletResponse response) throws IOException {
+            transferTo(position, count, Channels.newChannel(response.getOutputStream()));
+        }
+
+        @Override
+        public void transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            ByteBuffer slice = content.slice((int) position, (int) count);
+            while (slice.hasRemaining()) {
+                target.write(slice);
+            }
+        }
+    }
+}
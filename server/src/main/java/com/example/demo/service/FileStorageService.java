@@ -5,28 +5,46 @@ import org.slf4j.LoggerFactory;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.UrlResource;
 import org.springframework.stereotype.Service;
-import org.springframework.util.StringUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
-import java.util.UUID;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
 
 @Service
 public class FileStorageService {
     
     private static final Logger logger = LoggerFactory.getLogger(FileStorageService.class);
     
+    // 上传目录和静态资源目录（绝对规范路径）
+    static final Path UPLOAD_ROOT = Paths.get("./uploads").toAbsolutePath().normalize();
+    static final Path STATIC_ROOT = Paths.get("./src/main/resources/static").toAbsolutePath().normalize();
+    
+    // 按内容哈希存放的照片目录，以及写入过程中使用的暂存目录（同一文件系统，保证原子移动）
+    static final Path BLOB_ROOT = UPLOAD_ROOT.resolve("blobs");
+    static final Path STAGING_ROOT = UPLOAD_ROOT.resolve("staging");
+    
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int SNIFF_LENGTH = 16;
+    
     private final Path fileStorageLocation;
     private final Path staticResourceLocation;
+    private final FilePathIndex filePathIndex;
     
-    public FileStorageService() {
-        this.fileStorageLocation = Paths.get("./uploads").toAbsolutePath().normalize();
-        this.staticResourceLocation = Paths.get("./src/main/resources/static").toAbsolutePath().normalize();
+    public FileStorageService(FilePathIndex filePathIndex) {
+        this.fileStorageLocation = UPLOAD_ROOT;
+        this.staticResourceLocation = STATIC_ROOT;
+        this.filePathIndex = filePathIndex;
         
         try {
             Files.createDirectories(this.fileStorageLocation);
@@ -40,35 +58,29 @@ public class FileStorageService {
         }
     }
     
+    /**
+     * 查找文件的实际位置
+     * 依次查找给定路径和静态资源目录中的对应位置，通过路径索引完成，不存在时返回 null
+     *
+     * @param filePath 文件路径（如 ./uploads/scenes/beach.jpg）
+     * @return 实际文件位置
+     */
+    public Path resolveFile(String filePath) {
+        if (filePath == null || filePath.isEmpty()) {
+            return null;
+        }
+        return filePathIndex.resolve(Paths.get(filePath).toAbsolutePath().normalize());
+    }
+    
     public Resource loadFileAsResource(String filePath) throws Exception {
+        Path resolvedPath = resolveFile(filePath);
+        if (resolvedPath == null) {
+            logger.debug("文件不存在: {}", filePath);
+            throw new Exception("文件不存在 " + filePath);
+        }
+        
         try {
-            Path resolvedPath = Paths.get(filePath).normalize();
-            logger.info("尝试加载文件: {}", resolvedPath);
-            
-            Resource resource = new UrlResource(resolvedPath.toUri());
-            if (resource.exists()) {
-                logger.info("文件加载成功: {}", resolvedPath);
-                return resource;
-            } else {
-                // 如果文件不存在，尝试在静态资源目录查找
-                String staticPath = filePath;
-                if (filePath.startsWith("./uploads/")) {
-                    // 将 ./uploads/xxx 转换为 ./src/main/resources/static/xxx
-                    staticPath = filePath.replace("./uploads/", "./src/main/resources/static/");
-                }
-                
-                Path staticFilePath = Paths.get(staticPath).normalize();
-                logger.info("在静态资源目录中查找文件: {}", staticFilePath);
-                
-                Resource staticResource = new UrlResource(staticFilePath.toUri());
-                if (staticResource.exists()) {
-                    logger.info("在静态资源目录中找到文件: {}", staticFilePath);
-                    return staticResource;
-                }
-                
-                logger.error("文件不存在: {}", filePath);
-                throw new Exception("文件不存在 " + filePath);
-            }
+            return new UrlResource(resolvedPath.toUri());
         } catch (MalformedURLException ex) {
             logger.error("文件URL格式错误: {}", filePath, ex);
             throw new Exception("文件URL格式错误 " + filePath, ex);
@@ -86,6 +98,7 @@ public class FileStorageService {
             
             // 写入文件
             Files.write(targetFilePath, fileContent);
+            filePathIndex.fileStored(targetFilePath.toAbsolutePath());
             logger.info("文件已保存: {}", targetFilePath);
             
             return targetFilePath.toString();
@@ -96,53 +109,230 @@ public class FileStorageService {
     }
     
     /**
-     * 存储上传的照片文件
+     * 登记由其他组件直接写入的文件（如规格图），使路径索引和热点缓存保持一致
+     *
+     * @param file 已写入的文件
+     */
+    public void registerFile(Path file) {
+        filePathIndex.fileStored(file.toAbsolutePath().normalize());
+    }
+
+    /**
+     * 将上传的文件写入暂存目录
+     * 复制的同时计算大小和内容哈希，之后由 commitStagedFile 移动到按哈希寻址的最终位置
      *
      * @param file 上传的文件
-     * @param userId 用户ID
-     * @return 存储的文件路径
+     * @return 暂存文件信息（暂存路径、大小、SHA-256）
      */
-    public String storeFile(MultipartFile file, Long userId) {
+    public StoredFile stageFile(MultipartFile file) {
         if (file == null) {
             throw new RuntimeException("文件不能为空");
         }
         
+        String filename = file.getOriginalFilename() != null ? file.getOriginalFilename() : "unknown";
         try {
             // 检查文件是否为空
             if (file.isEmpty()) {
                 throw new RuntimeException("无法存储空文件");
             }
             
-            // 清理文件名
-            String originalFilename = StringUtils.cleanPath(
-                file.getOriginalFilename() != null ? file.getOriginalFilename() : "unknown");
-            
-            // 检查文件名中是否包含无效字符
-            if (originalFilename.contains("..")) {
-                throw new RuntimeException("文件名包含无效路径序列: " + originalFilename);
+            try (InputStream in = file.getInputStream()) {
+                return stageStream(in);
             }
-            
-            // 为用户创建单独的目录
-            Path userDir = this.fileStorageLocation.resolve("user_" + userId);
-            Files.createDirectories(userDir);
-            
-            // 生成唯一文件名，避免覆盖
-            String fileExtension = getFileExtension(originalFilename);
-            String newFilename = UUID.randomUUID().toString() + "." + fileExtension;
-            
-            // 存储文件
-            Path targetLocation = userDir.resolve(newFilename);
-            Files.copy(file.getInputStream(), targetLocation, StandardCopyOption.REPLACE_EXISTING);
-            
-            logger.info("文件已存储: {}", targetLocation);
-            return targetLocation.toString();
         } catch (IOException ex) {
-            String filename = file.getOriginalFilename() != null ? file.getOriginalFilename() : "unknown";
             logger.error("无法存储文件 " + filename, ex);
             throw new RuntimeException("无法存储文件 " + filename, ex);
         }
     }
     
+    /**
+     * 将输入流写入暂存目录
+     * 只读一遍：边写入边计算大小和 SHA-256，并根据文件头识别内容类型。
+     * 读取过程中抛出异常（如超出大小限制）时删除已写入的部分
+     *
+     * @param in 输入流，由调用方关闭
+     * @return 暂存文件信息（暂存路径、大小、SHA-256、识别出的内容类型）
+     */
+    public StoredFile stageStream(InputStream in) throws IOException {
+        Path stagedPath = createStagingFile("upload-");
+        try (OutputStream out = Files.newOutputStream(stagedPath)) {
+            return scan(in, out, stagedPath);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(stagedPath);
+            throw ex;
+        }
+    }
+    
+    /**
+     * 在暂存目录中创建一个空文件，供分片上传等逐步写入的场景使用
+     *
+     * @param prefix 文件名前缀
+     * @return 暂存文件
+     */
+    public Path createStagingFile(String prefix) throws IOException {
+        Files.createDirectories(STAGING_ROOT);
+        return Files.createTempFile(STAGING_ROOT, prefix, ".part");
+    }
+    
+    /**
+     * 读取已完整写入的暂存文件，计算 SHA-256 并识别内容类型（只读，不复制）
+     *
+     * @param stagedPath 暂存文件
+     * @return 暂存文件信息
+     */
+    public StoredFile inspectStagedFile(Path stagedPath) throws IOException {
+        try (InputStream in = Files.newInputStream(stagedPath)) {
+            return scan(in, null, stagedPath);
+        }
+    }
+    
+    /**
+     * 读取一遍输入流：计算大小和 SHA-256，记录文件头用于识别类型，out 不为空时同时写出
+     */
+    private StoredFile scan(InputStream in, OutputStream out, Path path) throws IOException {
+        MessageDigest digest = sha256();
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        byte[] header = new byte[SNIFF_LENGTH];
+        int headerLength = 0;
+        long size = 0;
+        
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (headerLength < SNIFF_LENGTH) {
+                int copy = Math.min(read, SNIFF_LENGTH - headerLength);
+                System.arraycopy(buffer, 0, header, headerLength, copy);
+                headerLength += copy;
+            }
+            digest.update(buffer, 0, read);
+            if (out != null) {
+                out.write(buffer, 0, read);
+            }
+            size += read;
+        }
+        
+        return new StoredFile(path.toString(), size, HexFormat.of().formatHex(digest.digest()),
+                sniffImageType(header, headerLength));
+    }
+    
+    /**
+     * 根据文件头的魔数识别常见图片格式
+     *
+     * @return 内容类型，无法识别时返回 null
+     */
+    static String sniffImageType(byte[] header, int length) {
+        if (length >= 3 && (header[0] & 0xFF) == 0xFF && (header[1] & 0xFF) == 0xD8 && (header[2] & 0xFF) == 0xFF) {
+            return "image/jpeg";
+        }
+        if (length >= 8 && (header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G'
+                && header[4] == 0x0D && header[5] == 0x0A && header[6] == 0x1A && header[7] == 0x0A) {
+            return "image/png";
+        }
+        if (length >= 6 && header[0] == 'G' && header[1] == 'I' && header[2] == 'F' && header[3] == '8'
+                && (header[4] == '7' || header[4] == '9') && header[5] == 'a') {
+            return "image/gif";
+        }
+        if (length >= 12 && header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F'
+                && header[8] == 'W' && header[9] == 'E' && header[10] == 'B' && header[11] == 'P') {
+            return "image/webp";
+        }
+        if (length >= 12 && header[4] == 'f' && header[5] == 't' && header[6] == 'y' && header[7] == 'p') {
+            String brand = new String(header, 8, 4, StandardCharsets.US_ASCII);
+            if (brand.startsWith("hei") || brand.startsWith("hev") || brand.equals("mif1") || brand.equals("msf1")) {
+                return "image/heic";
+            }
+        }
+        if (length >= 2 && header[0] == 'B' && header[1] == 'M') {
+            return "image/bmp";
+        }
+        return null;
+    }
+    
+    /**
+     * 按内容哈希计算文件的存放位置：uploads/blobs/ab/cd/&lt;sha256&gt;.&lt;ext&gt;
+     *
+     * @param sha256 内容哈希
+     * @param originalFilename 原始文件名，用于确定扩展名
+     * @return 文件路径
+     */
+    public String blobPath(String sha256, String originalFilename) {
+        String extension = getFileExtension(originalFilename != null ? originalFilename : "")
+                .toLowerCase().replaceAll("[^a-z0-9]", "");
+        if (extension.length() > 10) {
+            extension = extension.substring(0, 10);
+        }
+        String filename = extension.isEmpty() ? sha256 : sha256 + "." + extension;
+        return BLOB_ROOT.resolve(sha256.substring(0, 2)).resolve(sha256.substring(2, 4)).resolve(filename).toString();
+    }
+    
+    /**
+     * 是否为按内容哈希存放的文件
+     */
+    public boolean isBlobPath(String filePath) {
+        return filePath != null && Paths.get(filePath).toAbsolutePath().normalize().startsWith(BLOB_ROOT);
+    }
+    
+    /**
+     * 将暂存文件移动到最终位置
+     * 相同内容已存在时直接丢弃暂存文件，不再重复写入
+     *
+     * @param staged 暂存文件
+     * @param targetPath 最终位置
+     * @return 目标位置原先是否已有相同内容
+     */
+    public boolean commitStagedFile(StoredFile staged, String targetPath) {
+        Path source = Paths.get(staged.getPath());
+        Path target = Paths.get(targetPath).toAbsolutePath().normalize();
+        try {
+            if (Files.exists(target)) {
+                Files.deleteIfExists(source);
+                return true;
+            }
+            Files.createDirectories(target.getParent());
+            try {
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException ex) {
+                // 并发写入了相同内容
+                Files.deleteIfExists(source);
+                return true;
+            }
+            filePathIndex.fileStored(target);
+            logger.info("文件已存储: {}", target);
+            return false;
+        } catch (IOException ex) {
+            logger.error("无法存储文件到 {}", targetPath, ex);
+            throw new RuntimeException("无法存储文件到 " + targetPath, ex);
+        }
+    }
+    
+    /**
+     * 丢弃暂存文件（已移动到最终位置时无操作）
+     */
+    public void discardStagedFile(StoredFile staged) {
+        try {
+            Files.deleteIfExists(Paths.get(staged.getPath()));
+        } catch (IOException ex) {
+            logger.warn("删除暂存文件失败: {}", staged.getPath(), ex);
+        }
+    }
+    
+    /**
+     * 计算字节内容的 SHA-256（十六进制）
+     */
+    public static String sha256Hex(byte[] content) {
+        return HexFormat.of().formatHex(sha256().digest(content));
+    }
+    
+    /**
+     * 创建 SHA-256 摘要实例
+     */
+    public static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 不可用", ex);
+        }
+    }
+    
     /**
      * 获取文件扩展名
      *
@@ -171,6 +361,7 @@ public class FileStorageService {
             logger.info("尝试删除文件: {}", path);
             
             boolean deleted = Files.deleteIfExists(path);
+            filePathIndex.fileDeleted(path.toAbsolutePath().normalize());
             if (deleted) {
                 logger.info("文件已成功删除: {}", path);
             } else {
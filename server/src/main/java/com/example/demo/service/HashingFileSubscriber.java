@@ -0,0 +1,125 @@
+package com.example.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Flow;
+
+/**
+ * 将 HTTP 响应体直接写入文件的订阅者
+ * 收到的数据块逐块写入文件，同时计算 SHA-256 并记录文件头用于识别类型，堆上只保留 HttpClient 的数据块；
+ * 每写完一批再向上游请求下一批，磁盘写入跟不上时不会在内存中堆积。出错时删除已写入的部分
+ */
+class HashingFileSubscriber implements HttpResponse.BodySubscriber<StoredFile> {
+
+    private static final Logger logger = LoggerFactory.getLogger(HashingFileSubscriber.class);
+
+    private static final int SNIFF_LENGTH = 16;
+
+    private final Path file;
+    private final long maxBytes;
+    private final CompletableFuture<StoredFile> result = new CompletableFuture<>();
+    private final MessageDigest digest = FileStorageService.sha256();
+    private final byte[] header = new byte[SNIFF_LENGTH];
+    private int headerLength;
+    private long size;
+    private FileChannel channel;
+    private Flow.Subscription subscription;
+
+    /**
+     * @param file 写入的文件，已存在时覆盖
+     * @param maxBytes 响应体大小上限，超出时取消接收并失败
+     */
+    HashingFileSubscriber(Path file, long maxBytes) {
+        this.file = file;
+        this.maxBytes = maxBytes;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        try {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        } catch (IOException ex) {
+            subscription.cancel();
+            fail(ex);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onNext(List<ByteBuffer> buffers) {
+        try {
+            for (ByteBuffer buffer : buffers) {
+                size += buffer.remaining();
+                if (size > maxBytes) {
+                    throw new IOException("响应体超过 " + maxBytes + " 字节");
+                }
+                if (headerLength < SNIFF_LENGTH) {
+                    int copy = Math.min(buffer.remaining(), SNIFF_LENGTH - headerLength);
+                    buffer.duplicate().get(header, headerLength, copy);
+                    headerLength += copy;
+                }
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException ex) {
+            subscription.cancel();
+            fail(ex);
+            return;
+        }
+        subscription.request(1);
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        fail(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            channel.close();
+            result.complete(new StoredFile(file.toString(), size, HexFormat.of().formatHex(digest.digest()),
+                    FileStorageService.sniffImageType(header, headerLength)));
+        } catch (IOException ex) {
+            fail(ex);
+        }
+    }
+
+    @Override
+    public CompletionStage<StoredFile> getBody() {
+        return result;
+    }
+
+    private void fail(Throwable error) {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            logger.warn("删除未写完的文件失败: {}", file, ex);
+        }
+        result.completeExceptionally(error);
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 热点图片缓存
+ * 缓存场景预览图和合照结果等被频繁读取的小文件，按字节数限制总容量，内容存放在堆外内存。
+ * 淘汰策略为分段 LRU：新条目进入试用段，再次命中后晋升到保护段，
+ * 保护段溢出的条目降级回试用段，从试用段尾部淘汰，避免一次性扫描冲掉真正的热点。
+ * 键为规范化后的逻辑路径（即数据库和 URL 中使用的路径），命中时无需访问文件系统
+ */
+@Service
+public class HotFileCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(HotFileCache.class);
+
+    private final boolean enabled;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final long protectedMaxBytes;
+    private final List<String> cacheablePrefixes;
+    private final Path uploadRoot;
+
+    // 两个分段都按访问顺序排列，表头为最久未访问
+    private final LinkedHashMap<String, CachedFile> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, CachedFile> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public HotFileCache(@Value("${file.cache.enabled:true}") boolean enabled,
+                        @Value("${file.cache.max-bytes:67108864}") long maxBytes,
+                        @Value("${file.cache.max-entry-bytes:4194304}") long maxEntryBytes,
+                        @Value("${file.cache.protected-ratio:0.8}") double protectedRatio,
+                        @Value("${file.cache.prefixes:scenes/,images/scenes/,results/,variants/}") String[] prefixes,
+                        MeterRegistry meterRegistry) {
+        this.enabled = enabled;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+        this.protectedMaxBytes = (long) (maxBytes * protectedRatio);
+        this.uploadRoot = FileStorageService.UPLOAD_ROOT;
+        this.cacheablePrefixes = Arrays.stream(prefixes)
+                .map(String::trim)
+                .filter(prefix -> !prefix.isEmpty())
+                .map(prefix -> uploadRoot.resolve(prefix).normalize().toString())
+                .toList();
+
+        this.hits = Counter.builder("file.cache.requests").tag("result", "hit")
+                .description("热点图片缓存命中次数").register(meterRegistry);
+        this.misses = Counter.builder("file.cache.requests").tag("result", "miss")
+                .description("热点图片缓存未命中次数").register(meterRegistry);
+        this.evictions = Counter.builder("file.cache.evictions")
+                .description("热点图片缓存淘汰次数").register(meterRegistry);
+        Gauge.builder("file.cache.size", this, HotFileCache::weightedSize).baseUnit("bytes")
+                .description("热点图片缓存占用字节数").register(meterRegistry);
+        Gauge.builder("file.cache.entries", this, HotFileCache::entryCount)
+                .description("热点图片缓存条目数").register(meterRegistry);
+
+        logger.info("热点图片缓存: enabled={}, maxBytes={}, maxEntryBytes={}", enabled, maxBytes, this.maxEntryBytes);
+    }
+
+    /**
+     * 判断逻辑路径是否属于可缓存的目录
+     */
+    public boolean isCacheable(String logicalPath) {
+        if (!enabled || logicalPath == null) {
+            return false;
+        }
+        String key = toKey(logicalPath);
+        for (String prefix : cacheablePrefixes) {
+            if (key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 查询缓存
+     *
+     * @param logicalPath 逻辑路径
+     * @return 缓存项，未命中时返回 null
+     */
+    public CachedFile get(String logicalPath) {
+        if (!isCacheable(logicalPath)) {
+            return null;
+        }
+        String key = toKey(logicalPath);
+        synchronized (this) {
+            CachedFile cached = protectedSegment.get(key);
+            if (cached == null) {
+                cached = probation.remove(key);
+                if (cached != null) {
+                    // 试用段再次命中，晋升到保护段
+                    probationBytes -= cached.getWeight();
+                    protectedSegment.put(key, cached);
+                    protectedBytes += cached.getWeight();
+                    demoteProtectedOverflow();
+                }
+            }
+            if (cached != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+            }
+            return cached;
+        }
+    }
+
+    /**
+     * 读取文件并放入缓存
+     * 文件超过单条上限或路径不可缓存时返回 null，调用方应直接从文件输出
+     *
+     * @param logicalPath 逻辑路径（缓存键）
+     * @param file 实际文件位置
+     * @return 缓存项
+     */
+    public CachedFile load(String logicalPath, Path file) {
+        if (!isCacheable(logicalPath)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > maxEntryBytes) {
+                return null;
+            }
+            long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+
+            CachedFile cached = new CachedFile(buffer, lastModified);
+            put(toKey(logicalPath), cached);
+            return cached;
+        } catch (IOException ex) {
+            logger.warn("读取文件到缓存失败: {}", file, ex);
+            return null;
+        }
+    }
+
+    /**
+     * 使指定逻辑路径的缓存失效
+     */
+    public void invalidate(String logicalPath) {
+        if (logicalPath == null || logicalPath.isEmpty()) {
+            return;
+        }
+        String key = toKey(logicalPath);
+        synchronized (this) {
+            CachedFile removed = probation.remove(key);
+            if (removed != null) {
+                probationBytes -= removed.getWeight();
+            }
+            removed = protectedSegment.remove(key);
+            if (removed != null) {
+                protectedBytes -= removed.getWeight();
+            }
+        }
+    }
+
+    private synchronized void put(String key, CachedFile cached) {
+        invalidate(key);
+        probation.put(key, cached);
+        probationBytes += cached.getWeight();
+        evictOverflow();
+    }
+
+    /**
+     * 保护段超出配额时，把最久未访问的条目降级回试用段
+     */
+    private void demoteProtectedOverflow() {
+        Iterator<Map.Entry<String, CachedFile>> iterator = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedMaxBytes && iterator.hasNext()) {
+            Map.Entry<String, CachedFile> eldest = iterator.next();
+            iterator.remove();
+            protectedBytes -= eldest.getValue().getWeight();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().getWeight();
+        }
+        evictOverflow();
+    }
+
+    /**
+     * 总量超出上限时，优先从试用段淘汰
+     */
+    private void evictOverflow() {
+        while (probationBytes + protectedBytes > maxBytes) {
+            LinkedHashMap<String, CachedFile> segment = probation.isEmpty() ? protectedSegment : probation;
+            Iterator<Map.Entry<String, CachedFile>> iterator = segment.entrySet().iterator();
+            if (!iterator.hasNext()) {
+                return;
+            }
+            Map.Entry<String, CachedFile> eldest = iterator.next();
+            iterator.remove();
+            if (segment == probation) {
+                probationBytes -= eldest.getValue().getWeight();
+            } else {
+                protectedBytes -= eldest.getValue().getWeight();
+            }
+            evictions.increment();
+        }
+    }
+
+    private synchronized double weightedSize() {
+        return probationBytes + protectedBytes;
+    }
+
+    private synchronized double entryCount() {
+        return probation.size() + protectedSegment.size();
+    }
+
+    private String toKey(String logicalPath) {
+        return Paths.get(logicalPath).toAbsolutePath().normalize().toString();
+    }
+}
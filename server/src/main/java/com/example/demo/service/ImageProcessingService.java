@@ -0,0 +1,152 @@
+package com.example.demo.service;
+
+import org.springframework.stereotype.Service;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+
+/**
+ * 图片处理服务
+ * 负责解码、缩放和 JPEG 编码，供规格图生成等环节复用。
+ * 解码时按目标尺寸做子采样，大图无需完整解码；编码时不写入任何元数据
+ */
+@Service
+public class ImageProcessingService {
+
+    /**
+     * 解码图片
+     * 源图远大于目标尺寸时按整数倍子采样读取，保证结果仍不小于目标尺寸的两倍，兼顾速度和缩放质量
+     *
+     * @param source 源文件
+     * @param maxWidth 后续缩放的目标最大宽度
+     * @param maxHeight 后续缩放的目标最大高度
+     * @return 解码后的图片
+     */
+    public BufferedImage decode(Path source, int maxWidth, int maxHeight) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source.toFile())) {
+            if (in == null) {
+                throw new IOException("无法读取图片: " + source);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("不支持的图片格式: " + source);
+            }
+
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                ImageReadParam param = reader.getDefaultReadParam();
+                double scale = Math.min((double) maxWidth / width, (double) maxHeight / height);
+                int subsampling = scale < 0.5 ? (int) Math.floor(1 / (scale * 2)) : 1;
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * 等比缩放到指定范围内，不放大；结果统一为 RGB（透明区域填充白色）
+     *
+     * @param image 源图片
+     * @param maxWidth 最大宽度
+     * @param maxHeight 最大高度
+     * @param highQuality true 时逐级减半后双三次插值，false 时一步双线性插值
+     * @return 缩放后的图片
+     */
+    public BufferedImage resize(BufferedImage image, int maxWidth, int maxHeight, boolean highQuality) {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight()));
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage current = image;
+        if (highQuality) {
+            // 逐级减半，避免一次缩小过多产生锯齿
+            while (current.getWidth() / 2 >= targetWidth && current.getHeight() / 2 >= targetHeight) {
+                current = draw(current, current.getWidth() / 2, current.getHeight() / 2,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            }
+        }
+        if (current.getWidth() != targetWidth || current.getHeight() != targetHeight
+                || current.getType() != BufferedImage.TYPE_INT_RGB) {
+            current = draw(current, targetWidth, targetHeight, highQuality
+                    ? RenderingHints.VALUE_INTERPOLATION_BICUBIC : RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        return current;
+    }
+
+    /**
+     * 以 JPEG 格式写入文件
+     * 先写临时文件再原子替换，读取方不会看到写了一半的文件
+     *
+     * @param image 图片
+     * @param target 目标文件
+     * @param quality JPEG 质量（0-1）
+     * @return 写入的字节数
+     */
+    public long writeJpeg(BufferedImage image, Path target, float quality) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, ".img-", ".tmp");
+
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+        if (!writers.hasNext()) {
+            throw new IOException("没有可用的 JPEG 编码器");
+        }
+        ImageWriter writer = writers.next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            param.setProgressiveMode(ImageWriteParam.MODE_DISABLED);
+
+            try (ImageOutputStream out = ImageIO.createImageOutputStream(tempFile.toFile())) {
+                writer.setOutput(out);
+                writer.write(null, new IIOImage(image, null, null), param);
+            }
+            Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            return Files.size(target);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(tempFile);
+            throw ex;
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private BufferedImage draw(BufferedImage source, int width, int height, Object interpolation) {
+        BufferedImage target = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,270 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 按需缩放服务
+ * 根据请求的宽高和质量生成缩放后的 JPEG，结果按源文件标识和参数的哈希命名，存放在派生图缓存目录中，
+ * 目录总大小超过上限时按最近访问顺序淘汰。同一派生图的并发请求只解码一次，其余请求等待同一结果。
+ * 宽高和质量只允许白名单中的取值，保证缓存条目数量有限
+ */
+@Service
+public class ImageResizeService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageResizeService.class);
+
+    private final ImageProcessingService imageProcessingService;
+    private final Path cacheDir;
+    private final long maxCacheBytes;
+    private final Set<Integer> allowedWidths;
+    private final Set<Integer> allowedHeights;
+    private final Set<Integer> allowedQualities;
+    private final int defaultQuality;
+
+    // 派生图文件 -> 字节数，按访问顺序排列，表头为最久未访问
+    private final LinkedHashMap<Path, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes;
+
+    // 正在生成的派生图，同一键的并发请求共享同一个结果
+    private final ConcurrentHashMap<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter evictions;
+
+    public ImageResizeService(ImageProcessingService imageProcessingService,
+                              @Value("${image.resize.cache-dir:./cache/derived}") String cacheDir,
+                              @Value("${image.resize.max-cache-bytes:536870912}") long maxCacheBytes,
+                              @Value("${image.resize.widths:160,320,480,640,800,1080,1280,1600,1920}") Integer[] widths,
+                              @Value("${image.resize.heights:160,320,480,640,800,1080,1280,1600,1920}") Integer[] heights,
+                              @Value("${image.resize.qualities:50,60,70,80,90}") Integer[] qualities,
+                              @Value("${image.resize.default-quality:80}") int defaultQuality,
+                              MeterRegistry meterRegistry) {
+        this.imageProcessingService = imageProcessingService;
+        this.cacheDir = Paths.get(cacheDir).toAbsolutePath().normalize();
+        this.maxCacheBytes = maxCacheBytes;
+        this.allowedWidths = Set.copyOf(Arrays.asList(widths));
+        this.allowedHeights = Set.copyOf(Arrays.asList(heights));
+        this.allowedQualities = Set.copyOf(Arrays.asList(qualities));
+        this.defaultQuality = defaultQuality;
+
+        this.hits = Counter.builder("image.resize.requests").tag("result", "hit")
+                .description("派生图缓存命中次数").register(meterRegistry);
+        this.misses = Counter.builder("image.resize.requests").tag("result", "miss")
+                .description("派生图缓存未命中次数").register(meterRegistry);
+        this.evictions = Counter.builder("image.resize.evictions")
+                .description("派生图缓存淘汰次数").register(meterRegistry);
+        Gauge.builder("image.resize.cache.size", this, ImageResizeService::cachedBytes).baseUnit("bytes")
+                .description("派生图缓存占用字节数").register(meterRegistry);
+    }
+
+    /**
+     * 加载缓存目录中已有的派生图，按修改时间排序作为初始访问顺序
+     */
+    @PostConstruct
+    public void init() {
+        try {
+            Files.createDirectories(cacheDir);
+            List<Path> existing;
+            try (Stream<Path> files = Files.walk(cacheDir)) {
+                existing = files.filter(file -> file.toString().endsWith(".jpg")).collect(Collectors.toList());
+            }
+            existing.sort(Comparator.comparingLong(this::lastModified));
+            for (Path file : existing) {
+                try {
+                    record(file, Files.size(file));
+                } catch (IOException ex) {
+                    logger.debug("跳过无法读取的派生图: {}", file);
+                }
+            }
+            logger.info("派生图缓存目录: {}，已有 {} 个文件，共 {} 字节", cacheDir, entries.size(), totalBytes);
+        } catch (IOException ex) {
+            logger.error("无法初始化派生图缓存目录: {}", cacheDir, ex);
+            throw new RuntimeException("无法初始化派生图缓存目录", ex);
+        }
+    }
+
+    /**
+     * 校验缩放参数是否在白名单内
+     *
+     * @param width 宽度，可为空
+     * @param height 高度，可为空
+     * @param quality 质量，可为空
+     * @return 校验失败时返回错误说明，通过时返回 null
+     */
+    public String validate(Integer width, Integer height, Integer quality) {
+        if (width == null && height == null) {
+            return "至少需要指定宽度或高度";
+        }
+        if (width != null && !allowedWidths.contains(width)) {
+            return "不支持的宽度: " + width;
+        }
+        if (height != null && !allowedHeights.contains(height)) {
+            return "不支持的高度: " + height;
+        }
+        if (quality != null && !allowedQualities.contains(quality)) {
+            return "不支持的质量: " + quality;
+        }
+        return null;
+    }
+
+    /**
+     * 获取缩放后的图片，缓存中没有时生成
+     * 参数需先经过 validate 校验
+     *
+     * @param source 源文件
+     * @param width 最大宽度，可为空
+     * @param height 最大高度，可为空
+     * @param quality 质量（1-100），为空时使用默认值
+     * @param highQuality 是否使用高质量缩放
+     * @return 派生图文件
+     */
+    public Path getResized(Path source, Integer width, Integer height, Integer quality,
+                           boolean highQuality) throws IOException {
+        int q = quality != null ? quality : defaultQuality;
+        BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+        String key = cacheKey(source, attributes, width, height, q, highQuality);
+        Path target = cacheDir.resolve(key.substring(0, 2)).resolve(key + ".jpg");
+
+        if (touch(target)) {
+            hits.increment();
+            return target;
+        }
+
+        CompletableFuture<Path> pending = new CompletableFuture<>();
+        CompletableFuture<Path> existing = inFlight.putIfAbsent(key, pending);
+        if (existing != null) {
+            // 已有请求在生成同一派生图，等待其结果
+            hits.increment();
+            return await(existing);
+        }
+
+        try {
+            // 上一轮生成可能刚刚结束
+            if (touch(target)) {
+                hits.increment();
+                pending.complete(target);
+                return target;
+            }
+
+            misses.increment();
+            int maxWidth = width != null ? width : Integer.MAX_VALUE;
+            int maxHeight = height != null ? height : Integer.MAX_VALUE;
+            BufferedImage image = imageProcessingService.decode(source, maxWidth, maxHeight);
+            image = imageProcessingService.resize(image, maxWidth, maxHeight, highQuality);
+            long size = imageProcessingService.writeJpeg(image, target, q / 100f);
+            record(target, size);
+            evictOverflow(target);
+            pending.complete(target);
+            return target;
+        } catch (IOException | RuntimeException ex) {
+            pending.completeExceptionally(ex);
+            throw ex;
+        } finally {
+            inFlight.remove(key, pending);
+        }
+    }
+
+    private Path await(CompletableFuture<Path> future) throws IOException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new RuntimeException("图片缩放失败: " + ex.getCause().getMessage(), ex.getCause());
+        }
+    }
+
+    /**
+     * 缓存键：源文件路径、大小、修改时间和缩放参数的 SHA-256，源文件变化后自然对应新的派生图
+     */
+    private String cacheKey(Path source, BasicFileAttributes attributes, Integer width, Integer height,
+                            int quality, boolean highQuality) {
+        String identity = source.toAbsolutePath().normalize() + "|" + attributes.size() + "|"
+                + attributes.lastModifiedTime().toMillis() + "|" + width + "x" + height + "|q" + quality
+                + "|" + (highQuality ? "quality" : "fast");
+        return HexFormat.of().formatHex(FileStorageService.sha256().digest(identity.getBytes()));
+    }
+
+    private synchronized boolean touch(Path target) {
+        if (entries.get(target) != null) {
+            return true;
+        }
+        // 其他节点或手工放入的文件
+        if (Files.isRegularFile(target)) {
+            try {
+                record(target, Files.size(target));
+                return true;
+            } catch (IOException ex) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private synchronized void record(Path file, long size) {
+        Long previous = entries.put(file, size);
+        totalBytes += size - (previous != null ? previous : 0);
+    }
+
+    /**
+     * 超出总大小上限时从最久未访问的派生图开始删除，不删除刚写入的文件
+     */
+    private synchronized void evictOverflow(Path keep) {
+        Iterator<Map.Entry<Path, Long>> iterator = entries.entrySet().iterator();
+        while (totalBytes > maxCacheBytes && iterator.hasNext()) {
+            Map.Entry<Path, Long> eldest = iterator.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            iterator.remove();
+            totalBytes -= eldest.getValue();
+            try {
+                Files.deleteIfExists(eldest.getKey());
+            } catch (IOException ex) {
+                logger.warn("删除派生图失败: {}", eldest.getKey(), ex);
+            }
+            evictions.increment();
+        }
+    }
+
+    private long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException ex) {
+            return 0;
+        }
+    }
+
+    private synchronized double cachedBytes() {
+        return totalBytes;
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.ImageVariant;
+import com.example.demo.entity.Scene;
+import com.example.demo.repository.ImageVariantRepository;
+import com.example.demo.repository.SceneRepository;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 图片规格服务
+ * 为照片、场景预览图和合照结果生成固定几档缩略图（按长边缩放的 JPEG），并记录到 image_variants 表。
+ * 生成在独立的有界线程池中进行，线程数默认为 CPU 核数的一半，不占用请求线程；队列满时丢弃任务，
+ * 读取方在规格图缺失时回退到原图
+ */
+@Service
+public class ImageVariantService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ImageVariantService.class);
+
+    public static final String OWNER_PHOTO = "PHOTO";
+    public static final String OWNER_SCENE = "SCENE";
+    public static final String OWNER_MERGE = "MERGE";
+
+    // 规格名称 -> 长边像素，按从大到小排列，依次由上一档缩小得到
+    private static final Map<String, Integer> SIZES = new LinkedHashMap<>();
+    static {
+        SIZES.put("large", 1080);
+        SIZES.put("medium", 480);
+        SIZES.put("thumb", 160);
+    }
+
+    private static final Path VARIANT_ROOT = Paths.get("./uploads/variants");
+
+    private final ImageVariantRepository imageVariantRepository;
+    private final SceneRepository sceneRepository;
+    private final ImageProcessingService imageProcessingService;
+    private final FileStorageService fileStorageService;
+    private final float quality;
+    private final ThreadPoolExecutor executor;
+
+    public ImageVariantService(ImageVariantRepository imageVariantRepository,
+                               SceneRepository sceneRepository,
+                               ImageProcessingService imageProcessingService,
+                               FileStorageService fileStorageService,
+                               @Value("${image.variants.pool-size:0}") int poolSize,
+                               @Value("${image.variants.queue-capacity:200}") int queueCapacity,
+                               @Value("${image.variants.quality:0.82}") float quality) {
+        this.imageVariantRepository = imageVariantRepository;
+        this.sceneRepository = sceneRepository;
+        this.imageProcessingService = imageProcessingService;
+        this.fileStorageService = fileStorageService;
+        this.quality = quality;
+
+        int threads = poolSize > 0 ? poolSize : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "image-variant-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+        logger.info("图片规格生成线程池: threads={}, queueCapacity={}", threads, queueCapacity);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * 启动后为还没有规格图的场景补齐
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void backfillScenes() {
+        for (Scene scene : sceneRepository.findAll()) {
+            if (scene.getPreviewImage() != null
+                    && !imageVariantRepository.existsByOwnerTypeAndOwnerId(OWNER_SCENE, scene.getId())) {
+                scheduleVariants(OWNER_SCENE, scene.getId(), scene.getPreviewImage());
+            }
+        }
+    }
+
+    /**
+     * 是否为支持的规格名称
+     */
+    public static boolean isSupportedSize(String size) {
+        return size != null && SIZES.containsKey(size);
+    }
+
+    /**
+     * 安排生成规格图
+     * 当前存在事务时在提交后再提交任务，保证任务线程能读到新记录，回滚时不会生成
+     *
+     * @param ownerType 所属对象类型
+     * @param ownerId 所属对象ID
+     * @param sourcePath 原图路径
+     */
+    public void scheduleVariants(String ownerType, Long ownerId, String sourcePath) {
+        if (ownerId == null || sourcePath == null || sourcePath.isEmpty()) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    submit(ownerType, ownerId, sourcePath);
+                }
+            });
+        } else {
+            submit(ownerType, ownerId, sourcePath);
+        }
+    }
+
+    /**
+     * 查询指定规格，尚未生成时返回空
+     */
+    public Optional<ImageVariant> findVariant(String ownerType, Long ownerId, String size) {
+        return imageVariantRepository.findByOwnerTypeAndOwnerIdAndVariant(ownerType, ownerId, size);
+    }
+
+    /**
+     * 删除对象的所有规格图（文件和记录）
+     */
+    public void deleteVariants(String ownerType, Long ownerId) {
+        List<ImageVariant> variants = imageVariantRepository.findByOwnerTypeAndOwnerId(ownerType, ownerId);
+        for (ImageVariant variant : variants) {
+            fileStorageService.deleteFile(variant.getFilePath());
+        }
+        imageVariantRepository.deleteAll(variants);
+    }
+
+    private void submit(String ownerType, Long ownerId, String sourcePath) {
+        try {
+            executor.execute(() -> generate(ownerType, ownerId, sourcePath));
+        } catch (RejectedExecutionException ex) {
+            logger.warn("规格图生成队列已满，跳过: {} {}", ownerType, ownerId);
+        }
+    }
+
+    /**
+     * 解码一次原图，由大到小依次缩放并写入各档规格图
+     */
+    private void generate(String ownerType, Long ownerId, String sourcePath) {
+        long start = System.nanoTime();
+        try {
+            Path source = fileStorageService.resolveFile(sourcePath);
+            if (source == null) {
+                logger.warn("原图不存在，无法生成规格图: {}", sourcePath);
+                return;
+            }
+
+            int largest = SIZES.values().iterator().next();
+            BufferedImage image = imageProcessingService.decode(source, largest, largest);
+            Path directory = VARIANT_ROOT.resolve(ownerType.toLowerCase()).resolve(ownerId.toString());
+
+            for (Map.Entry<String, Integer> size : SIZES.entrySet()) {
+                image = imageProcessingService.resize(image, size.getValue(), size.getValue(), true);
+                Path target = directory.resolve(size.getKey() + ".jpg");
+                long fileSize = imageProcessingService.writeJpeg(image, target, quality);
+                fileStorageService.registerFile(target);
+
+                ImageVariant variant = imageVariantRepository
+                        .findByOwnerTypeAndOwnerIdAndVariant(ownerType, ownerId, size.getKey())
+                        .orElseGet(ImageVariant::new);
+                variant.setOwnerType(ownerType);
+                variant.setOwnerId(ownerId);
+                variant.setVariant(size.getKey());
+                variant.setWidth(image.getWidth());
+                variant.setHeight(image.getHeight());
+                variant.setFilePath(target.toString());
+                variant.setFileSize(fileSize);
+                imageVariantRepository.save(variant);
+            }
+            logger.info("规格图已生成: {} {}，耗时 {} ms", ownerType, ownerId,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        } catch (Exception e) {
+            logger.error("规格图生成失败: {} {}", ownerType, ownerId, e);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.demo.service;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * 用户未完成的合照任务超过上限
+ * 以 429 返回，并通过 Retry-After 提示客户端多久后重试
+ */
+public class MergeBacklogFullException extends ResponseStatusException {
+
+    private final long retryAfterSeconds;
+
+    public MergeBacklogFullException(long backlog, long retryAfterSeconds) {
+        super(HttpStatus.TOO_MANY_REQUESTS, "未完成的合照任务过多（" + backlog + " 个），请稍后再试");
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    @Override
+    public HttpHeaders getHeaders() {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        return headers;
+    }
+}
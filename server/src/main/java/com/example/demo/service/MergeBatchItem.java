@@ -0,0 +1,34 @@
+package com.example.demo.service;
+
+/**
+ * 批量合照中的一项：场景及该场景使用的提示词
+ */
+public class MergeBatchItem {
+
+    private Long sceneId;
+    private String promptText;
+
+    public MergeBatchItem() {
+    }
+
+    public MergeBatchItem(Long sceneId, String promptText) {
+        this.sceneId = sceneId;
+        this.promptText = promptText;
+    }
+
+    public Long getSceneId() {
+        return sceneId;
+    }
+
+    public void setSceneId(Long sceneId) {
+        this.sceneId = sceneId;
+    }
+
+    public String getPromptText() {
+        return promptText;
+    }
+
+    public void setPromptText(String promptText) {
+        this.promptText = promptText;
+    }
+}
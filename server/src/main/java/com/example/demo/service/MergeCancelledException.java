@@ -0,0 +1,12 @@
+package com.example.demo.service;
+
+/**
+ * 合照已被用户取消，生成中止，结果不再写入
+ * 任务已在取消时标记为结束，执行器不再更新任务状态
+ */
+public class MergeCancelledException extends RuntimeException {
+
+    public MergeCancelledException(Long mergeId) {
+        super("合照已取消: " + mergeId);
+    }
+}
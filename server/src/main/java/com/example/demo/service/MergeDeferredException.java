@@ -0,0 +1,19 @@
+package com.example.demo.service;
+
+/**
+ * 合照暂不能执行，需要推迟后重新领取（例如相同输入的结果正由其他节点生成）
+ * 推迟不计入失败次数
+ */
+public class MergeDeferredException extends RuntimeException {
+
+    private final long delaySeconds;
+
+    public MergeDeferredException(String message, long delaySeconds) {
+        super(message);
+        this.delaySeconds = delaySeconds;
+    }
+
+    public long getDelaySeconds() {
+        return delaySeconds;
+    }
+}
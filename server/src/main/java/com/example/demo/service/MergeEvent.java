@@ -0,0 +1,51 @@
+package com.example.demo.service;
+
+import java.time.LocalDateTime;
+
+/**
+ * 合照状态事件
+ * 由 MergeEventBus 分配递增的事件ID，客户端断线重连时以 Last-Event-ID 续传
+ */
+public class MergeEvent {
+
+    private final long id;
+    private final Long mergeId;
+    private final String status;
+    // 进度百分比，未知时为 null
+    private final Integer progress;
+    private final String message;
+    private final LocalDateTime time;
+
+    public MergeEvent(long id, Long mergeId, String status, Integer progress, String message) {
+        this.id = id;
+        this.mergeId = mergeId;
+        this.status = status;
+        this.progress = progress;
+        this.message = message;
+        this.time = LocalDateTime.now();
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public Long getMergeId() {
+        return mergeId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public Integer getProgress() {
+        return progress;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public LocalDateTime getTime() {
+        return time;
+    }
+}
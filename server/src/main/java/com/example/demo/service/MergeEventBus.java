@@ -0,0 +1,295 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 合照事件总线
+ * 合照状态变化时按用户推送给该用户的 SSE 连接。连接基于异步 Servlet，等待期间不占用请求线程；
+ * 每个连接有一个有界的待发送队列，由少量分发线程写出，发布方从不阻塞在慢客户端上，队列满时断开该连接。
+ * 每个用户保留最近若干条事件，客户端重连时根据 Last-Event-ID 补发；补发范围已被淘汰时发送 resync 事件，
+ * 客户端需重新拉取列表。事件只在本节点内分发
+ */
+@Service
+public class MergeEventBus {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeEventBus.class);
+
+    private static final String EVENT_STATUS = "merge-status";
+    private static final String EVENT_RESYNC = "resync";
+    // 放入连接队列的心跳占位
+    private static final Object HEARTBEAT = new Object();
+    private static final Object RESYNC = new Object();
+
+    private final long timeoutMs;
+    private final int replaySize;
+    private final long replayTtlMs;
+    private final int bufferSize;
+    private final ThreadPoolExecutor dispatcher;
+
+    // 以启动时间为起点，重启后的事件ID大于重启前的，旧ID一定落在补发范围之外
+    private final AtomicLong sequence = new AtomicLong(System.currentTimeMillis() * 1000);
+    private final ConcurrentHashMap<Long, UserChannel> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final Counter overflows;
+
+    public MergeEventBus(@Value("${merge.events.timeout-ms:1800000}") long timeoutMs,
+                         @Value("${merge.events.replay-size:100}") int replaySize,
+                         @Value("${merge.events.replay-ttl-seconds:600}") long replayTtlSeconds,
+                         @Value("${merge.events.buffer-size:64}") int bufferSize,
+                         @Value("${merge.events.dispatch-threads:2}") int dispatchThreads,
+                         MeterRegistry meterRegistry) {
+        this.timeoutMs = timeoutMs;
+        this.replaySize = replaySize;
+        this.replayTtlMs = TimeUnit.SECONDS.toMillis(replayTtlSeconds);
+        this.bufferSize = bufferSize;
+
+        AtomicInteger counter = new AtomicInteger();
+        // 每个连接同时最多有一个分发任务，任务数不超过连接数
+        this.dispatcher = new ThreadPoolExecutor(dispatchThreads, dispatchThreads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(), runnable -> {
+                    Thread thread = new Thread(runnable, "merge-events-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+
+        this.overflows = Counter.builder("merge.events.overflows")
+                .description("因发送队列已满而断开的事件连接数").register(meterRegistry);
+        Gauge.builder("merge.events.connections", connections, AtomicInteger::get)
+                .description("当前合照事件连接数").register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        channels.values().forEach(channel -> channel.subscribers.forEach(Subscriber::close));
+        dispatcher.shutdownNow();
+    }
+
+    /**
+     * 发布合照状态事件
+     * 当前存在事务时在提交后发布，客户端收到事件时总能查到对应的状态；事务回滚时不发布。
+     * 在事务方法中可以直接调用，无需自行注册事务回调
+     *
+     * @param userId 合照所属用户
+     * @param mergeId 合照ID
+     * @param status 状态
+     * @param progress 进度百分比，可为空
+     * @param message 说明，可为空
+     */
+    public void publish(Long userId, Long mergeId, String status, Integer progress, String message) {
+        if (userId == null) {
+            return;
+        }
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    dispatch(userId, mergeId, status, progress, message);
+                }
+            });
+        } else {
+            dispatch(userId, mergeId, status, progress, message);
+        }
+    }
+
+    /**
+     * 立即分发给该用户的连接并记入补发历史
+     */
+    void dispatch(Long userId, Long mergeId, String status, Integer progress, String message) {
+        UserChannel channel = channel(userId);
+        synchronized (channel) {
+            MergeEvent event = new MergeEvent(sequence.incrementAndGet(), mergeId, status, progress, message);
+            channel.history.addLast(event);
+            while (channel.history.size() > replaySize) {
+                channel.evictedUpTo = channel.history.removeFirst().getId();
+            }
+            channel.lastActivity = System.currentTimeMillis();
+            for (Subscriber subscriber : channel.subscribers) {
+                enqueue(subscriber, event);
+            }
+        }
+    }
+
+    /**
+     * 订阅用户的合照事件
+     *
+     * @param userId 用户ID
+     * @param lastEventId 客户端收到的最后一个事件ID，首次连接为空
+     * @return SSE 连接
+     */
+    public SseEmitter subscribe(Long userId, Long lastEventId) {
+        SseEmitter emitter = new SseEmitter(timeoutMs);
+        UserChannel channel = channel(userId);
+        Subscriber subscriber = new Subscriber(emitter, new ArrayBlockingQueue<>(bufferSize));
+
+        emitter.onCompletion(() -> unsubscribe(channel, subscriber));
+        emitter.onTimeout(() -> unsubscribe(channel, subscriber));
+        emitter.onError(ex -> unsubscribe(channel, subscriber));
+
+        // 补发和加入订阅在同一把锁内完成，其间发布的事件不会遗漏也不会重复
+        synchronized (channel) {
+            if (lastEventId != null) {
+                if (lastEventId < channel.evictedUpTo || lastEventId > sequence.get()) {
+                    enqueue(subscriber, RESYNC);
+                } else {
+                    for (MergeEvent event : channel.history) {
+                        if (event.getId() > lastEventId) {
+                            enqueue(subscriber, event);
+                        }
+                    }
+                }
+            }
+            channel.subscribers.add(subscriber);
+            channel.lastActivity = System.currentTimeMillis();
+        }
+        connections.incrementAndGet();
+        // 立即写出一次，让代理和客户端尽早确认连接已建立
+        enqueue(subscriber, HEARTBEAT);
+        return emitter;
+    }
+
+    private void unsubscribe(UserChannel channel, Subscriber subscriber) {
+        if (channel.subscribers.remove(subscriber)) {
+            connections.decrementAndGet();
+        }
+        subscriber.closed = true;
+    }
+
+    /**
+     * 定时向所有连接发送心跳，防止代理因空闲断开；同时清理长时间无连接、无事件的用户缓冲
+     */
+    @Scheduled(fixedDelayString = "${merge.events.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        long expireBefore = System.currentTimeMillis() - replayTtlMs;
+        channels.forEach((userId, channel) -> {
+            channel.subscribers.forEach(subscriber -> enqueue(subscriber, HEARTBEAT));
+            if (channel.subscribers.isEmpty() && channel.lastActivity < expireBefore) {
+                // 移除后重新订阅会创建新缓冲，旧事件ID落在补发范围之外，客户端会收到 resync
+                channels.remove(userId, channel);
+            }
+        });
+    }
+
+    private UserChannel channel(Long userId) {
+        return channels.computeIfAbsent(userId, id -> new UserChannel(sequence.get()));
+    }
+
+    private void enqueue(Subscriber subscriber, Object item) {
+        if (subscriber.closed) {
+            return;
+        }
+        if (!subscriber.queue.offer(item)) {
+            if (item == HEARTBEAT) {
+                // 队列中已有待发送的内容，心跳可以省略
+                return;
+            }
+            overflows.increment();
+            logger.warn("合照事件连接发送过慢，已断开");
+            subscriber.close();
+            return;
+        }
+        if (subscriber.draining.compareAndSet(false, true)) {
+            dispatcher.execute(() -> drain(subscriber));
+        }
+    }
+
+    private void drain(Subscriber subscriber) {
+        do {
+            Object item;
+            while ((item = subscriber.queue.poll()) != null && !subscriber.closed) {
+                try {
+                    send(subscriber.emitter, item);
+                } catch (IOException | IllegalStateException ex) {
+                    // 客户端已断开
+                    subscriber.close();
+                }
+            }
+            subscriber.draining.set(false);
+            // 释放标记后若又有新内容且没有其他线程接手，继续发送
+        } while (!subscriber.queue.isEmpty() && !subscriber.closed && subscriber.draining.compareAndSet(false, true));
+    }
+
+    private void send(SseEmitter emitter, Object item) throws IOException {
+        if (item == HEARTBEAT) {
+            emitter.send(SseEmitter.event().comment("heartbeat"));
+        } else if (item == RESYNC) {
+            emitter.send(SseEmitter.event().name(EVENT_RESYNC).data("{}", MediaType.APPLICATION_JSON));
+        } else {
+            MergeEvent event = (MergeEvent) item;
+            Map<String, Object> data = new HashMap<>();
+            data.put("mergeId", event.getMergeId());
+            data.put("status", event.getStatus());
+            data.put("progress", event.getProgress());
+            data.put("message", event.getMessage());
+            data.put("time", event.getTime());
+            emitter.send(SseEmitter.event()
+                    .id(String.valueOf(event.getId()))
+                    .name(EVENT_STATUS)
+                    .data(data, MediaType.APPLICATION_JSON));
+        }
+    }
+
+    /**
+     * 单个用户的最近事件和连接
+     */
+    private static class UserChannel {
+        private final ArrayDeque<MergeEvent> history = new ArrayDeque<>();
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        // 已淘汰的最大事件ID，不大于它的 Last-Event-ID 无法补全
+        private long evictedUpTo;
+        private volatile long lastActivity = System.currentTimeMillis();
+
+        private UserChannel(long evictedUpTo) {
+            this.evictedUpTo = evictedUpTo;
+        }
+    }
+
+    /**
+     * 单个 SSE 连接
+     */
+    private static class Subscriber {
+        private final SseEmitter emitter;
+        private final ArrayBlockingQueue<Object> queue;
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private volatile boolean closed;
+
+        private Subscriber(SseEmitter emitter, ArrayBlockingQueue<Object> queue) {
+            this.emitter = emitter;
+            this.queue = queue;
+        }
+
+        private void close() {
+            if (!closed) {
+                closed = true;
+                queue.clear();
+                emitter.complete();
+            }
+        }
+    }
+}
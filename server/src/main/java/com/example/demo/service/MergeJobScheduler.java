@@ -0,0 +1,115 @@
+package com.example.demo.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 合照任务的公平调度
+ * 候选任务按用户分成子队列，用差额轮询（DRR）决定本次领取哪些：每轮每个用户获得与权重成正比的额度，
+ * 额度够一个任务就领取一个，子队列空时清零额度。轮询位置和剩余额度跨多次领取保留，
+ * 大量提交的用户只能拿到与其他用户相同比例的执行线程。多个节点各自维护调度状态，整体上近似公平
+ */
+@Component
+public class MergeJobScheduler {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeJobScheduler.class);
+
+    // 权重下限，避免额度累积过慢导致空转
+    private static final double MIN_WEIGHT = 0.1;
+
+    private final double defaultWeight;
+    private final Map<Long, Double> userWeights;
+
+    // 轮询顺序和各用户的剩余额度
+    private final ArrayDeque<Long> ring = new ArrayDeque<>();
+    private final Map<Long, Double> deficits = new HashMap<>();
+
+    public MergeJobScheduler(@Value("${merge.scheduler.default-weight:1}") double defaultWeight,
+                             @Value("${merge.scheduler.user-weights:}") String userWeights) {
+        this.defaultWeight = Math.max(MIN_WEIGHT, defaultWeight);
+        this.userWeights = parseWeights(userWeights);
+    }
+
+    /**
+     * 从候选任务中选出本次领取的任务
+     *
+     * @param candidates 候选任务，每项为 {任务ID, 用户ID}，同一用户的任务按提交顺序排列
+     * @param limit 最多选出的数量
+     * @return 选中的任务ID
+     */
+    public synchronized List<Long> select(List<long[]> candidates, int limit) {
+        Map<Long, ArrayDeque<Long>> queues = new LinkedHashMap<>();
+        for (long[] candidate : candidates) {
+            queues.computeIfAbsent(candidate[1], user -> new ArrayDeque<>()).add(candidate[0]);
+        }
+
+        // 没有待领取任务的用户退出轮询并清零额度，新出现的用户排到队尾
+        ring.removeIf(user -> !queues.containsKey(user));
+        deficits.keySet().retainAll(queues.keySet());
+        for (Long user : queues.keySet()) {
+            if (!deficits.containsKey(user)) {
+                deficits.put(user, 0.0);
+                ring.addLast(user);
+            }
+        }
+
+        List<Long> selected = new ArrayList<>(Math.min(limit, candidates.size()));
+        while (selected.size() < limit && !ring.isEmpty()) {
+            Long user = ring.pollFirst();
+            ArrayDeque<Long> queue = queues.get(user);
+            double quantum = weight(user);
+            double deficit = deficits.get(user) + quantum;
+            while (deficit >= 1 && !queue.isEmpty() && selected.size() < limit) {
+                selected.add(queue.poll());
+                deficit -= 1;
+            }
+
+            if (queue.isEmpty()) {
+                deficits.remove(user);
+            } else if (deficit >= 1) {
+                // 因达到数量上限而中断，下次从该用户继续，本轮额度不重复发放
+                deficits.put(user, deficit - quantum);
+                ring.addFirst(user);
+            } else {
+                deficits.put(user, deficit);
+                ring.addLast(user);
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * 用户的调度权重
+     */
+    public double weight(Long user) {
+        return userWeights.getOrDefault(user, defaultWeight);
+    }
+
+    /**
+     * 解析 "用户ID:权重" 列表，如 "12:3,15:0.5"
+     */
+    private static Map<Long, Double> parseWeights(String value) {
+        Map<Long, Double> weights = new HashMap<>();
+        if (value == null || value.isBlank()) {
+            return weights;
+        }
+        for (String entry : value.split(",")) {
+            String[] parts = entry.trim().split(":");
+            try {
+                weights.put(Long.parseLong(parts[0].trim()), Math.max(MIN_WEIGHT, Double.parseDouble(parts[1].trim())));
+            } catch (RuntimeException ex) {
+                logger.warn("忽略无效的调度权重配置: {}", entry);
+            }
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,390 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.MergeJob;
+import com.example.demo.repository.MergeJobRepository;
+import com.example.demo.repository.PhotoMergeRepository;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * 合照任务队列
+ * 任务持久化在 merge_jobs 表中，各节点用 SELECT ... FOR UPDATE SKIP LOCKED 领取，互不阻塞也不会重复领取。
+ * 领取时写入租约，工作节点定期续租；节点崩溃后租约过期，任务由回收任务重新放回队列。
+ * 失败的任务按退避时间推迟重试，超过次数上限后任务和合照记录都标记为失败。
+ * 领取时由 MergeJobScheduler 按用户公平选择；每个用户未完成的任务数有上限，超出时拒绝入队，
+ * 入队时按用户加事务级咨询锁，同一用户的并发提交依次计数和写入
+ */
+@Service
+public class MergeJobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeJobService.class);
+
+    private static final int MAX_ERROR_LENGTH = 1000;
+
+    private static final String INSERT_JOB_SQL =
+            "INSERT INTO merge_jobs (merge_id, user_id, job_type, status, attempts, available_at, created_at) "
+            + "VALUES (?, ?, ?, 'QUEUED', 0, ?, ?)";
+
+    private final MergeJobRepository mergeJobRepository;
+    private final PhotoMergeRepository photoMergeRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final MergeEventBus mergeEventBus;
+    private final long leaseSeconds;
+    private final int maxAttempts;
+    private final long retryBackoffSeconds;
+    private final MergeJobScheduler mergeJobScheduler;
+    private final int maxBacklogPerUser;
+    private final long retryAfterSeconds;
+    private final int candidateUsers;
+
+    // 最近一次统计的排队情况，供监控指标读取
+    private volatile QueueStats queueStats = new QueueStats(0, 0, 0);
+
+    @Autowired
+    public MergeJobService(MergeJobRepository mergeJobRepository,
+                           PhotoMergeRepository photoMergeRepository,
+                           JdbcTemplate jdbcTemplate,
+                           MergeEventBus mergeEventBus,
+                           MergeJobScheduler mergeJobScheduler,
+                           @Value("${merge.worker.lease-seconds:60}") long leaseSeconds,
+                           @Value("${merge.worker.max-attempts:3}") int maxAttempts,
+                           @Value("${merge.worker.retry-backoff-seconds:30}") long retryBackoffSeconds,
+                           @Value("${merge.scheduler.max-backlog-per-user:20}") int maxBacklogPerUser,
+                           @Value("${merge.scheduler.retry-after-seconds:30}") long retryAfterSeconds,
+                           @Value("${merge.scheduler.candidate-users:100}") int candidateUsers,
+                           MeterRegistry meterRegistry) {
+        this.mergeJobRepository = mergeJobRepository;
+        this.photoMergeRepository = photoMergeRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.mergeEventBus = mergeEventBus;
+        this.mergeJobScheduler = mergeJobScheduler;
+        this.leaseSeconds = leaseSeconds;
+        this.maxAttempts = maxAttempts;
+        this.retryBackoffSeconds = retryBackoffSeconds;
+        this.maxBacklogPerUser = maxBacklogPerUser;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.candidateUsers = candidateUsers;
+
+        Gauge.builder("merge.queue.depth", this, service -> service.queueStats.queued)
+                .description("排队中的合照任务数").register(meterRegistry);
+        Gauge.builder("merge.queue.users", this, service -> service.queueStats.users)
+                .description("有排队任务的用户数").register(meterRegistry);
+        Gauge.builder("merge.queue.max-user-depth", this, service -> service.queueStats.maxUserDepth)
+                .description("单个用户排队任务数的最大值").register(meterRegistry);
+    }
+
+    /**
+     * 加入队列，与调用方处于同一事务，合照记录和任务要么都写入要么都不写入
+     *
+     * @param mergeId 合照ID
+     * @param userId 合照所属用户
+     * @param jobType 任务类型
+     * @return 任务
+     * @throws MergeBacklogFullException 用户未完成的任务已达上限
+     */
+    @Transactional
+    public MergeJob enqueue(Long mergeId, Long userId, String jobType) {
+        lockBacklog(userId);
+        return insertJob(mergeId, userId, jobType);
+    }
+
+    /**
+     * 合照没有未结束的任务时加入队列，与调用方处于同一事务
+     * 检查和写入都在用户的咨询锁内，同一合照的并发请求依次执行，后执行的能看到先提交的任务，只有一个入队
+     *
+     * @return 新加入的任务，合照已有未结束的任务时为空
+     * @throws MergeBacklogFullException 用户未完成的任务已达上限
+     */
+    @Transactional
+    public Optional<MergeJob> enqueueIfIdle(Long mergeId, Long userId, String jobType) {
+        lockBacklog(userId);
+        if (hasActiveJob(mergeId)) {
+            return Optional.empty();
+        }
+        return Optional.of(insertJob(mergeId, userId, jobType));
+    }
+
+    private MergeJob insertJob(Long mergeId, Long userId, String jobType) {
+        checkBacklog(userId);
+        MergeJob job = mergeJobRepository.save(new MergeJob(mergeId, userId, jobType));
+        logger.info("合照任务已入队: 任务 {}，合照 {}，类型 {}", job.getId(), mergeId, jobType);
+        return job;
+    }
+
+    /**
+     * 批量加入队列，一个 JDBC 批次写入所有任务，与调用方处于同一事务
+     * 任务 ID 连续，同一批次的任务在用户的队列中相邻，按提交顺序依次领取
+     *
+     * @param mergeIds 合照ID
+     * @param userId 合照所属用户
+     * @param jobType 任务类型
+     * @throws MergeBacklogFullException 加入后用户未完成的任务数将超过上限
+     */
+    @Transactional
+    public void enqueueAll(List<Long> mergeIds, Long userId, String jobType) {
+        if (mergeIds.isEmpty()) {
+            return;
+        }
+        lockBacklog(userId);
+        checkBacklog(userId, mergeIds.size());
+        LocalDateTime now = LocalDateTime.now();
+        List<Object[]> rows = new ArrayList<>(mergeIds.size());
+        for (Long mergeId : mergeIds) {
+            rows.add(new Object[] {mergeId, userId, jobType, now, now});
+        }
+        jdbcTemplate.batchUpdate(INSERT_JOB_SQL, rows);
+        logger.info("合照任务批量入队: {} 个，用户 {}，类型 {}", mergeIds.size(), userId, jobType);
+    }
+
+    /**
+     * 锁住用户的队列配额直到事务结束，之后的计数能看到先提交的同一用户的任务，上限不会被并发提交突破，
+     * 同一合照也不会被并发的请求重复入队
+     * 咨询锁以用户ID为键，只与同一用户的入队互斥；提交前的 checkBacklog 预检不加锁，只用于尽早拒绝
+     */
+    private void lockBacklog(Long userId) {
+        jdbcTemplate.queryForList("SELECT pg_advisory_xact_lock(?)", userId);
+    }
+
+    /**
+     * 检查用户未完成的任务数是否已达上限
+     *
+     * @throws MergeBacklogFullException 已达上限
+     */
+    public void checkBacklog(Long userId) {
+        checkBacklog(userId, 1);
+    }
+
+    /**
+     * 检查用户再加入若干个任务后是否会超过上限
+     *
+     * @param additional 将要加入的任务数
+     * @throws MergeBacklogFullException 将超过上限
+     */
+    public void checkBacklog(Long userId, int additional) {
+        long backlog = getBacklog(userId);
+        if (backlog + additional > maxBacklogPerUser) {
+            logger.warn("用户 {} 未完成的合照任务过多: {}", userId, backlog);
+            throw new MergeBacklogFullException(backlog, retryAfterSeconds);
+        }
+    }
+
+    /**
+     * 用户排队中和执行中的任务数
+     */
+    public long getBacklog(Long userId) {
+        return mergeJobRepository.countByUserIdAndStatusIn(userId,
+                List.of(MergeJob.STATUS_QUEUED, MergeJob.STATUS_RUNNING));
+    }
+
+    public int getMaxBacklogPerUser() {
+        return maxBacklogPerUser;
+    }
+
+    /**
+     * 合照是否有尚未结束的任务
+     */
+    public boolean hasActiveJob(Long mergeId) {
+        return mergeJobRepository.existsByMergeIdAndStatusIn(mergeId,
+                List.of(MergeJob.STATUS_QUEUED, MergeJob.STATUS_RUNNING));
+    }
+
+    /**
+     * 领取一批任务
+     *
+     * @param worker 工作节点标识
+     * @param limit 最多领取的数量
+     * @return 已领取的任务
+     */
+    @Transactional
+    public List<MergeJob> claim(String worker, int limit) {
+        LocalDateTime now = LocalDateTime.now();
+        // 每个用户最多取 limit 个候选，足够调度在本次全部分给同一用户
+        List<long[]> candidates = new ArrayList<>();
+        for (Object[] row : mergeJobRepository.findCandidates(now, limit, limit * candidateUsers)) {
+            long userId = row[1] != null ? ((Number) row[1]).longValue() : -1L;
+            candidates.add(new long[] {((Number) row[0]).longValue(), userId});
+        }
+        if (candidates.isEmpty()) {
+            return List.of();
+        }
+
+        List<Long> selected = mergeJobScheduler.select(candidates, limit);
+        List<MergeJob> jobs = mergeJobRepository.lockQueued(selected);
+        for (MergeJob job : jobs) {
+            job.setStatus(MergeJob.STATUS_RUNNING);
+            job.setLockedBy(worker);
+            job.setLeaseUntil(now.plusSeconds(leaseSeconds));
+            job.setAttempts(job.getAttempts() + 1);
+        }
+        return mergeJobRepository.saveAll(jobs);
+    }
+
+    /**
+     * 为本节点正在执行的任务续租
+     *
+     * @return 续租成功的任务数，少于传入数量说明有任务已被回收
+     */
+    public int renewLeases(Collection<Long> jobIds, String worker) {
+        if (jobIds.isEmpty()) {
+            return 0;
+        }
+        return mergeJobRepository.renewLeases(jobIds, worker, LocalDateTime.now().plusSeconds(leaseSeconds));
+    }
+
+    /**
+     * 标记任务完成
+     *
+     * @return 本节点仍持有租约时返回 true
+     */
+    public boolean complete(Long jobId, String worker) {
+        return mergeJobRepository.markDone(jobId, worker, LocalDateTime.now()) > 0;
+    }
+
+    /**
+     * 任务执行失败，未达到次数上限时推迟重试，否则标记为失败
+     *
+     * @param jobId 任务ID
+     * @param worker 工作节点标识
+     * @param error 失败原因
+     */
+    @Transactional
+    public void fail(Long jobId, String worker, String error) {
+        mergeJobRepository.findById(jobId)
+                .filter(job -> MergeJob.STATUS_RUNNING.equals(job.getStatus()) && worker.equals(job.getLockedBy()))
+                .ifPresent(job -> retryOrFail(job, error));
+    }
+
+    /**
+     * 推迟任务，放回队列并退还本次领取次数
+     *
+     * @param jobId 任务ID
+     * @param worker 工作节点标识
+     * @param delaySeconds 推迟的秒数
+     */
+    @Transactional
+    public void defer(Long jobId, String worker, long delaySeconds) {
+        mergeJobRepository.findById(jobId)
+                .filter(job -> MergeJob.STATUS_RUNNING.equals(job.getStatus()) && worker.equals(job.getLockedBy()))
+                .ifPresent(job -> {
+                    job.setStatus(MergeJob.STATUS_QUEUED);
+                    job.setAttempts(Math.max(0, job.getAttempts() - 1));
+                    job.setLockedBy(null);
+                    job.setLeaseUntil(null);
+                    job.setAvailableAt(LocalDateTime.now().plusSeconds(delaySeconds));
+                    mergeJobRepository.save(job);
+                    logger.info("合照任务推迟 {} 秒: 任务 {}", delaySeconds, jobId);
+                });
+    }
+
+    /**
+     * 取消合照排队中和执行中的任务
+     * 排队中的任务不会再被领取；执行中的任务由执行节点在下次检查时中止，其续租和完成都会失败
+     *
+     * @return 取消的任务数
+     */
+    public int cancelJobs(Long mergeId) {
+        return mergeJobRepository.cancelByMergeId(mergeId, LocalDateTime.now());
+    }
+
+    /**
+     * 从本节点正在执行的任务中找出已被取消的任务
+     */
+    public List<Long> findCancelled(Collection<Long> jobIds) {
+        if (jobIds.isEmpty()) {
+            return List.of();
+        }
+        return mergeJobRepository.findCancelledIds(jobIds);
+    }
+
+    /**
+     * 回收租约已过期的任务（执行节点崩溃或失联）
+     *
+     * @param limit 单次最多回收的数量
+     * @return 回收的任务数
+     */
+    @Transactional
+    public int reapExpired(int limit) {
+        List<MergeJob> expired = mergeJobRepository.lockExpired(LocalDateTime.now(), limit);
+        for (MergeJob job : expired) {
+            logger.warn("合照任务租约已过期，执行节点 {}: 任务 {}", job.getLockedBy(), job.getId());
+            retryOrFail(job, "租约过期，执行节点 " + job.getLockedBy() + " 未续租");
+        }
+        return expired.size();
+    }
+
+    private void retryOrFail(MergeJob job, String error) {
+        LocalDateTime now = LocalDateTime.now();
+        job.setLockedBy(null);
+        job.setLeaseUntil(null);
+        job.setLastError(error != null && error.length() > MAX_ERROR_LENGTH ? error.substring(0, MAX_ERROR_LENGTH) : error);
+
+        if (job.getAttempts() < maxAttempts) {
+            // 退避时间随次数翻倍
+            long delay = retryBackoffSeconds << (job.getAttempts() - 1);
+            job.setStatus(MergeJob.STATUS_QUEUED);
+            job.setAvailableAt(now.plusSeconds(delay));
+            photoMergeRepository.findById(job.getMergeId()).ifPresent(merge -> mergeEventBus.publish(
+                    merge.getUser().getId(), merge.getId(), merge.getStatus(), null, "生成失败，稍后重试"));
+            logger.info("合照任务将在 {} 秒后重试: 任务 {}，第 {} 次", delay, job.getId(), job.getAttempts());
+        } else {
+            job.setStatus(MergeJob.STATUS_FAILED);
+            job.setFinishedAt(now);
+            photoMergeRepository.findById(job.getMergeId()).ifPresent(merge -> {
+                merge.setStatus("FAILED");
+                photoMergeRepository.save(merge);
+                mergeEventBus.publish(merge.getUser().getId(), merge.getId(), "FAILED", null, "生成失败");
+            });
+            logger.error("合照任务失败且不再重试: 任务 {}，合照 {}，原因: {}", job.getId(), job.getMergeId(), error);
+        }
+        mergeJobRepository.save(job);
+    }
+
+    /**
+     * 定时统计排队情况
+     */
+    @Scheduled(fixedDelayString = "${merge.scheduler.stats-interval-ms:10000}")
+    public void refreshQueueStats() {
+        long queued = 0;
+        long maxUserDepth = 0;
+        List<Object[]> rows = mergeJobRepository.countQueuedByUser();
+        for (Object[] row : rows) {
+            long depth = ((Number) row[1]).longValue();
+            queued += depth;
+            maxUserDepth = Math.max(maxUserDepth, depth);
+        }
+        queueStats = new QueueStats(queued, rows.size(), maxUserDepth);
+    }
+
+    /**
+     * 删除合照对应的任务
+     */
+    public void deleteJobs(Long mergeId) {
+        mergeJobRepository.deleteByMergeId(mergeId);
+    }
+
+    private static class QueueStats {
+        private final long queued;
+        private final long users;
+        private final long maxUserDepth;
+
+        private QueueStats(long queued, long users, long maxUserDepth) {
+            this.queued = queued;
+            this.users = users;
+            this.maxUserDepth = maxUserDepth;
+        }
+    }
+}
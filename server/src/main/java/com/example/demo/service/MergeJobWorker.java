@@ -0,0 +1,228 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.MergeJob;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.net.InetAddress;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合照任务执行器
+ * 定时从 merge_jobs 表领取任务，交给 MergePipeline 分阶段执行。本节点同时执行的任务数不超过
+ * merge.worker.max-in-flight，每次领取的数量也不超过流水线入口的空位，流水线积压时不再领取，
+ * 未领取的任务留在队列中供其他节点处理；执行期间定期续租，
+ * 并定时回收其他节点遗留的过期任务。执行中的任务被取消后由定时检查中止其 AI 请求。
+ * merge.worker.enabled=false 时本节点只提交任务不执行
+ */
+@Service
+public class MergeJobWorker {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeJobWorker.class);
+
+    private final MergeJobService mergeJobService;
+    private final PhotoMergeService photoMergeService;
+    private final MergePipeline mergePipeline;
+    private final boolean enabled;
+    private final int maxInFlight;
+    private final int reapBatchSize;
+    private final String workerId;
+
+    // 空闲执行槽位，本节点同时执行的任务数不超过 maxInFlight
+    private final Semaphore slots;
+    // 本节点正在执行的任务：任务ID -> 合照ID
+    private final Map<Long, Long> running = new ConcurrentHashMap<>();
+    private volatile boolean stopping;
+
+    private final Counter succeeded;
+    private final Counter failed;
+
+    public MergeJobWorker(MergeJobService mergeJobService,
+                          PhotoMergeService photoMergeService,
+                          MergePipeline mergePipeline,
+                          @Value("${merge.worker.enabled:true}") boolean enabled,
+                          @Value("${merge.worker.max-in-flight:16}") int maxInFlight,
+                          @Value("${merge.worker.reap-batch-size:50}") int reapBatchSize,
+                          MeterRegistry meterRegistry) {
+        this.mergeJobService = mergeJobService;
+        this.photoMergeService = photoMergeService;
+        this.mergePipeline = mergePipeline;
+        this.enabled = enabled;
+        this.maxInFlight = maxInFlight;
+        this.reapBatchSize = reapBatchSize;
+        this.workerId = hostName() + ":" + UUID.randomUUID().toString().substring(0, 8);
+        this.slots = new Semaphore(maxInFlight);
+
+        this.succeeded = Counter.builder("merge.jobs.executed").tag("result", "success")
+                .description("执行成功的合照任务数").register(meterRegistry);
+        this.failed = Counter.builder("merge.jobs.executed").tag("result", "failure")
+                .description("执行失败的合照任务数").register(meterRegistry);
+        Gauge.builder("merge.worker.active", running, Map::size)
+                .description("本节点正在执行的合照任务数").register(meterRegistry);
+        Gauge.builder("merge.worker.capacity", this, worker -> worker.maxInFlight)
+                .description("本节点同时执行的合照任务上限").register(meterRegistry);
+
+        logger.info("合照任务执行器: {}，并发上限 {}，{}", workerId, maxInFlight, enabled ? "已启用" : "未启用");
+    }
+
+    /**
+     * 按空闲槽位和流水线入口的空位领取任务
+     */
+    @Scheduled(fixedDelayString = "${merge.worker.poll-interval-ms:1000}")
+    public void poll() {
+        if (!enabled || stopping) {
+            return;
+        }
+        // 只有本方法向流水线入口提交，提交数不超过入口空位时不会阻塞定时任务线程
+        int free = Math.min(slots.availablePermits(), mergePipeline.getAdmissionCapacity());
+        if (free == 0) {
+            return;
+        }
+
+        List<MergeJob> jobs;
+        try {
+            jobs = mergeJobService.claim(workerId, free);
+        } catch (RuntimeException ex) {
+            logger.error("领取合照任务失败", ex);
+            return;
+        }
+        for (MergeJob job : jobs) {
+            // 只有本方法会占用槽位，领取数量不超过空闲数，这里不会失败
+            slots.acquireUninterruptibly();
+            running.put(job.getId(), job.getMergeId());
+            logger.info("开始执行合照任务: 任务 {}，合照 {}，第 {} 次", job.getId(), job.getMergeId(), job.getAttempts());
+            try {
+                mergePipeline.submit(job.getMergeId(), MergeJob.TYPE_REGENERATE.equals(job.getJobType()))
+                        .whenComplete((result, error) -> finish(job, error));
+            } catch (RuntimeException ex) {
+                // 流水线已停止
+                finish(job, ex);
+            }
+        }
+    }
+
+    /**
+     * 根据流水线的结果更新任务状态，在结束该任务的流水线线程中执行
+     */
+    private void finish(MergeJob job, Throwable error) {
+        error = error != null ? MergePipeline.unwrap(error) : null;
+        try {
+            if (error == null) {
+                if (!mergeJobService.complete(job.getId(), workerId)) {
+                    // 租约已被回收，任务可能已由其他节点重新执行，结果以最后写入的为准
+                    logger.warn("合照任务完成时租约已失效: 任务 {}", job.getId());
+                }
+                succeeded.increment();
+            } else if (error instanceof MergeDeferredException deferred) {
+                logger.info("合照任务推迟执行: 任务 {}，合照 {}，{}", job.getId(), job.getMergeId(), deferred.getMessage());
+                mergeJobService.defer(job.getId(), workerId, deferred.getDelaySeconds());
+            } else if (error instanceof MergeCancelledException) {
+                // 任务已在取消时结束，无需更新
+                logger.info("合照任务已取消: 任务 {}，合照 {}", job.getId(), job.getMergeId());
+            } else {
+                failed.increment();
+                logger.error("合照任务执行失败: 任务 {}，合照 {}", job.getId(), job.getMergeId(), error);
+                mergeJobService.fail(job.getId(), workerId, error.getMessage());
+            }
+        } catch (RuntimeException updateEx) {
+            // 状态未能写回时由租约过期后的回收任务处理
+            logger.error("更新合照任务状态失败: 任务 {}", job.getId(), updateEx);
+        } finally {
+            running.remove(job.getId());
+            slots.release();
+        }
+    }
+
+    /**
+     * 为正在执行的任务续租，间隔应明显小于租约时长
+     */
+    @Scheduled(fixedDelayString = "${merge.worker.heartbeat-interval-ms:15000}")
+    public void heartbeat() {
+        if (running.isEmpty()) {
+            return;
+        }
+        try {
+            int renewed = mergeJobService.renewLeases(running.keySet(), workerId);
+            if (renewed < running.size()) {
+                logger.warn("部分合照任务续租失败，可能已被回收: {}/{}", renewed, running.size());
+            }
+        } catch (RuntimeException ex) {
+            logger.error("合照任务续租失败", ex);
+        }
+    }
+
+    /**
+     * 检查正在执行的任务是否已被取消，中止对应的 AI 请求
+     * 本节点收到的取消请求在提交后已直接中止，这里处理在其他节点取消的任务
+     */
+    @Scheduled(fixedDelayString = "${merge.worker.cancel-check-interval-ms:2000}")
+    public void checkCancelled() {
+        if (running.isEmpty()) {
+            return;
+        }
+        try {
+            for (Long jobId : mergeJobService.findCancelled(running.keySet())) {
+                Long mergeId = running.get(jobId);
+                if (mergeId != null) {
+                    photoMergeService.abortGeneration(mergeId);
+                }
+            }
+        } catch (RuntimeException ex) {
+            logger.error("检查已取消的合照任务失败", ex);
+        }
+    }
+
+    /**
+     * 回收租约过期的任务，所有节点都会执行，SKIP LOCKED 保证同一任务只被回收一次
+     */
+    @Scheduled(fixedDelayString = "${merge.worker.reap-interval-ms:30000}")
+    public void reapExpired() {
+        try {
+            int reaped = mergeJobService.reapExpired(reapBatchSize);
+            if (reaped > 0) {
+                logger.info("已回收 {} 个过期合照任务", reaped);
+            }
+        } catch (RuntimeException ex) {
+            logger.error("回收过期合照任务失败", ex);
+        }
+    }
+
+    /**
+     * 停止领取新任务，等待正在执行的任务结束；超时未结束的任务在租约过期后由其他节点接手
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        stopping = true;
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (!running.isEmpty() && System.nanoTime() < deadline) {
+            Thread.sleep(100);
+        }
+        if (!running.isEmpty()) {
+            logger.warn("仍有 {} 个合照任务未完成，将由其他节点在租约过期后接手", running.size());
+        }
+    }
+
+    public String getWorkerId() {
+        return workerId;
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception ex) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,275 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.PhotoMerge;
+import com.example.demo.entity.Scene;
+import com.example.demo.entity.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * 合照链路压测
+ * 应用启动后由 loadtest.clients 个并发客户端各执行 loadtest.merges-per-client 次完整流程：
+ * 写入两张照片 → 提交合照（照片、合照记录在同一事务中写入）→ 轮询状态直到完成 → 读取结果，直接调用各环节的服务，
+ * 结束后在日志中输出吞吐量和各阶段耗时的分位数。配合 AI 服务模拟（ai.simulator.*）可在没有外部服务时
+ * 评估流水线各阶段线程数、并发上限等配置（各阶段的排队和处理耗时见 merge.stage.* 指标）。
+ * 只在 loadtest.enabled=true 时注册，会写入真实的照片和合照记录，只应在测试环境使用
+ */
+@Component
+@ConditionalOnProperty(name = "loadtest.enabled", havingValue = "true")
+public class MergeLoadGenerator {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeLoadGenerator.class);
+
+    private static final List<String> STAGES = List.of("upload", "submit", "generate", "download", "total");
+
+    private final FileStorageService fileStorageService;
+    private final MergeSubmissionService mergeSubmissionService;
+    private final PhotoMergeService photoMergeService;
+    private final SceneService sceneService;
+    private final UserService userService;
+    private final int clients;
+    private final int mergesPerClient;
+    private final String userIds;
+    private final Long sceneId;
+    private final int imageSize;
+    private final boolean uniqueInputs;
+    private final long pollIntervalMs;
+    private final long timeoutMs;
+
+    // 阶段 -> 各次耗时（毫秒）
+    private final Map<String, List<Long>> latencies = new ConcurrentHashMap<>();
+    private final AtomicInteger completed = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public MergeLoadGenerator(FileStorageService fileStorageService,
+                              MergeSubmissionService mergeSubmissionService,
+                              PhotoMergeService photoMergeService,
+                              SceneService sceneService,
+                              UserService userService,
+                              @Value("${loadtest.clients:8}") int clients,
+                              @Value("${loadtest.merges-per-client:10}") int mergesPerClient,
+                              @Value("${loadtest.user-ids:}") String userIds,
+                              @Value("${loadtest.scene-id:#{null}}") Long sceneId,
+                              @Value("${loadtest.image-size:2048}") int imageSize,
+                              @Value("${loadtest.unique-inputs:true}") boolean uniqueInputs,
+                              @Value("${loadtest.poll-interval-ms:500}") long pollIntervalMs,
+                              @Value("${loadtest.timeout-seconds:600}") long timeoutSeconds) {
+        this.fileStorageService = fileStorageService;
+        this.mergeSubmissionService = mergeSubmissionService;
+        this.photoMergeService = photoMergeService;
+        this.sceneService = sceneService;
+        this.userService = userService;
+        this.clients = clients;
+        this.mergesPerClient = mergesPerClient;
+        this.userIds = userIds;
+        this.sceneId = sceneId;
+        this.imageSize = imageSize;
+        this.uniqueInputs = uniqueInputs;
+        this.pollIntervalMs = pollIntervalMs;
+        this.timeoutMs = TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        for (String stage : STAGES) {
+            latencies.put(stage, Collections.synchronizedList(new ArrayList<>()));
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        Thread thread = new Thread(this::run, "merge-loadtest");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        List<User> users = resolveUsers();
+        Long scene = sceneId != null ? sceneId : sceneService.getAllActiveScenes().stream()
+                .map(Scene::getId).findFirst().orElse(null);
+        if (users.isEmpty() || scene == null) {
+            logger.error("合照压测无法开始: 没有可用的用户或场景");
+            return;
+        }
+        logger.warn("合照压测开始: {} 个客户端，每个 {} 次，用户 {} 个，场景 {}",
+                clients, mergesPerClient, users.size(), scene);
+
+        ExecutorService executor = Executors.newFixedThreadPool(clients, runnable -> {
+            Thread thread = new Thread(runnable, "merge-loadtest-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            User user = users.get(i % users.size());
+            executor.execute(() -> runClient(user, scene));
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            return;
+        }
+        report((System.nanoTime() - start) / 1_000_000);
+    }
+
+    private void runClient(User user, Long scene) {
+        byte[] photo1;
+        byte[] photo2;
+        try {
+            photo1 = renderPhoto();
+            photo2 = renderPhoto();
+        } catch (IOException ex) {
+            logger.error("生成压测图片失败", ex);
+            return;
+        }
+
+        for (int i = 0; i < mergesPerClient; i++) {
+            try {
+                runOnce(user, scene, photo1, photo2);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception ex) {
+                failed.incrementAndGet();
+                logger.warn("压测合照失败: {}", ex.getMessage());
+            }
+        }
+    }
+
+    private void runOnce(User user, Long scene, byte[] photo1Bytes, byte[] photo2Bytes) throws Exception {
+        long start = System.nanoTime();
+        long uploaded;
+
+        // 提示词带随机后缀时每次都是新的输入，不会命中结果缓存
+        String prompt = uniqueInputs ? "loadtest " + UUID.randomUUID() : "loadtest";
+        PhotoMerge merge;
+        while (true) {
+            List<StoredFile> stagedFiles = List.of(stage(photo1Bytes), stage(photo2Bytes));
+            uploaded = System.nanoTime();
+            try {
+                merge = mergeSubmissionService.submitStaged(user, stagedFiles, List.of("loadtest.jpg", "loadtest.jpg"),
+                        scene, prompt);
+                break;
+            } catch (MergeBacklogFullException ex) {
+                rejected.incrementAndGet();
+                Thread.sleep(TimeUnit.SECONDS.toMillis(ex.getRetryAfterSeconds()));
+                start = System.nanoTime();
+            }
+        }
+        long submitted = System.nanoTime();
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!merge.isCompleted() && !"FAILED".equals(merge.getStatus())) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeException("等待合照完成超时: " + merge.getId());
+            }
+            Thread.sleep(pollIntervalMs);
+            merge = photoMergeService.getMerge(merge.getId(), user.getId());
+        }
+        if ("FAILED".equals(merge.getStatus())) {
+            throw new RuntimeException("合照生成失败: " + merge.getId());
+        }
+        long generated = System.nanoTime();
+
+        Resource resource = photoMergeService.getMergeResource(merge);
+        try (InputStream in = resource.getInputStream()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        long downloaded = System.nanoTime();
+
+        record("upload", uploaded - start);
+        record("submit", submitted - uploaded);
+        record("generate", generated - submitted);
+        record("download", downloaded - generated);
+        record("total", downloaded - start);
+        completed.incrementAndGet();
+    }
+
+    private StoredFile stage(byte[] content) throws IOException {
+        return fileStorageService.stageStream(new ByteArrayInputStream(content));
+    }
+
+    private void record(String stage, long nanos) {
+        latencies.get(stage).add(TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    private void report(long elapsedMs) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("合照压测结束: 耗时 %.1f 秒，完成 %d，失败 %d，积压拒绝 %d，吞吐 %.2f 次/秒",
+                elapsedMs / 1000.0, completed.get(), failed.get(), rejected.get(),
+                completed.get() * 1000.0 / Math.max(1, elapsedMs)));
+        for (String stage : STAGES) {
+            long[] values;
+            synchronized (latencies.get(stage)) {
+                values = latencies.get(stage).stream().mapToLong(Long::longValue).sorted().toArray();
+            }
+            if (values.length == 0) {
+                continue;
+            }
+            report.append(String.format("%n  %-8s p50=%d ms  p90=%d ms  p99=%d ms  max=%d ms", stage,
+                    percentile(values, 0.5), percentile(values, 0.9), percentile(values, 0.99),
+                    values[values.length - 1]));
+        }
+        logger.warn(report.toString());
+    }
+
+    private static long percentile(long[] sorted, double quantile) {
+        int index = (int) Math.ceil(quantile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private List<User> resolveUsers() {
+        if (userIds == null || userIds.isBlank()) {
+            return userService.findAllUsers();
+        }
+        return Arrays.stream(userIds.split(","))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .map(id -> userService.findUserById(Long.parseLong(id)).orElse(null))
+                .filter(user -> user != null)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * 生成随机噪点图片，每个客户端内容不同，编码后的大小接近真实照片
+     */
+    private byte[] renderPhoto() throws IOException {
+        BufferedImage image = new BufferedImage(imageSize, imageSize * 3 / 4, BufferedImage.TYPE_INT_RGB);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int y = 0; y < image.getHeight(); y++) {
+            for (int x = 0; x < image.getWidth(); x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "jpg", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 合照生成流水线
+ * 一次生成拆成五个阶段，各自使用按所占资源配置的线程池和有界队列：
+ * 准备（读数据库、认领指纹）→ 预处理（解码缩放，CPU）→ AI 调用（只发起请求，等待响应不占线程）
+ * → 保存结果文件（磁盘）→ 完成（写数据库）。结果来自缓存或本节点内相同输入的任务时跳过中间三个阶段。
+ * 下游队列满时上游阶段的线程阻塞，准备阶段的队列满后任务执行器停止领取新任务。
+ * AI 响应在 HttpClient 的线程上完成（取消时在取消方的线程上），之后的处理先转到交接线程再提交给保存阶段，
+ * 保存阶段排满时阻塞的是交接线程，HttpClient 的线程不会被阻塞或占用。交接队列不设上限，
+ * 其中的任务数不超过流水线中的任务总数（由任务执行器的 merge.worker.max-in-flight 限制）
+ */
+@Service
+public class MergePipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergePipeline.class);
+
+    private final PhotoMergeService photoMergeService;
+    private final MergeStage prepareStage;
+    private final MergeStage preprocessStage;
+    private final MergeStage invokeStage;
+    private final MergeStage persistStage;
+    private final MergeStage finalizeStage;
+    private final ExecutorService handoffExecutor;
+
+    public MergePipeline(PhotoMergeService photoMergeService,
+                         @Value("${merge.pipeline.prepare.threads:2}") int prepareThreads,
+                         @Value("${merge.pipeline.prepare.queue-capacity:16}") int prepareQueue,
+                         @Value("${merge.pipeline.preprocess.threads:2}") int preprocessThreads,
+                         @Value("${merge.pipeline.preprocess.queue-capacity:8}") int preprocessQueue,
+                         @Value("${merge.pipeline.invoke.threads:2}") int invokeThreads,
+                         @Value("${merge.pipeline.invoke.queue-capacity:32}") int invokeQueue,
+                         @Value("${merge.pipeline.persist.threads:2}") int persistThreads,
+                         @Value("${merge.pipeline.persist.queue-capacity:16}") int persistQueue,
+                         @Value("${merge.pipeline.finalize.threads:2}") int finalizeThreads,
+                         @Value("${merge.pipeline.finalize.queue-capacity:16}") int finalizeQueue,
+                         MeterRegistry meterRegistry) {
+        this.photoMergeService = photoMergeService;
+        this.prepareStage = new MergeStage("prepare", prepareThreads, prepareQueue, meterRegistry);
+        this.preprocessStage = new MergeStage("preprocess", preprocessThreads, preprocessQueue, meterRegistry);
+        this.invokeStage = new MergeStage("invoke", invokeThreads, invokeQueue, meterRegistry);
+        this.persistStage = new MergeStage("persist", persistThreads, persistQueue, meterRegistry);
+        this.finalizeStage = new MergeStage("finalize", finalizeThreads, finalizeQueue, meterRegistry);
+        this.handoffExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "merge-handoff");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * 提交一次生成
+     * 提交本身只在准备阶段队列已满时阻塞，调用方应按 getAdmissionCapacity 控制提交数量
+     *
+     * @param mergeId 合照ID
+     * @param regenerate 是否为重新生成（替换已有结果）
+     * @return 生成完成时正常结束；失败时的原因经 unwrap 取出为原异常（MergeDeferredException 表示推迟，
+     *         MergeCancelledException 表示已取消），后续阶段收到的可能是包装它的 CompletionException
+     */
+    public CompletableFuture<Void> submit(Long mergeId, boolean regenerate) {
+        MergeTask task = new MergeTask(mergeId, regenerate);
+        return prepareStage.supply(() -> {
+                    photoMergeService.prepareMerge(task);
+                    return task;
+                })
+                .thenCompose(prepared -> {
+                    if (prepared.generate) {
+                        return generate(prepared);
+                    }
+                    if (prepared.sharedFlight != null) {
+                        return photoMergeService.awaitSharedResult(prepared);
+                    }
+                    return CompletableFuture.completedFuture(prepared);
+                })
+                .thenCompose(generated -> finalizeStage.supply(() -> {
+                    photoMergeService.finalizeMerge(generated);
+                    return (Void) null;
+                }))
+                .whenComplete((result, error) -> {
+                    try {
+                        if (error != null) {
+                            photoMergeService.abortMerge(task, unwrap(error));
+                        }
+                    } finally {
+                        photoMergeService.releaseTask(task);
+                    }
+                });
+    }
+
+    private CompletableFuture<MergeTask> generate(MergeTask task) {
+        return preprocessStage.supply(() -> {
+                    photoMergeService.prepareGeneration(task);
+                    return task;
+                })
+                .thenCompose(prepared -> invokeStage.compose(() -> photoMergeService.invokeGeneration(prepared)))
+                // 成功和失败都先转到交接线程，后续的阻塞提交、数据库和文件操作不在 HttpClient 的线程上执行
+                .whenCompleteAsync((staged, error) -> { }, handoffExecutor)
+                .thenCompose(staged -> persistStage.supply(() -> {
+                    photoMergeService.persistResult(task);
+                    return task;
+                }));
+    }
+
+    /**
+     * 当前可以提交而不阻塞的任务数
+     */
+    public int getAdmissionCapacity() {
+        return prepareStage.remainingCapacity();
+    }
+
+    /**
+     * 按上下游顺序停止各阶段，已提交的任务尽量处理完
+     */
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        for (MergeStage stage : List.of(prepareStage, preprocessStage, invokeStage)) {
+            shutdown(stage);
+        }
+        handoffExecutor.shutdown();
+        if (!handoffExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            logger.warn("合照流水线交接线程未能在超时前处理完");
+            handoffExecutor.shutdownNow();
+        }
+        for (MergeStage stage : List.of(persistStage, finalizeStage)) {
+            shutdown(stage);
+        }
+    }
+
+    private static void shutdown(MergeStage stage) throws InterruptedException {
+        if (!stage.shutdown(10_000)) {
+            logger.warn("合照流水线阶段未能在超时前处理完: {}", stage.getName());
+        }
+    }
+
+    /**
+     * 取出 CompletionException 包装的原异常
+     */
+    static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
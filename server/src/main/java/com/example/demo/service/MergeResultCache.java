@@ -0,0 +1,329 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.MergeResult;
+import com.example.demo.entity.Photo;
+import com.example.demo.entity.Scene;
+import com.example.demo.repository.MergeResultRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.text.Normalizer;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * 合照结果缓存
+ * 以输入指纹（两张照片和场景预览图的内容哈希、规范化后的提示词、模型版本）为键记录已生成的结果文件，
+ * 相同输入的合照直接引用已有结果，不再调用 AI 服务。结果文件可能被多条合照共享，
+ * 只有最后一条引用它的合照删除时才删除文件和缓存记录。
+ * 尚未生成的指纹由第一个认领的节点写入 PENDING 占位记录并负责生成，其他节点看到占位记录后等待其结果；
+ * 占位记录带租约，负责节点定期续租，失联后其他节点可在租约过期后接手
+ */
+@Service
+public class MergeResultCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeResultCache.class);
+
+    // 未记录内容哈希的文件（场景预览图、早期照片）的哈希缓存上限
+    private static final int MAX_FILE_HASHES = 1000;
+
+    private final MergeResultRepository mergeResultRepository;
+    private final String modelVersion;
+    private final long pendingLeaseSeconds;
+    private final String nodeId;
+
+    // 本节点负责生成的指纹，定时续租
+    private final Set<String> leading = ConcurrentHashMap.newKeySet();
+
+    // 路径|大小|修改时间 -> 内容哈希，按访问顺序排列，超过上限时淘汰最久未用的
+    private final LinkedHashMap<String, String> fileHashes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_FILE_HASHES;
+        }
+    };
+
+    private final Counter hits;
+    private final Counter misses;
+
+    public MergeResultCache(MergeResultRepository mergeResultRepository,
+                            @Value("${ai.model.version:v1}") String modelVersion,
+                            @Value("${merge.coalesce.lease-seconds:120}") long pendingLeaseSeconds,
+                            MeterRegistry meterRegistry) {
+        this.mergeResultRepository = mergeResultRepository;
+        this.modelVersion = modelVersion;
+        this.pendingLeaseSeconds = pendingLeaseSeconds;
+        this.nodeId = hostName() + ":" + UUID.randomUUID().toString().substring(0, 8);
+
+        this.hits = Counter.builder("merge.result.cache").tag("result", "hit")
+                .description("合照结果缓存命中次数").register(meterRegistry);
+        this.misses = Counter.builder("merge.result.cache").tag("result", "miss")
+                .description("合照结果缓存未命中次数").register(meterRegistry);
+    }
+
+    /**
+     * 计算合照输入指纹
+     *
+     * @return 指纹，任一输入文件无法读取时返回 null（不参与缓存）
+     */
+    public String fingerprint(Photo photo1, Photo photo2, Scene scene, String promptText) {
+        String photo1Hash = contentHash(photo1.getFilePath(), photo1.getContentHash());
+        String photo2Hash = contentHash(photo2.getFilePath(), photo2.getContentHash());
+        String sceneHash = contentHash(scene.getPreviewImage(), null);
+        if (photo1Hash == null || photo2Hash == null || sceneHash == null) {
+            return null;
+        }
+
+        String identity = photo1Hash + "|" + photo2Hash + "|" + sceneHash + "|"
+                + normalizePrompt(promptText) + "|" + modelVersion;
+        return HexFormat.of().formatHex(FileStorageService.sha256().digest(identity.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * 查找指纹对应的结果
+     * 记录存在但文件已丢失时删除记录并视为未命中
+     */
+    public Optional<MergeResult> lookup(String fingerprint) {
+        if (fingerprint == null) {
+            return Optional.empty();
+        }
+        Optional<MergeResult> cached = findReady(fingerprint);
+        if (cached.isPresent()) {
+            recordHit(cached.get());
+        } else {
+            misses.increment();
+        }
+        return cached;
+    }
+
+    /**
+     * 批量查找指纹对应的结果，用一次查询取回整批记录，命中的记录一次更新
+     * 记录存在但文件已丢失时删除记录并视为未命中
+     *
+     * @return 指纹 -> 可用结果，只包含命中的指纹
+     */
+    public Map<String, MergeResult> lookupAll(Collection<String> fingerprints) {
+        Set<String> distinct = fingerprints.stream().filter(Objects::nonNull).collect(Collectors.toSet());
+        if (distinct.isEmpty()) {
+            return Map.of();
+        }
+        Map<String, MergeResult> found = new HashMap<>();
+        for (MergeResult result : mergeResultRepository.findByFingerprintIn(distinct)) {
+            if (!result.isReady()) {
+                continue;
+            }
+            if (!Files.isRegularFile(Paths.get(result.getResultPath()))) {
+                logger.warn("缓存的合照结果文件已不存在: {}", result.getResultPath());
+                mergeResultRepository.delete(result);
+                continue;
+            }
+            found.put(result.getFingerprint(), result);
+        }
+        if (!found.isEmpty()) {
+            hits.increment(found.size());
+            mergeResultRepository.recordHits(found.values().stream().map(MergeResult::getId)
+                    .collect(Collectors.toList()), LocalDateTime.now());
+            logger.info("合照结果缓存批量命中: {}/{}", found.size(), distinct.size());
+        }
+        misses.increment(distinct.size() - found.size());
+        return found;
+    }
+
+    /**
+     * 认领指纹的生成权
+     *
+     * @return READY 表示已有可用结果；LEADER 表示由本节点生成，生成后须调用 store 或 abandon；
+     *         PENDING 表示其他节点正在生成
+     */
+    public Claim claim(String fingerprint) {
+        LocalDateTime now = LocalDateTime.now();
+        LocalDateTime leaseUntil = now.plusSeconds(pendingLeaseSeconds);
+        if (mergeResultRepository.insertPending(fingerprint, nodeId, leaseUntil, modelVersion) > 0
+                || mergeResultRepository.takeOverExpired(fingerprint, nodeId, leaseUntil, now) > 0) {
+            leading.add(fingerprint);
+            return new Claim(ClaimStatus.LEADER, null);
+        }
+
+        Optional<MergeResult> ready = findReady(fingerprint);
+        if (ready.isPresent()) {
+            recordHit(ready.get());
+            return new Claim(ClaimStatus.READY, ready.get());
+        }
+        // 记录刚被删除（生成失败或文件丢失）时重新认领一次
+        if (mergeResultRepository.findByFingerprint(fingerprint).isEmpty()
+                && mergeResultRepository.insertPending(fingerprint, nodeId, leaseUntil, modelVersion) > 0) {
+            leading.add(fingerprint);
+            return new Claim(ClaimStatus.LEADER, null);
+        }
+        return new Claim(ClaimStatus.PENDING, null);
+    }
+
+    /**
+     * 记录生成的结果，已有记录时替换为新结果
+     */
+    public void store(String fingerprint, StoredFile result) {
+        if (fingerprint == null) {
+            return;
+        }
+        mergeResultRepository.upsert(fingerprint, result.getPath(), result.getSha256(), modelVersion);
+        leading.remove(fingerprint);
+    }
+
+    /**
+     * 放弃生成（生成失败），删除本节点的占位记录
+     */
+    public void abandon(String fingerprint) {
+        if (leading.remove(fingerprint)) {
+            mergeResultRepository.deletePending(fingerprint, nodeId);
+        }
+    }
+
+    /**
+     * 为本节点正在生成的占位记录续租
+     */
+    @Scheduled(fixedDelayString = "${merge.coalesce.renew-interval-ms:30000}")
+    public void renewLeases() {
+        if (leading.isEmpty()) {
+            return;
+        }
+        try {
+            mergeResultRepository.renewPending(Set.copyOf(leading), nodeId,
+                    LocalDateTime.now().plusSeconds(pendingLeaseSeconds));
+        } catch (RuntimeException ex) {
+            logger.error("合照结果占位记录续租失败", ex);
+        }
+    }
+
+    private Optional<MergeResult> findReady(String fingerprint) {
+        Optional<MergeResult> cached = mergeResultRepository.findByFingerprint(fingerprint)
+                .filter(MergeResult::isReady);
+        if (cached.isPresent() && !Files.isRegularFile(Paths.get(cached.get().getResultPath()))) {
+            logger.warn("缓存的合照结果文件已不存在: {}", cached.get().getResultPath());
+            mergeResultRepository.delete(cached.get());
+            return Optional.empty();
+        }
+        return cached;
+    }
+
+    private void recordHit(MergeResult result) {
+        hits.increment();
+        mergeResultRepository.recordHit(result.getId(), LocalDateTime.now());
+        logger.info("合照结果缓存命中: {}", result.getFingerprint());
+    }
+
+    /**
+     * 结果文件已无合照引用，删除指向它的缓存记录
+     */
+    public void evict(String resultPath) {
+        mergeResultRepository.deleteByResultPath(resultPath);
+    }
+
+    /**
+     * 提示词规范化：兼容字符统一、去掉首尾空白、连续空白合并为一个空格
+     */
+    static String normalizePrompt(String promptText) {
+        if (promptText == null) {
+            return "";
+        }
+        return Normalizer.normalize(promptText, Normalizer.Form.NFKC).trim().replaceAll("\\s+", " ");
+    }
+
+    private String contentHash(String filePath, String knownHash) {
+        if (knownHash != null) {
+            return knownHash;
+        }
+        if (filePath == null || filePath.isEmpty()) {
+            return null;
+        }
+
+        Path path = Paths.get(filePath).toAbsolutePath().normalize();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            String key = path + "|" + attributes.size() + "|" + attributes.lastModifiedTime().toMillis();
+            String hash;
+            synchronized (fileHashes) {
+                hash = fileHashes.get(key);
+            }
+            if (hash == null) {
+                // 在锁外计算，大文件不阻塞其他查询
+                hash = hashFile(path);
+                synchronized (fileHashes) {
+                    fileHashes.put(key, hash);
+                }
+            }
+            return hash;
+        } catch (IOException ex) {
+            logger.warn("无法读取合照输入文件，跳过结果缓存: {}", filePath);
+            return null;
+        }
+    }
+
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (Exception ex) {
+            return "unknown";
+        }
+    }
+
+    private static String hashFile(Path path) throws IOException {
+        MessageDigest digest = FileStorageService.sha256();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(path)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    public enum ClaimStatus {
+        READY, LEADER, PENDING
+    }
+
+    /**
+     * 认领结果
+     */
+    public static class Claim {
+        private final ClaimStatus status;
+        private final MergeResult result;
+
+        private Claim(ClaimStatus status, MergeResult result) {
+            this.status = status;
+            this.result = result;
+        }
+
+        public ClaimStatus getStatus() {
+            return status;
+        }
+
+        public MergeResult getResult() {
+            return result;
+        }
+    }
+}
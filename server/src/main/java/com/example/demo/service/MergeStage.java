@@ -0,0 +1,141 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 合照流水线的一个阶段
+ * 固定线程数和有界队列，队列满时提交方线程阻塞等待空位，下游处理不过来时压力逐级传回上游。
+ * 各阶段只向下游提交，不会形成等待环。提交可能阻塞，不能在 HttpClient 等 I/O 线程上直接提交。
+ * 指标都带 stage 标签：merge.stage.queue（排队数）、merge.stage.active（处理中数）、
+ * merge.stage.wait（排队耗时）、merge.stage.service（处理耗时，计数即吞吐量）、merge.stage.errors（失败数）
+ */
+class MergeStage {
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger active = new AtomicInteger();
+    private final Timer waitTimer;
+    private final Timer serviceTimer;
+    private final Counter errors;
+
+    MergeStage(String name, int threads, int queueCapacity, MeterRegistry meterRegistry) {
+        this.name = name;
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)), runnable -> {
+                    Thread thread = new Thread(runnable, "merge-" + name + "-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, (task, pool) -> {
+                    // 队列已满，提交方等待空位
+                    if (pool.isShutdown()) {
+                        throw new RejectedExecutionException("合照流水线已停止: " + name);
+                    }
+                    try {
+                        pool.getQueue().put(task);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("等待合照流水线阶段时被中断: " + name, ex);
+                    }
+                });
+
+        Gauge.builder("merge.stage.queue", executor, pool -> pool.getQueue().size()).tag("stage", name)
+                .description("合照流水线阶段排队中的任务数").register(meterRegistry);
+        Gauge.builder("merge.stage.active", active, AtomicInteger::get).tag("stage", name)
+                .description("合照流水线阶段处理中的任务数").register(meterRegistry);
+        this.waitTimer = Timer.builder("merge.stage.wait").tag("stage", name)
+                .description("合照流水线阶段的排队耗时").register(meterRegistry);
+        this.serviceTimer = Timer.builder("merge.stage.service").tag("stage", name)
+                .description("合照流水线阶段的处理耗时").register(meterRegistry);
+        this.errors = Counter.builder("merge.stage.errors").tag("stage", name)
+                .description("合照流水线阶段处理失败的任务数").register(meterRegistry);
+    }
+
+    /**
+     * 在本阶段执行同步处理
+     */
+    <T> CompletableFuture<T> supply(Supplier<T> work) {
+        long enqueued = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            long start = begin(enqueued);
+            boolean failed = true;
+            try {
+                T result = work.get();
+                failed = false;
+                return result;
+            } finally {
+                end(start, failed);
+            }
+        }, executor);
+    }
+
+    /**
+     * 在本阶段发起异步操作（如 AI 请求），线程只负责发起；处理中数和处理耗时统计到异步操作结束
+     */
+    <T> CompletableFuture<T> compose(Supplier<CompletableFuture<T>> work) {
+        long enqueued = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            long start = begin(enqueued);
+            CompletableFuture<T> pending;
+            try {
+                pending = work.get();
+            } catch (RuntimeException ex) {
+                end(start, true);
+                throw ex;
+            }
+            return pending.whenComplete((result, error) -> end(start, error != null));
+        }, executor).thenCompose(Function.identity());
+    }
+
+    /**
+     * 队列剩余空位，提交不超过这个数量时不会阻塞
+     */
+    int remainingCapacity() {
+        return executor.getQueue().remainingCapacity();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    /**
+     * 停止接收新任务，等待已提交的任务处理完
+     *
+     * @return 超时前全部处理完时返回 true
+     */
+    boolean shutdown(long timeoutMillis) throws InterruptedException {
+        executor.shutdown();
+        if (executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        executor.shutdownNow();
+        return false;
+    }
+
+    private long begin(long enqueued) {
+        long start = System.nanoTime();
+        waitTimer.record(start - enqueued, TimeUnit.NANOSECONDS);
+        active.incrementAndGet();
+        return start;
+    }
+
+    private void end(long start, boolean failed) {
+        active.decrementAndGet();
+        serviceTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        if (failed) {
+            errors.increment();
+        }
+    }
+}
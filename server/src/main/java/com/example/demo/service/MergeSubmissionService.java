@@ -0,0 +1,128 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.Photo;
+import com.example.demo.entity.PhotoMerge;
+import com.example.demo.entity.Prompt;
+import com.example.demo.entity.User;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 合照提交服务（上传两张照片并创建一个或一批合照）
+ * 两张照片先在批量上传的 I/O 线程池中并行写入暂存目录，不占用数据库连接；
+ * 随后在一个事务中依次写入内容引用（一个 JDBC 批次）、照片记录（一个 JDBC 批次）、提示词、合照记录和生成任务。
+ * 事务回滚时本次新写入的照片文件由 PhotoBlobService 补偿删除，暂存文件无论成败都会删除。
+ * 事务耗时（约等于占用数据库连接的时间）记录在 merge.submit.transaction 指标中
+ */
+@Service
+public class MergeSubmissionService {
+
+    private static final Logger logger = LoggerFactory.getLogger(MergeSubmissionService.class);
+
+    private final PhotoBatchService photoBatchService;
+    private final FileStorageService fileStorageService;
+    private final PhotoService photoService;
+    private final PromptService promptService;
+    private final PhotoMergeService photoMergeService;
+    private final TransactionTemplate transactionTemplate;
+    private final Timer transactionTimer;
+
+    public MergeSubmissionService(PhotoBatchService photoBatchService,
+                                  FileStorageService fileStorageService,
+                                  PhotoService photoService,
+                                  PromptService promptService,
+                                  PhotoMergeService photoMergeService,
+                                  TransactionTemplate transactionTemplate,
+                                  MeterRegistry meterRegistry) {
+        this.photoBatchService = photoBatchService;
+        this.fileStorageService = fileStorageService;
+        this.photoService = photoService;
+        this.promptService = promptService;
+        this.photoMergeService = photoMergeService;
+        this.transactionTemplate = transactionTemplate;
+        this.transactionTimer = Timer.builder("merge.submit.transaction")
+                .description("合照提交事务的耗时")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 上传两张照片并创建合照
+     *
+     * @param user 用户
+     * @param photo1 第一张照片
+     * @param photo2 第二张照片
+     * @param sceneId 场景ID
+     * @param promptText 提示词，非空时同时保存为用户的提示词
+     * @return 已提交的合照
+     * @throws MergeBacklogFullException 用户未完成的任务已达上限
+     */
+    public PhotoMerge submitMerge(User user, MultipartFile photo1, MultipartFile photo2,
+                                  Long sceneId, String promptText) {
+        List<StoredFile> stagedFiles = photoBatchService.stageFiles(List.of(photo1, photo2));
+        return submitStaged(user, stagedFiles, List.of(originalFilename(photo1), originalFilename(photo2)),
+                sceneId, promptText);
+    }
+
+    /**
+     * 用已写入暂存目录的两张照片创建合照，暂存文件在返回前都会被移走或删除
+     *
+     * @param stagedFiles 两张照片的暂存文件
+     * @param originalFilenames 与暂存文件对应的原始文件名
+     * @throws MergeBacklogFullException 用户未完成的任务已达上限
+     */
+    public PhotoMerge submitStaged(User user, List<StoredFile> stagedFiles, List<String> originalFilenames,
+                                   Long sceneId, String promptText) {
+        PhotoMerge merge = withStagedPhotos(user, stagedFiles, originalFilenames, photos -> {
+            if (promptText != null && !promptText.trim().isEmpty()) {
+                Prompt prompt = new Prompt();
+                prompt.setContent(promptText);
+                prompt.setIsPublic(false);
+                promptService.createPrompt(prompt, user);
+            }
+            return photoMergeService.createMerge(user, photos.get(0), photos.get(1), sceneId, promptText);
+        });
+        logger.info("合照已提交: {}，用户 {}", merge.getId(), user.getId());
+        return merge;
+    }
+
+    /**
+     * 上传两张照片并批量创建合照（同一对照片搭配多个场景），照片和整批合照在同一事务中写入，
+     * 场景不存在、积压已满等任何一步失败时照片也不会保存
+     *
+     * @param items 场景及提示词
+     * @return 与输入顺序一致的合照
+     * @throws MergeBacklogFullException 需要生成的合照加入后用户未完成的任务数将超过上限
+     */
+    public List<PhotoMerge> submitMergeBatch(User user, MultipartFile photo1, MultipartFile photo2,
+                                             List<MergeBatchItem> items) {
+        photoMergeService.validateBatchItems(items);
+        List<StoredFile> stagedFiles = photoBatchService.stageFiles(List.of(photo1, photo2));
+        return withStagedPhotos(user, stagedFiles, List.of(originalFilename(photo1), originalFilename(photo2)),
+                photos -> photoMergeService.createMergeBatch(user, photos.get(0), photos.get(1), items));
+    }
+
+    /**
+     * 在一个事务中保存暂存的照片并执行后续写入，暂存文件在返回前都会被移走或删除
+     */
+    private <T> T withStagedPhotos(User user, List<StoredFile> stagedFiles, List<String> originalFilenames,
+                                   Function<List<Photo>, T> work) {
+        try {
+            return transactionTimer.record(() -> transactionTemplate.execute(status ->
+                    work.apply(photoService.uploadStagedPhotos(stagedFiles, originalFilenames, user))));
+        } finally {
+            stagedFiles.forEach(fileStorageService::discardStagedFile);
+        }
+    }
+
+    private String originalFilename(MultipartFile file) {
+        return file.getOriginalFilename() != null ? file.getOriginalFilename() : "unknown";
+    }
+}
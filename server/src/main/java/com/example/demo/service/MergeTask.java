@@ -0,0 +1,43 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.PhotoMerge;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 一次合照生成在流水线各阶段之间传递的状态
+ * 各阶段依次访问，由 CompletableFuture 的衔接保证可见性；取消标记和进行中的 AI 调用会被其他线程读写
+ */
+class MergeTask {
+
+    final Long mergeId;
+    final boolean regenerate;
+
+    PhotoMerge merge;
+    Long userId;
+    String previousResult;
+    String fingerprint;
+
+    // 需要调用 AI 生成；为 false 时结果来自缓存或本节点内相同输入的任务
+    boolean generate;
+    // 生成后写入结果缓存
+    boolean storeResult;
+    // 认领了指纹的生成权，失败时须放弃
+    boolean leader;
+    // 本任务发起的生成，本节点内相同输入的任务等待它
+    CompletableFuture<StoredFile> flight;
+    // 本任务等待的其他任务的生成
+    CompletableFuture<StoredFile> sharedFlight;
+
+    AIService.PreparedCall preparedCall;
+    StoredFile staged;
+    StoredFile result;
+
+    volatile boolean cancelled;
+    volatile CompletableFuture<StoredFile> call;
+
+    MergeTask(Long mergeId, boolean regenerate) {
+        this.mergeId = mergeId;
+        this.regenerate = regenerate;
+    }
+}
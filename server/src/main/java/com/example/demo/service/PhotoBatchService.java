@@ -0,0 +1,213 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.Photo;
+import com.example.demo.entity.User;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 批量上传服务
+ * 各文件在独立的有界 I/O 线程池中并行写入暂存目录（同时计算哈希、识别类型），
+ * 写入成功的文件在同一事务中以 JDBC 批处理写入内容引用和照片记录。
+ * 单个文件失败不影响其他文件，结果按请求中的顺序逐项返回
+ */
+@Service
+public class PhotoBatchService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PhotoBatchService.class);
+
+    private final FileStorageService fileStorageService;
+    private final PhotoService photoService;
+    private final int maxFiles;
+    private final ThreadPoolExecutor executor;
+
+    public PhotoBatchService(FileStorageService fileStorageService,
+                             PhotoService photoService,
+                             @Value("${photo.batch.io-threads:4}") int ioThreads,
+                             @Value("${photo.batch.queue-capacity:100}") int queueCapacity,
+                             @Value("${photo.batch.max-files:50}") int maxFiles) {
+        this.fileStorageService = fileStorageService;
+        this.photoService = photoService;
+        this.maxFiles = maxFiles;
+
+        AtomicInteger counter = new AtomicInteger();
+        // 队列满时由请求线程自己写入，相当于对上传方施加背压
+        this.executor = new ThreadPoolExecutor(ioThreads, ioThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                    Thread thread = new Thread(runnable, "photo-batch-io-" + counter.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public int getMaxFiles() {
+        return maxFiles;
+    }
+
+    /**
+     * 批量上传照片
+     *
+     * @param files 上传的文件
+     * @param user 用户
+     * @return 与文件顺序一致的逐项结果，成功项为照片，失败项为错误说明
+     */
+    public List<BatchItemResult> uploadPhotos(List<MultipartFile> files, User user) {
+        List<CompletableFuture<StoredFile>> futures = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            futures.add(CompletableFuture.supplyAsync(() -> fileStorageService.stageFile(file), executor));
+        }
+
+        BatchItemResult[] results = new BatchItemResult[files.size()];
+        List<Integer> stagedIndexes = new ArrayList<>();
+        List<StoredFile> stagedFiles = new ArrayList<>();
+        List<String> stagedNames = new ArrayList<>();
+        for (int i = 0; i < files.size(); i++) {
+            String fileName = originalFilename(files.get(i));
+            try {
+                StoredFile staged = futures.get(i).join();
+                if (staged.getSniffedType() == null) {
+                    fileStorageService.discardStagedFile(staged);
+                    results[i] = BatchItemResult.failure(i, fileName, "不支持的图片格式");
+                    continue;
+                }
+                stagedIndexes.add(i);
+                stagedFiles.add(staged);
+                stagedNames.add(fileName);
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                logger.warn("批量上传中的文件写入失败: {}", fileName, cause);
+                results[i] = BatchItemResult.failure(i, fileName, cause.getMessage());
+            }
+        }
+
+        if (!stagedFiles.isEmpty()) {
+            try {
+                List<Photo> photos = photoService.uploadStagedPhotos(stagedFiles, stagedNames, user);
+                for (int j = 0; j < photos.size(); j++) {
+                    int index = stagedIndexes.get(j);
+                    results[index] = BatchItemResult.success(index, photos.get(j));
+                }
+            } catch (RuntimeException ex) {
+                // 批量写入在同一事务中，失败时所有暂存文件均已删除
+                logger.error("批量保存照片失败", ex);
+                for (int j = 0; j < stagedIndexes.size(); j++) {
+                    int index = stagedIndexes.get(j);
+                    results[index] = BatchItemResult.failure(index, stagedNames.get(j), "保存照片失败");
+                }
+            }
+        }
+
+        List<BatchItemResult> resultList = List.of(results);
+        logger.info("批量上传完成: 共 {} 个文件，成功 {} 个", files.size(),
+                resultList.stream().filter(BatchItemResult::isSuccess).count());
+        return resultList;
+    }
+
+    /**
+     * 并行写入暂存目录，全部成功时按顺序返回暂存文件，调用方负责在使用后丢弃
+     * 任何一个文件写入失败或不是支持的图片格式时丢弃已写入的文件并抛出异常
+     *
+     * @param files 上传的文件
+     * @return 与文件顺序一致的暂存文件
+     */
+    public List<StoredFile> stageFiles(List<MultipartFile> files) {
+        List<CompletableFuture<StoredFile>> futures = new ArrayList<>(files.size());
+        for (MultipartFile file : files) {
+            futures.add(CompletableFuture.supplyAsync(() -> fileStorageService.stageFile(file), executor));
+        }
+
+        List<StoredFile> stagedFiles = new ArrayList<>(files.size());
+        RuntimeException failure = null;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                StoredFile staged = futures.get(i).join();
+                stagedFiles.add(staged);
+                if (staged.getSniffedType() == null && failure == null) {
+                    failure = new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                            "不支持的图片格式: " + originalFilename(files.get(i)));
+                }
+            } catch (CompletionException ex) {
+                Throwable cause = ex.getCause() != null ? ex.getCause() : ex;
+                logger.warn("文件写入失败: {}", originalFilename(files.get(i)), cause);
+                if (failure == null) {
+                    failure = new RuntimeException("照片上传失败: " + cause.getMessage(), cause);
+                }
+            }
+        }
+        if (failure != null) {
+            stagedFiles.forEach(fileStorageService::discardStagedFile);
+            throw failure;
+        }
+        return stagedFiles;
+    }
+
+    private String originalFilename(MultipartFile file) {
+        return file.getOriginalFilename() != null ? file.getOriginalFilename() : "unknown";
+    }
+
+    /**
+     * 批量上传中单个文件的结果
+     */
+    public static class BatchItemResult {
+
+        private final int index;
+        private final String fileName;
+        private final Photo photo;
+        private final String message;
+
+        private BatchItemResult(int index, String fileName, Photo photo, String message) {
+            this.index = index;
+            this.fileName = fileName;
+            this.photo = photo;
+            this.message = message;
+        }
+
+        static BatchItemResult success(int index, Photo photo) {
+            return new BatchItemResult(index, photo.getFileName(), photo, null);
+        }
+
+        static BatchItemResult failure(int index, String fileName, String message) {
+            return new BatchItemResult(index, fileName, null, message);
+        }
+
+        public boolean isSuccess() {
+            return photo != null;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        public String getFileName() {
+            return fileName;
+        }
+
+        public Photo getPhoto() {
+            return photo;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
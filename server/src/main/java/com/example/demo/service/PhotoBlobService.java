@@ -0,0 +1,209 @@
+package com.example.demo.service;
+
+import com.example.demo.repository.PhotoBlobRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * 照片内容存储服务
+ * 照片按内容的 SHA-256 存放，同一内容只保存一份文件，photo_blobs 表记录引用数。
+ * 新增引用和删除记录都在数据库行锁内完成：删除方在删除记录后、提交前删除文件，
+ * 并发上传同一内容的一方会在插入时等待删除方提交，随后发现文件不存在并重新写入。
+ * 批量增加引用时新写入的文件在事务回滚后按同样的方式补偿删除
+ */
+@Service
+public class PhotoBlobService {
+
+    private static final Logger logger = LoggerFactory.getLogger(PhotoBlobService.class);
+
+    // 与 PhotoBlobRepository.addReference 相同的语句，批量场景下通过 JDBC 批处理执行
+    private static final String ADD_REFERENCE_SQL =
+            "INSERT INTO photo_blobs (sha256, file_path, file_size, content_type, ref_count, created_at) "
+            + "VALUES (?, ?, ?, ?, 1, CURRENT_TIMESTAMP) "
+            + "ON CONFLICT (sha256) DO UPDATE SET ref_count = photo_blobs.ref_count + 1";
+
+    private final PhotoBlobRepository photoBlobRepository;
+    private final FileStorageService fileStorageService;
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedParameterJdbcTemplate;
+    // 回滚补偿在原事务结束后执行，使用独立的新事务
+    private final TransactionTemplate compensationTransaction;
+
+    @Autowired
+    public PhotoBlobService(PhotoBlobRepository photoBlobRepository, FileStorageService fileStorageService,
+                            JdbcTemplate jdbcTemplate, NamedParameterJdbcTemplate namedParameterJdbcTemplate,
+                            PlatformTransactionManager transactionManager) {
+        this.photoBlobRepository = photoBlobRepository;
+        this.fileStorageService = fileStorageService;
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedParameterJdbcTemplate = namedParameterJdbcTemplate;
+        this.compensationTransaction = new TransactionTemplate(transactionManager);
+        this.compensationTransaction.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    }
+
+    /**
+     * 存储上传的照片，内容已存在时只增加引用
+     *
+     * @param file 上传的文件
+     * @return 存储的文件信息（最终路径、大小、SHA-256）
+     */
+    @Transactional
+    public StoredFile storePhoto(MultipartFile file) {
+        StoredFile staged = fileStorageService.stageFile(file);
+        return addReference(staged, file.getOriginalFilename(), file.getContentType());
+    }
+
+    /**
+     * 为已写入暂存目录的文件增加引用，并把暂存文件移动到按哈希寻址的位置
+     * 无论成功与否暂存文件都会被移走或删除
+     *
+     * @param staged 暂存文件
+     * @param originalFilename 原始文件名
+     * @param contentType 内容类型
+     * @return 存储的文件信息（最终路径、大小、SHA-256）
+     */
+    @Transactional
+    public StoredFile addReference(StoredFile staged, String originalFilename, String contentType) {
+        try {
+            String sha256 = staged.getSha256();
+            photoBlobRepository.addReference(sha256, fileStorageService.blobPath(sha256, originalFilename),
+                    staged.getSize(), contentType);
+
+            // 内容已存在时沿用已有记录的路径（扩展名可能不同）
+            String blobPath = photoBlobRepository.findFilePathBySha256(sha256);
+            if (fileStorageService.commitStagedFile(staged, blobPath)) {
+                logger.info("照片内容已存在，复用: {}", blobPath);
+            }
+            return new StoredFile(blobPath, staged.getSize(), sha256);
+        } finally {
+            fileStorageService.discardStagedFile(staged);
+        }
+    }
+
+    /**
+     * 批量增加引用
+     * 引用更新作为一个 JDBC 批次提交，再用一次查询取回所有内容的存放路径。
+     * 事务回滚时删除本次新写入的文件（见 releaseRolledBack），调用方可以在同一事务中继续写入其他记录
+     *
+     * @param stagedFiles 暂存文件
+     * @param originalFilenames 与暂存文件一一对应的原始文件名
+     * @return 与输入顺序一致的存储文件信息
+     */
+    @Transactional
+    public List<StoredFile> addReferences(List<StoredFile> stagedFiles, List<String> originalFilenames) {
+        try {
+            List<Object[]> rows = new ArrayList<>(stagedFiles.size());
+            for (int i = 0; i < stagedFiles.size(); i++) {
+                StoredFile staged = stagedFiles.get(i);
+                rows.add(new Object[] {
+                        staged.getSha256(),
+                        fileStorageService.blobPath(staged.getSha256(), originalFilenames.get(i)),
+                        staged.getSize(),
+                        staged.getSniffedType()
+                });
+            }
+            jdbcTemplate.batchUpdate(ADD_REFERENCE_SQL, rows);
+
+            Set<String> hashes = stagedFiles.stream().map(StoredFile::getSha256).collect(Collectors.toSet());
+            Map<String, String> blobPaths = new HashMap<>();
+            namedParameterJdbcTemplate.query("SELECT sha256, file_path FROM photo_blobs WHERE sha256 IN (:hashes)",
+                    Map.of("hashes", hashes),
+                    (RowCallbackHandler) rs -> blobPaths.put(rs.getString("sha256"), rs.getString("file_path")));
+
+            List<StoredFile> stored = new ArrayList<>(stagedFiles.size());
+            List<StoredFile> written = new ArrayList<>();
+            for (StoredFile staged : stagedFiles) {
+                String blobPath = blobPaths.get(staged.getSha256());
+                StoredFile storedFile = new StoredFile(blobPath, staged.getSize(), staged.getSha256(),
+                        staged.getSniffedType());
+                if (!fileStorageService.commitStagedFile(staged, blobPath)) {
+                    written.add(storedFile);
+                }
+                stored.add(storedFile);
+            }
+            registerRollbackCompensation(written);
+            return stored;
+        } finally {
+            stagedFiles.forEach(fileStorageService::discardStagedFile);
+        }
+    }
+
+    private void registerRollbackCompensation(List<StoredFile> written) {
+        if (written.isEmpty() || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCompletion(int status) {
+                if (status == STATUS_ROLLED_BACK) {
+                    written.forEach(PhotoBlobService.this::releaseRolledBack);
+                }
+            }
+        });
+    }
+
+    /**
+     * 删除引用已随事务回滚的文件
+     * 与删除引用相同，先在新事务中占住内容记录的行锁再判断：补一条引用再减掉，引用归零说明没有其他照片
+     * 使用该内容，删除记录和文件；并发上传同一内容的一方等待本事务提交后会发现文件不存在并重新写入。
+     * 其他上传已经提交了引用时只在记录的路径与本次写入的路径不同时删除本次写入的文件
+     */
+    private void releaseRolledBack(StoredFile stored) {
+        try {
+            compensationTransaction.executeWithoutResult(status -> {
+                String sha256 = stored.getSha256();
+                photoBlobRepository.addReference(sha256, stored.getPath(), stored.getSize(), stored.getSniffedType());
+                String blobPath = photoBlobRepository.findFilePathBySha256(sha256);
+                photoBlobRepository.removeReference(sha256);
+                if (photoBlobRepository.deleteIfUnreferenced(sha256) > 0) {
+                    fileStorageService.deleteFile(blobPath);
+                    logger.info("事务已回滚，删除新写入的照片文件: {}", blobPath);
+                } else if (!stored.getPath().equals(blobPath)) {
+                    fileStorageService.deleteFile(stored.getPath());
+                    logger.info("事务已回滚，删除新写入的照片文件: {}", stored.getPath());
+                }
+            });
+        } catch (RuntimeException ex) {
+            logger.error("事务回滚后删除照片文件失败: {}", stored.getPath(), ex);
+        }
+    }
+
+    /**
+     * 减少引用，引用归零时删除记录和文件
+     * 文件在事务提交前删除，调用方须先执行（flush）引用方记录的删除，约束错误不能晚于文件删除出现
+     *
+     * @param sha256 内容哈希
+     */
+    @Transactional
+    public void removeReference(String sha256) {
+        if (photoBlobRepository.removeReference(sha256) == 0) {
+            logger.warn("照片内容记录不存在: {}", sha256);
+            return;
+        }
+
+        String blobPath = photoBlobRepository.findFilePathBySha256(sha256);
+        if (photoBlobRepository.deleteIfUnreferenced(sha256) > 0) {
+            fileStorageService.deleteFile(blobPath);
+            logger.info("照片内容已无引用，文件已删除: {}", blobPath);
+        }
+    }
+}
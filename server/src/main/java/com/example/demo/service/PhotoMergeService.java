@@ -1,5 +1,8 @@
 package com.example.demo.service;
 
+import com.example.demo.entity.ImageVariant;
+import com.example.demo.entity.MergeJob;
+import com.example.demo.entity.MergeResult;
 import com.example.demo.entity.Photo;
 import com.example.demo.entity.PhotoMerge;
 import com.example.demo.entity.Scene;
@@ -10,42 +13,95 @@ import com.example.demo.repository.SceneRepository;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.Resource;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.server.ResponseStatusException;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
 public class PhotoMergeService {
     
     private static final Logger logger = LoggerFactory.getLogger(PhotoMergeService.class);
     
+    private static final String INSERT_MERGE_SQL =
+            "INSERT INTO photo_merges (user_id, photo1_id, photo2_id, scene_id, prompt_text, result_path, result_hash, "
+            + "input_fingerprint, group_id, status, created_at, completed_at) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    
     private final PhotoMergeRepository photoMergeRepository;
     private final PhotoRepository photoRepository;
     private final SceneRepository sceneRepository;
     private final FileStorageService fileStorageService;
     private final AIService aiService;
+    private final HotFileCache hotFileCache;
+    private final ImageVariantService imageVariantService;
+    private final MergeJobService mergeJobService;
+    private final MergeEventBus mergeEventBus;
+    private final MergeResultCache mergeResultCache;
+    private final JdbcTemplate jdbcTemplate;
+    private final long coalesceRetryDelaySeconds;
+    private final int maxBatchItems;
+    
+    // 本节点正在生成的输入指纹，相同指纹的任务共用一次生成
+    private final ConcurrentHashMap<String, CompletableFuture<StoredFile>> inFlight = new ConcurrentHashMap<>();
+    // 本节点流水线中的任务：合照ID -> 任务，取消合照时中止
+    private final ConcurrentHashMap<Long, MergeTask> activeTasks = new ConcurrentHashMap<>();
     
     @Autowired
     public PhotoMergeService(PhotoMergeRepository photoMergeRepository,
                           PhotoRepository photoRepository,
                           SceneRepository sceneRepository,
                           FileStorageService fileStorageService,
-                          AIService aiService) {
+                          AIService aiService,
+                          HotFileCache hotFileCache,
+                          ImageVariantService imageVariantService,
+                          MergeJobService mergeJobService,
+                          MergeEventBus mergeEventBus,
+                          MergeResultCache mergeResultCache,
+                          JdbcTemplate jdbcTemplate,
+                          @Value("${merge.coalesce.retry-delay-seconds:5}") long coalesceRetryDelaySeconds,
+                          @Value("${merge.batch.max-items:20}") int maxBatchItems) {
         this.photoMergeRepository = photoMergeRepository;
         this.photoRepository = photoRepository;
         this.sceneRepository = sceneRepository;
         this.fileStorageService = fileStorageService;
         this.aiService = aiService;
+        this.hotFileCache = hotFileCache;
+        this.imageVariantService = imageVariantService;
+        this.mergeJobService = mergeJobService;
+        this.mergeEventBus = mergeEventBus;
+        this.mergeResultCache = mergeResultCache;
+        this.jdbcTemplate = jdbcTemplate;
+        this.coalesceRetryDelaySeconds = coalesceRetryDelaySeconds;
+        this.maxBatchItems = maxBatchItems;
     }
     
     /**
@@ -71,22 +127,30 @@ public class PhotoMergeService {
     }
     
     /**
-     * 创建合照请求并异步处理
+     * 创建合照请求，合照记录和生成任务在同一事务中写入后立即返回，生成由任务执行器处理
      */
-    @Async
     @Transactional
-    public CompletableFuture<PhotoMerge> createMerge(Long userId, Long photo1Id, Long photo2Id, 
+    public PhotoMerge createMerge(Long userId, Long photo1Id, Long photo2Id, 
                                                Long sceneId, String promptText) {
-        // 验证照片和场景
+        // 验证照片
         User user = new User();
         user.setId(userId);
         
-        Photo photo1 = photoRepository.findById(photo1Id)
-                .orElseThrow(() -> new RuntimeException("照片1不存在"));
+        Photo photo1 = loadOwnedPhoto(photo1Id, userId, "照片1不存在");
         
-        Photo photo2 = photoRepository.findById(photo2Id)
-                .orElseThrow(() -> new RuntimeException("照片2不存在"));
+        Photo photo2 = loadOwnedPhoto(photo2Id, userId, "照片2不存在");
         
+        return createMerge(user, photo1, photo2, sceneId, promptText);
+    }
+    
+    /**
+     * 用已加载（或刚在同一事务中写入）的照片创建合照请求，不再逐张查询照片
+     * 合照记录和生成任务以 JDBC 语句写入，与调用方的照片、提示词写入共用一个事务
+     *
+     * @throws MergeBacklogFullException 用户未完成的任务已达上限
+     */
+    @Transactional
+    public PhotoMerge createMerge(User user, Photo photo1, Photo photo2, Long sceneId, String promptText) {
         Scene scene = sceneRepository.findById(sceneId)
                 .orElseThrow(() -> new RuntimeException("场景不存在"));
         
@@ -97,71 +161,461 @@ public class PhotoMergeService {
         photoMerge.setPhoto2(photo2);
         photoMerge.setScene(scene);
         photoMerge.setPromptText(promptText);
+        photoMerge.setInputFingerprint(mergeResultCache.fingerprint(photo1, photo2, scene, promptText));
         photoMerge.setStatus("PROCESSING");
+        photoMerge.setCreatedAt(LocalDateTime.now());
+        
+        // 相同输入已有结果时直接引用，不再排队生成
+        Optional<MergeResult> cached = mergeResultCache.lookup(photoMerge.getInputFingerprint());
+        if (cached.isPresent()) {
+            photoMerge.setResultPath(cached.get().getResultPath());
+            photoMerge.setResultHash(cached.get().getResultHash());
+            photoMerge.setStatus("COMPLETED");
+            photoMerge.setCompletedAt(photoMerge.getCreatedAt());
+            insertMerges(List.of(photoMerge));
+            imageVariantService.scheduleVariants(ImageVariantService.OWNER_MERGE, photoMerge.getId(),
+                    photoMerge.getResultPath());
+            mergeEventBus.publish(user.getId(), photoMerge.getId(), "COMPLETED", 100, null);
+            return photoMerge;
+        }
+        
+        // 保存记录并加入任务队列
+        insertMerges(List.of(photoMerge));
+        mergeJobService.enqueueAll(List.of(photoMerge.getId()), user.getId(), MergeJob.TYPE_GENERATE);
+        // 事件在事务提交后才推送，回滚（如积压已满、照片保存失败）时不推送
+        mergeEventBus.publish(user.getId(), photoMerge.getId(), "PROCESSING", 0, "已提交");
+        
+        return photoMerge;
+    }
+    
+    /**
+     * 批量创建合照：同一对照片搭配多个场景
+     * 照片和场景各用一次查询取回，结果缓存用一次查询批量查找；合照记录和任务各用一个 JDBC 批次写入，
+     * 都在同一事务中。同一批次的合照共用分组标识，生成时照片的预处理结果在批次内复用
+     *
+     * @param items 场景及提示词，数量不超过 merge.batch.max-items 和用户积压上限
+     * @return 与输入顺序一致的合照
+     * @throws MergeBacklogFullException 需要生成的合照加入后用户未完成的任务数将超过上限
+     */
+    @Transactional
+    public List<PhotoMerge> createMergeBatch(Long userId, Long photo1Id, Long photo2Id, List<MergeBatchItem> items) {
+        User user = new User();
+        user.setId(userId);
+        
+        Photo photo1 = loadOwnedPhoto(photo1Id, userId, "照片1不存在");
+        
+        Photo photo2 = loadOwnedPhoto(photo2Id, userId, "照片2不存在");
+        
+        return createMergeBatch(user, photo1, photo2, items);
+    }
+    
+    /**
+     * 加载用户自己的照片，照片不存在或属于其他用户时都返回 404
+     */
+    private Photo loadOwnedPhoto(Long photoId, Long userId, String message) {
+        return photoRepository.findByIdAndUserId(photoId, userId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, message));
+    }
+    
+    /**
+     * 用已加载（或刚在同一事务中写入）的照片批量创建合照，与调用方的照片写入共用一个事务
+     *
+     * @throws MergeBacklogFullException 需要生成的合照加入后用户未完成的任务数将超过上限
+     */
+    @Transactional
+    public List<PhotoMerge> createMergeBatch(User user, Photo photo1, Photo photo2, List<MergeBatchItem> items) {
+        validateBatchItems(items);
+        Long userId = user.getId();
+        
+        Set<Long> sceneIds = items.stream().map(MergeBatchItem::getSceneId).collect(Collectors.toSet());
+        Map<Long, Scene> scenes = sceneRepository.findAllById(sceneIds).stream()
+                .collect(Collectors.toMap(Scene::getId, Function.identity()));
+        for (Long sceneId : sceneIds) {
+            if (!scenes.containsKey(sceneId)) {
+                throw new RuntimeException("场景不存在: " + sceneId);
+            }
+        }
+        
+        // 创建合照记录
+        String groupId = UUID.randomUUID().toString();
+        LocalDateTime now = LocalDateTime.now();
+        List<PhotoMerge> merges = new ArrayList<>(items.size());
+        for (MergeBatchItem item : items) {
+            Scene scene = scenes.get(item.getSceneId());
+            PhotoMerge merge = new PhotoMerge();
+            merge.setUser(user);
+            merge.setPhoto1(photo1);
+            merge.setPhoto2(photo2);
+            merge.setScene(scene);
+            merge.setPromptText(item.getPromptText());
+            merge.setInputFingerprint(mergeResultCache.fingerprint(photo1, photo2, scene, item.getPromptText()));
+            merge.setGroupId(groupId);
+            merge.setStatus("PROCESSING");
+            merge.setCreatedAt(now);
+            merges.add(merge);
+        }
+        
+        // 相同输入已有结果的直接引用，不再排队生成
+        Map<String, MergeResult> cached = mergeResultCache.lookupAll(
+                merges.stream().map(PhotoMerge::getInputFingerprint).collect(Collectors.toList()));
+        for (PhotoMerge merge : merges) {
+            MergeResult result = merge.getInputFingerprint() != null ? cached.get(merge.getInputFingerprint()) : null;
+            if (result != null) {
+                merge.setResultPath(result.getResultPath());
+                merge.setResultHash(result.getResultHash());
+                merge.setStatus("COMPLETED");
+                merge.setCompletedAt(now);
+            }
+        }
+        
+        insertMerges(merges);
+        List<Long> pendingIds = merges.stream().filter(PhotoMerge::isProcessing).map(PhotoMerge::getId)
+                .collect(Collectors.toList());
+        mergeJobService.enqueueAll(pendingIds, userId, MergeJob.TYPE_GENERATE);
+        
+        for (PhotoMerge merge : merges) {
+            if (merge.isCompleted()) {
+                imageVariantService.scheduleVariants(ImageVariantService.OWNER_MERGE, merge.getId(),
+                        merge.getResultPath());
+                mergeEventBus.publish(userId, merge.getId(), "COMPLETED", 100, null);
+            } else {
+                mergeEventBus.publish(userId, merge.getId(), "PROCESSING", 0, "已提交");
+            }
+        }
+        logger.info("批量合照已提交: 分组 {}，共 {} 个，命中缓存 {} 个", groupId, merges.size(),
+                merges.size() - pendingIds.size());
+        return merges;
+    }
+    
+    /**
+     * 检查批量合照的场景列表，可在保存上传的照片之前调用
+     *
+     * @throws ResponseStatusException 列表为空、超过上限或含有空场景
+     */
+    public void validateBatchItems(List<MergeBatchItem> items) {
+        int limit = Math.min(maxBatchItems, mergeJobService.getMaxBacklogPerUser());
+        if (items == null || items.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "至少需要一个场景");
+        }
+        if (items.size() > limit) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "单次最多提交 " + limit + " 个场景");
+        }
+        if (items.stream().anyMatch(item -> item == null || item.getSceneId() == null)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "场景不能为空");
+        }
+    }
+    
+    /**
+     * 用一个 JDBC 批次写入合照记录并回填ID，不逐条经过 Hibernate 的 IDENTITY 插入
+     */
+    private void insertMerges(List<PhotoMerge> merges) {
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.batchUpdate(
+                connection -> connection.prepareStatement(INSERT_MERGE_SQL, new String[] {"id"}),
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        PhotoMerge merge = merges.get(i);
+                        ps.setLong(1, merge.getUser().getId());
+                        ps.setLong(2, merge.getPhoto1().getId());
+                        ps.setLong(3, merge.getPhoto2().getId());
+                        ps.setLong(4, merge.getScene().getId());
+                        ps.setString(5, merge.getPromptText());
+                        ps.setString(6, merge.getResultPath());
+                        ps.setString(7, merge.getResultHash());
+                        ps.setString(8, merge.getInputFingerprint());
+                        ps.setString(9, merge.getGroupId());
+                        ps.setString(10, merge.getStatus());
+                        ps.setObject(11, merge.getCreatedAt());
+                        ps.setObject(12, merge.getCompletedAt());
+                    }
+                    
+                    @Override
+                    public int getBatchSize() {
+                        return merges.size();
+                    }
+                },
+                keyHolder);
+        
+        List<Map<String, Object>> keys = keyHolder.getKeyList();
+        for (int i = 0; i < merges.size(); i++) {
+            merges.get(i).setId(((Number) keys.get(i).get("id")).longValue());
+        }
+    }
+    
+    /**
+     * 获取同一批次的合照，按提交顺序排列
+     */
+    public List<PhotoMerge> getMergeGroup(String groupId, Long userId) {
+        List<PhotoMerge> merges = photoMergeRepository.findByGroupIdAndUserIdOrderById(groupId, userId);
+        if (merges.isEmpty()) {
+            throw new RuntimeException("合照分组不存在或无权访问");
+        }
+        return merges;
+    }
+    
+    /**
+     * 准备阶段：加载合照及输入，决定结果的来源，由 MergePipeline 调用
+     * 首次生成按输入指纹合并：同一节点内相同指纹的任务等待第一个任务的结果；跨节点由 merge_results 的
+     * 占位记录决定由哪个节点生成，其他节点的任务推迟后再取结果。重新生成跳过合并，结果写回缓存
+     *
+     * @throws MergeDeferredException 相同输入的结果正由其他节点生成
+     * @throws MergeCancelledException 合照已被取消
+     */
+    void prepareMerge(MergeTask task) {
+        PhotoMerge merge = photoMergeRepository.findWithInputsById(task.mergeId)
+                .orElseThrow(() -> new RuntimeException("合照记录不存在"));
+        if (merge.isCancelled()) {
+            // 领取与取消同时发生
+            throw new MergeCancelledException(task.mergeId);
+        }
+        activeTasks.put(task.mergeId, task);
+        task.merge = merge;
+        task.userId = merge.getUser().getId();
+        task.previousResult = merge.getResultPath();
+        
+        if (task.regenerate) {
+            // 场景预览图可能已更换，按当前输入重新计算
+            task.fingerprint = mergeResultCache.fingerprint(merge.getPhoto1(), merge.getPhoto2(), merge.getScene(),
+                    merge.getPromptText());
+            task.generate = true;
+            task.storeResult = true;
+            return;
+        }
+        task.fingerprint = merge.getInputFingerprint();
+        if (task.fingerprint == null) {
+            task.generate = true;
+            return;
+        }
+        
+        CompletableFuture<StoredFile> flight = new CompletableFuture<>();
+        CompletableFuture<StoredFile> existing = inFlight.putIfAbsent(task.fingerprint, flight);
+        if (existing != null) {
+            // 本节点已有相同输入的任务在执行，等待其结果
+            mergeEventBus.publish(task.userId, task.mergeId, "PROCESSING", 10, "等待相同输入的合照生成");
+            task.sharedFlight = existing;
+            return;
+        }
+        task.flight = flight;
+        
+        MergeResultCache.Claim claim = mergeResultCache.claim(task.fingerprint);
+        switch (claim.getStatus()) {
+            case READY:
+                task.result = new StoredFile(claim.getResult().getResultPath(), 0, claim.getResult().getResultHash());
+                completeFlight(task);
+                break;
+            case PENDING:
+                throw new MergeDeferredException("相同输入的合照正由其他节点生成", coalesceRetryDelaySeconds);
+            default:
+                task.leader = true;
+                task.generate = true;
+                task.storeResult = true;
+        }
+    }
+    
+    /**
+     * 等待本节点内相同输入的任务的结果
+     * 对方失败或被推迟时本任务也推迟，重新领取后自行认领生成，不计入失败次数
+     */
+    CompletableFuture<MergeTask> awaitSharedResult(MergeTask task) {
+        return task.sharedFlight.handle((result, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                throw new MergeDeferredException("相同输入的合照未能生成: " + cause, coalesceRetryDelaySeconds);
+            }
+            task.result = result;
+            return task;
+        });
+    }
+    
+    /**
+     * 预处理阶段：申请 AI 调用许可，缩小输入图片并构建请求
+     */
+    void prepareGeneration(MergeTask task) {
+        checkCancelled(task);
+        mergeEventBus.publish(task.userId, task.mergeId, "PROCESSING", 10, "开始生成");
+        if (aiService.isMockEnabled()) {
+            return;
+        }
+        PhotoMerge merge = task.merge;
+        task.preparedCall = aiService.prepareCall(
+                merge.getPhoto1().getFilePath(), 
+                merge.getPhoto2().getFilePath(), 
+                merge.getScene().getPreviewImage(), 
+                merge.getPromptText(),
+                merge.getGroupId() != null
+        );
+    }
+    
+    /**
+     * AI 调用阶段：发送请求，响应写入暂存文件；合照被取消时请求随之中止
+     */
+    CompletableFuture<StoredFile> invokeGeneration(MergeTask task) {
+        checkCancelled(task);
+        if (aiService.isMockEnabled()) {
+            // 使用测试方法返回固定图片（前后端联通测试用）
+            task.staged = aiService.generateTestImage();
+            return CompletableFuture.completedFuture(task.staged);
+        }
         
-        // 保存记录
-        PhotoMerge savedMerge = photoMergeRepository.save(photoMerge);
-        Long mergeId = savedMerge.getId();
-        
-        // 异步处理合照生成
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // 使用测试方法返回固定图片（临时方案，前后端联通测试用）
-                byte[] resultImageData = aiService.generateTestImage();
-                
-                /* 
-                // 实际项目中应该调用AI服务生成合照
-                byte[] resultImageData = aiService.generateMergedPhoto(
-                        photo1.getFilePath(), 
-                        photo2.getFilePath(), 
-                        scene.getPreviewImage(), 
-                        promptText
-                );
-                */
-                
-                // 保存生成的合照文件
-                String resultPath = saveResultImage(resultImageData, userId, mergeId);
-                
-                // 更新合照记录
-                return photoMergeRepository.findById(mergeId).map(merge -> {
-                    merge.setResultPath(resultPath);
-                    merge.setStatus("COMPLETED");
-                    merge.setCompletedAt(LocalDateTime.now());
-                    return photoMergeRepository.save(merge);
-                }).orElseThrow(() -> new RuntimeException("合照记录不存在"));
-                
-            } catch (Exception e) {
-                // 处理失败，更新状态
-                logger.error("合照生成失败", e);
-                photoMergeRepository.findById(mergeId).ifPresent(merge -> {
-                    merge.setStatus("FAILED");
-                    photoMergeRepository.save(merge);
-                });
-                throw new RuntimeException("合照生成失败: " + e.getMessage(), e);
+        CompletableFuture<StoredFile> call = aiService.send(task.preparedCall);
+        task.call = call;
+        if (task.cancelled) {
+            // 登记调用前已被取消
+            call.cancel(true);
+        }
+        return call.handle((staged, error) -> {
+            if (error == null) {
+                task.staged = staged;
+                return staged;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null
+                    ? error.getCause() : error;
+            if (cause instanceof CancellationException) {
+                throw new MergeCancelledException(task.mergeId);
             }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new RuntimeException("调用AI服务失败: " + cause, cause);
         });
     }
     
+    /**
+     * 结果保存阶段：把暂存文件移动到结果目录，本节点内等待相同输入的任务随即拿到结果
+     */
+    void persistResult(MergeTask task) {
+        checkCancelled(task);
+        mergeEventBus.publish(task.userId, task.mergeId, "PROCESSING", 80, "正在保存结果");
+        task.result = saveResultImage(task.staged, task.userId, task.mergeId);
+        task.staged = null;
+        completeFlight(task);
+    }
+    
+    /**
+     * 完成阶段：写入结果缓存和合照记录
+     */
+    void finalizeMerge(MergeTask task) {
+        if (task.storeResult) {
+            mergeResultCache.store(task.fingerprint, task.result);
+        }
+        completeMerge(task.mergeId, task.userId, task.fingerprint, task.previousResult, task.result);
+    }
+    
+    /**
+     * 任务在任一阶段失败后的清理：释放未发送的调用和未保存的暂存文件，
+     * 放弃指纹的生成权，等待本任务结果的其他任务随之推迟
+     */
+    void abortMerge(MergeTask task, Throwable error) {
+        if (task.preparedCall != null) {
+            task.preparedCall.discard();
+        }
+        if (task.staged != null) {
+            fileStorageService.discardStagedFile(task.staged);
+        }
+        if (task.flight != null) {
+            task.flight.completeExceptionally(error);
+            inFlight.remove(task.fingerprint, task.flight);
+        }
+        if (task.leader) {
+            mergeResultCache.abandon(task.fingerprint);
+        }
+    }
+    
+    /**
+     * 任务离开流水线，无论成功与否
+     */
+    void releaseTask(MergeTask task) {
+        activeTasks.remove(task.mergeId, task);
+    }
+    
+    private void completeFlight(MergeTask task) {
+        if (task.flight != null) {
+            task.flight.complete(task.result);
+            inFlight.remove(task.fingerprint, task.flight);
+        }
+    }
+    
+    private void checkCancelled(MergeTask task) {
+        if (task.cancelled) {
+            throw new MergeCancelledException(task.mergeId);
+        }
+    }
+    
+    /**
+     * 写入结果并标记完成，替换掉的旧结果在没有其他合照引用时删除
+     */
+    private void completeMerge(Long mergeId, Long userId, String fingerprint, String previousResult,
+                               StoredFile result) {
+        PhotoMerge current = photoMergeRepository.findById(mergeId).orElse(null);
+        if (current == null) {
+            // 生成期间合照已被删除
+            releaseResult(result.getPath());
+            throw new RuntimeException("合照记录不存在");
+        }
+        if (current.isCancelled()) {
+            // 生成期间合照已被取消，结果不再写入；已进入结果缓存的保留，供相同输入复用
+            if (fingerprint == null) {
+                releaseResult(result.getPath());
+            }
+            throw new MergeCancelledException(mergeId);
+        }
+        current.setInputFingerprint(fingerprint);
+        current.setResultPath(result.getPath());
+        current.setResultHash(result.getSha256());
+        current.setStatus("COMPLETED");
+        current.setCompletedAt(LocalDateTime.now());
+        photoMergeRepository.save(current);
+        
+        // 新结果写入后再处理旧结果，重试时不会丢失已有结果
+        if (previousResult != null && !previousResult.isEmpty() && !previousResult.equals(result.getPath())) {
+            releaseResult(previousResult);
+            imageVariantService.deleteVariants(ImageVariantService.OWNER_MERGE, mergeId);
+        }
+        imageVariantService.scheduleVariants(ImageVariantService.OWNER_MERGE, mergeId, result.getPath());
+        mergeEventBus.publish(userId, mergeId, "COMPLETED", 100, null);
+        logger.info("合照生成完成: {}", mergeId);
+    }
+    
+    /**
+     * 结果文件已不被任何合照引用时删除文件及其缓存记录
+     * 命中缓存的合照与原合照共用同一个结果文件
+     */
+    private void releaseResult(String resultPath) {
+        if (photoMergeRepository.countByResultPath(resultPath) > 0) {
+            logger.info("合照结果仍被其他合照引用，保留文件: {}", resultPath);
+            return;
+        }
+        mergeResultCache.evict(resultPath);
+        fileStorageService.deleteFile(resultPath);
+        hotFileCache.invalidate(resultPath);
+    }
+    
     /**
      * 保存结果图片
+     * 暂存文件在写入时已算出内容哈希（供 ETag 使用），这里只移动到结果目录，不再读写内容
      */
-    private String saveResultImage(byte[] imageData, Long userId, Long mergeId) {
+    private StoredFile saveResultImage(StoredFile staged, Long userId, Long mergeId) {
         try {
-            // 构建存储路径
-            Path userResultDir = Paths.get("./uploads/results/user_" + userId + "/merges");
-            java.nio.file.Files.createDirectories(userResultDir);
+            if (staged.getSniffedType() == null) {
+                throw new RuntimeException("生成结果不是可识别的图片");
+            }
             
-            // 生成唯一文件名
+            // 构建存储路径，生成唯一文件名
+            Path userResultDir = Paths.get("./uploads/results/user_" + userId + "/merges");
             String fileName = mergeId + "_" + UUID.randomUUID().toString() + ".jpg";
             Path targetPath = userResultDir.resolve(fileName);
             
-            // 保存文件
-            java.nio.file.Files.write(targetPath, imageData);
+            // 移动文件（同时登记到文件路径索引）
+            fileStorageService.commitStagedFile(staged, targetPath.toString());
             
-            return targetPath.toString();
+            return new StoredFile(targetPath.toString(), staged.getSize(), staged.getSha256());
         } catch (Exception e) {
             logger.error("保存合照结果失败", e);
             throw new RuntimeException("保存合照结果失败: " + e.getMessage(), e);
+        } finally {
+            fileStorageService.discardStagedFile(staged);
         }
     }
     
@@ -169,8 +623,13 @@ public class PhotoMergeService {
      * 获取合照结果资源
      */
     public Resource getMergeResource(Long id, Long userId) {
-        PhotoMerge merge = getMerge(id, userId);
-        
+        return getMergeResource(getMerge(id, userId));
+    }
+    
+    /**
+     * 获取已查询出的合照记录对应的结果资源
+     */
+    public Resource getMergeResource(PhotoMerge merge) {
         if (!"COMPLETED".equals(merge.getStatus()) || merge.getResultPath() == null) {
             throw new RuntimeException("合照结果尚未生成或生成失败");
         }
@@ -183,73 +642,100 @@ public class PhotoMergeService {
         }
     }
     
+    /**
+     * 获取合照结果的指定规格，尚未生成时返回空
+     */
+    public Optional<ImageVariant> getMergeVariant(PhotoMerge merge, String size) {
+        return imageVariantService.findVariant(ImageVariantService.OWNER_MERGE, merge.getId(), size);
+    }
+    
     /**
      * 删除合照记录
      */
     @Transactional
     public void deleteMerge(Long id, Long userId) {
         PhotoMerge merge = getMerge(id, userId);
-        
-        // 删除物理文件
-        if (merge.getResultPath() != null && !merge.getResultPath().isEmpty()) {
-            fileStorageService.deleteFile(merge.getResultPath());
-        }
+        imageVariantService.deleteVariants(ImageVariantService.OWNER_MERGE, id);
+        mergeJobService.deleteJobs(id);
         
         // 删除数据库记录
         photoMergeRepository.delete(merge);
+        photoMergeRepository.flush();
+        
+        // 删除物理文件（结果可能与其他合照共享）
+        if (merge.getResultPath() != null && !merge.getResultPath().isEmpty()) {
+            releaseResult(merge.getResultPath());
+        }
         logger.info("合照记录已删除: {}", id);
     }
     
     /**
-     * 重新生成合照
+     * 取消处理中的合照
+     * 排队中的任务直接移出队列；正在执行的任务在提交后中止本节点的 AI 请求，
+     * 其他节点上执行的任务由该节点的执行器在下次检查时中止，已生成的结果不再写入。已取消的合照可重新生成
+     *
+     * @throws ResponseStatusException 合照已完成或已失败（409）
+     */
+    @Transactional
+    public PhotoMerge cancelMerge(Long id, Long userId) {
+        PhotoMerge merge = getMerge(id, userId);
+        if (merge.isCancelled()) {
+            return merge;
+        }
+        if (!merge.isProcessing()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "合照已结束，无法取消");
+        }
+        
+        merge.markAsCancelled();
+        PhotoMerge savedMerge = photoMergeRepository.save(merge);
+        int cancelledJobs = mergeJobService.cancelJobs(id);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    abortGeneration(id);
+                }
+            });
+        }
+        mergeEventBus.publish(userId, id, "CANCELLED", null, "已取消");
+        logger.info("合照已取消: {}，取消任务 {} 个", id, cancelledJobs);
+        return savedMerge;
+    }
+    
+    /**
+     * 中止本节点流水线中该合照的生成：尚未发出的 AI 请求不再发出，已发出的被中止，释放并发名额
+     *
+     * @return 本节点流水线中有该合照时返回 true
+     */
+    public boolean abortGeneration(Long mergeId) {
+        MergeTask task = activeTasks.get(mergeId);
+        if (task == null) {
+            return false;
+        }
+        task.cancelled = true;
+        CompletableFuture<StoredFile> call = task.call;
+        if (call != null) {
+            call.cancel(true);
+        }
+        logger.info("已中止合照的生成: {}", mergeId);
+        return true;
+    }
+    
+    /**
+     * 重新生成合照，加入任务队列；已有未结束的任务时不重复入队，并发的重复请求也只入队一次
      */
-    @Async
     @Transactional
-    public CompletableFuture<PhotoMerge> regenerateMerge(Long id, Long userId) {
-        final PhotoMerge merge = getMerge(id, userId);
+    public PhotoMerge regenerateMerge(Long id, Long userId) {
+        PhotoMerge merge = getMerge(id, userId);
+        if (mergeJobService.enqueueIfIdle(id, userId, MergeJob.TYPE_REGENERATE).isEmpty()) {
+            logger.info("合照已在处理中，忽略重复的重新生成请求: {}", id);
+            return merge;
+        }
         
         // 更新状态为处理中
         merge.setStatus("PROCESSING");
-        final PhotoMerge savedMerge = photoMergeRepository.save(merge);
-        
-        final Long mergeId = savedMerge.getId();
-        
-        // 异步处理合照生成
-        return CompletableFuture.supplyAsync(() -> {
-            try {
-                // 删除旧的结果文件（如果存在）
-                if (savedMerge.getResultPath() != null && !savedMerge.getResultPath().isEmpty()) {
-                    fileStorageService.deleteFile(savedMerge.getResultPath());
-                }
-                
-                // 调用AI服务生成合照
-                final byte[] resultImageData = aiService.generateMergedPhoto(
-                        savedMerge.getPhoto1().getFilePath(), 
-                        savedMerge.getPhoto2().getFilePath(), 
-                        savedMerge.getScene().getPreviewImage(), 
-                        savedMerge.getPromptText()
-                );
-                
-                // 保存生成的合照文件
-                final String resultPath = saveResultImage(resultImageData, userId, mergeId);
-                
-                // 更新合照记录
-                return photoMergeRepository.findById(mergeId).map(m -> {
-                    m.setResultPath(resultPath);
-                    m.setStatus("COMPLETED");
-                    m.setCompletedAt(LocalDateTime.now());
-                    return photoMergeRepository.save(m);
-                }).orElseThrow(() -> new RuntimeException("合照记录不存在"));
-                
-            } catch (Exception e) {
-                // 处理失败，更新状态
-                logger.error("合照重新生成失败", e);
-                photoMergeRepository.findById(mergeId).ifPresent(m -> {
-                    m.setStatus("FAILED");
-                    photoMergeRepository.save(m);
-                });
-                throw new RuntimeException("合照重新生成失败: " + e.getMessage(), e);
-            }
-        });
+        PhotoMerge savedMerge = photoMergeRepository.save(merge);
+        mergeEventBus.publish(userId, id, "PROCESSING", 0, "已提交重新生成");
+        return savedMerge;
     }
-} 
\ No newline at end of file
+}
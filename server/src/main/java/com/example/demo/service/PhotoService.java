@@ -1,5 +1,6 @@
 package com.example.demo.service;
 
+import com.example.demo.entity.ImageVariant;
 import com.example.demo.entity.Photo;
 import com.example.demo.entity.User;
 import com.example.demo.repository.PhotoRepository;
@@ -7,11 +8,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.io.Resource;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 @Service
@@ -21,11 +31,23 @@ public class PhotoService {
     
     private final PhotoRepository photoRepository;
     private final FileStorageService fileStorageService;
+    private final PhotoBlobService photoBlobService;
+    private final ImageVariantService imageVariantService;
+    private final JdbcTemplate jdbcTemplate;
+    
+    private static final String INSERT_PHOTO_SQL =
+            "INSERT INTO photos (user_id, file_name, file_path, file_size, file_type, upload_time, content_hash) "
+            + "VALUES (?, ?, ?, ?, ?, ?, ?)";
     
     @Autowired
-    public PhotoService(PhotoRepository photoRepository, FileStorageService fileStorageService) {
+    public PhotoService(PhotoRepository photoRepository, FileStorageService fileStorageService,
+                        PhotoBlobService photoBlobService, ImageVariantService imageVariantService,
+                        JdbcTemplate jdbcTemplate) {
         this.photoRepository = photoRepository;
         this.fileStorageService = fileStorageService;
+        this.photoBlobService = photoBlobService;
+        this.imageVariantService = imageVariantService;
+        this.jdbcTemplate = jdbcTemplate;
     }
     
     /**
@@ -38,27 +60,111 @@ public class PhotoService {
     @Transactional
     public Photo uploadPhoto(MultipartFile file, User user) {
         try {
-            // 存储文件，获取文件路径
-            String filePath = fileStorageService.storeFile(file, user.getId());
-            
-            // 创建照片实体
-            Photo photo = new Photo();
-            photo.setUser(user);
-            photo.setFileName(file.getOriginalFilename());
-            photo.setFilePath(filePath);
-            photo.setFileSize((int) file.getSize());
-            photo.setFileType(file.getContentType());
-            
-            // 保存照片信息到数据库
-            Photo savedPhoto = photoRepository.save(photo);
-            logger.info("照片已上传: {}", savedPhoto.getId());
-            return savedPhoto;
+            // 按内容哈希存储文件，相同内容只保存一份
+            StoredFile storedFile = photoBlobService.storePhoto(file);
+            return savePhoto(user, file.getOriginalFilename(), file.getContentType(), storedFile);
+        } catch (Exception e) {
+            logger.error("照片上传失败", e);
+            throw new RuntimeException("照片上传失败: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * 保存已写入暂存目录的照片（流式上传）
+     * 内容类型以文件头识别结果为准
+     *
+     * @param staged 暂存文件
+     * @param originalFilename 原始文件名
+     * @param user 用户
+     * @return 保存的照片实体
+     */
+    @Transactional
+    public Photo uploadStagedPhoto(StoredFile staged, String originalFilename, User user) {
+        try {
+            StoredFile storedFile = photoBlobService.addReference(staged, originalFilename, staged.getSniffedType());
+            return savePhoto(user, originalFilename, staged.getSniffedType(), storedFile);
         } catch (Exception e) {
             logger.error("照片上传失败", e);
             throw new RuntimeException("照片上传失败: " + e.getMessage());
         }
     }
     
+    /**
+     * 批量保存已写入暂存目录的照片
+     * 内容引用和照片记录各用一个 JDBC 批次写入，不逐条经过 Hibernate 的 IDENTITY 插入
+     *
+     * @param stagedFiles 暂存文件（内容类型取文件头识别结果）
+     * @param originalFilenames 与暂存文件一一对应的原始文件名
+     * @param user 用户
+     * @return 与输入顺序一致的照片
+     */
+    @Transactional
+    public List<Photo> uploadStagedPhotos(List<StoredFile> stagedFiles, List<String> originalFilenames, User user) {
+        List<StoredFile> storedFiles = photoBlobService.addReferences(stagedFiles, originalFilenames);
+        LocalDateTime uploadTime = LocalDateTime.now();
+        
+        List<Photo> photos = new ArrayList<>(storedFiles.size());
+        for (int i = 0; i < storedFiles.size(); i++) {
+            StoredFile storedFile = storedFiles.get(i);
+            Photo photo = new Photo(user, originalFilenames.get(i), storedFile.getPath(),
+                    (int) storedFile.getSize(), storedFile.getSniffedType());
+            photo.setContentHash(storedFile.getSha256());
+            photo.setUploadTime(uploadTime);
+            photos.add(photo);
+        }
+        
+        KeyHolder keyHolder = new GeneratedKeyHolder();
+        jdbcTemplate.batchUpdate(
+                connection -> connection.prepareStatement(INSERT_PHOTO_SQL, new String[] {"id"}),
+                new BatchPreparedStatementSetter() {
+                    @Override
+                    public void setValues(PreparedStatement ps, int i) throws SQLException {
+                        Photo photo = photos.get(i);
+                        ps.setLong(1, user.getId());
+                        ps.setString(2, photo.getFileName());
+                        ps.setString(3, photo.getFilePath());
+                        ps.setInt(4, photo.getFileSize());
+                        ps.setString(5, photo.getFileType());
+                        ps.setObject(6, uploadTime);
+                        ps.setString(7, photo.getContentHash());
+                    }
+                    
+                    @Override
+                    public int getBatchSize() {
+                        return photos.size();
+                    }
+                },
+                keyHolder);
+        
+        List<Map<String, Object>> keys = keyHolder.getKeyList();
+        for (int i = 0; i < photos.size(); i++) {
+            Photo photo = photos.get(i);
+            photo.setId(((Number) keys.get(i).get("id")).longValue());
+            imageVariantService.scheduleVariants(ImageVariantService.OWNER_PHOTO, photo.getId(), photo.getFilePath());
+        }
+        logger.info("批量保存照片 {} 张", photos.size());
+        return photos;
+    }
+    
+    private Photo savePhoto(User user, String originalFilename, String contentType, StoredFile storedFile) {
+        // 创建照片实体
+        Photo photo = new Photo();
+        photo.setUser(user);
+        photo.setFileName(originalFilename);
+        photo.setFilePath(storedFile.getPath());
+        photo.setFileSize((int) storedFile.getSize());
+        photo.setFileType(contentType);
+        photo.setContentHash(storedFile.getSha256());
+        
+        // 保存照片信息到数据库
+        Photo savedPhoto = photoRepository.save(photo);
+        logger.info("照片已上传: {}", savedPhoto.getId());
+        
+        // 事务提交后在后台生成缩略图等规格
+        imageVariantService.scheduleVariants(ImageVariantService.OWNER_PHOTO, savedPhoto.getId(), storedFile.getPath());
+        return savedPhoto;
+    }
+    
     /**
      * 获取用户的照片列表
      *
@@ -89,7 +195,16 @@ public class PhotoService {
      * @return 照片资源
      */
     public Resource getPhotoResource(Long photoId, Long userId) {
-        Photo photo = getPhoto(photoId, userId);
+        return getPhotoResource(getPhoto(photoId, userId));
+    }
+    
+    /**
+     * 获取已查询出的照片对应的文件资源
+     *
+     * @param photo 照片
+     * @return 照片资源
+     */
+    public Resource getPhotoResource(Photo photo) {
         try {
             return fileStorageService.loadFileAsResource(photo.getFilePath());
         } catch (Exception e) {
@@ -98,6 +213,17 @@ public class PhotoService {
         }
     }
     
+    /**
+     * 获取照片的指定规格，尚未生成时返回空
+     *
+     * @param photo 照片
+     * @param size 规格名称
+     * @return 规格图
+     */
+    public Optional<ImageVariant> getPhotoVariant(Photo photo, String size) {
+        return imageVariantService.findVariant(ImageVariantService.OWNER_PHOTO, photo.getId(), size);
+    }
+    
     /**
      * 删除照片
      *
@@ -115,14 +241,20 @@ public class PhotoService {
                 Photo photo = photoOpt.get();
                 String filePath = photo.getFilePath();
                 
-                // 从数据库中删除记录
+                // 从数据库中删除记录，立即执行删除语句：照片仍被合照引用等约束错误在删除任何文件之前抛出
                 photoRepository.delete(photo);
+                photoRepository.flush();
                 
-                // 删除实际文件
-                boolean fileDeleted = fileStorageService.deleteFile(filePath);
-                if (!fileDeleted) {
-                    logger.warn("物理文件删除失败: {}", filePath);
+                // 按内容存储的文件减少引用，引用归零时才删除；早期按用户目录存放的文件直接删除
+                if (fileStorageService.isBlobPath(filePath) && photo.getContentHash() != null) {
+                    photoBlobService.removeReference(photo.getContentHash());
+                } else {
+                    boolean fileDeleted = fileStorageService.deleteFile(filePath);
+                    if (!fileDeleted) {
+                        logger.warn("物理文件删除失败: {}", filePath);
+                    }
                 }
+                imageVariantService.deleteVariants(ImageVariantService.OWNER_PHOTO, photoId);
                 
                 logger.info("照片已删除: {}", photoId);
                 return true;
@@ -0,0 +1,245 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.Photo;
+import com.example.demo.entity.UploadSession;
+import com.example.demo.entity.User;
+import com.example.demo.repository.UploadSessionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 断点续传服务
+ * 客户端先创建上传会话，再按偏移量逐段提交分片；分片以定位写的方式写入暂存文件，
+ * 中断后可查询已接收的偏移量从断点继续。最后一个分片到达后直接把暂存文件移动到照片存储位置生成照片，
+ * 不再复制。超过有效期未完成的会话由定时任务清理
+ */
+@Service
+public class ResumableUploadService {
+
+    private static final Logger logger = LoggerFactory.getLogger(ResumableUploadService.class);
+
+    private static final int CHUNK_BUFFER_SIZE = 64 * 1024;
+
+    private final UploadSessionRepository uploadSessionRepository;
+    private final FileStorageService fileStorageService;
+    private final PhotoService photoService;
+    private final long maxFileSize;
+    private final long expireHours;
+
+    // 同一会话同时只允许一个分片写入
+    private final ConcurrentHashMap<String, ReentrantLock> sessionLocks = new ConcurrentHashMap<>();
+
+    @Autowired
+    public ResumableUploadService(UploadSessionRepository uploadSessionRepository,
+                                  FileStorageService fileStorageService,
+                                  PhotoService photoService,
+                                  @Value("${spring.servlet.multipart.max-file-size:10MB}") DataSize maxFileSize,
+                                  @Value("${upload.resumable.expire-hours:24}") long expireHours) {
+        this.uploadSessionRepository = uploadSessionRepository;
+        this.fileStorageService = fileStorageService;
+        this.photoService = photoService;
+        this.maxFileSize = maxFileSize.toBytes();
+        this.expireHours = expireHours;
+    }
+
+    /**
+     * 创建上传会话
+     *
+     * @param userId 用户ID
+     * @param fileName 原始文件名
+     * @param totalSize 文件总大小
+     * @return 上传会话
+     */
+    @Transactional
+    public UploadSession createSession(Long userId, String fileName, long totalSize) {
+        if (totalSize <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "文件大小无效");
+        }
+        if (totalSize > maxFileSize) {
+            throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "文件超出大小限制");
+        }
+
+        Path stagingFile;
+        try {
+            stagingFile = fileStorageService.createStagingFile("resumable-");
+        } catch (IOException ex) {
+            logger.error("无法创建上传暂存文件", ex);
+            throw new RuntimeException("无法创建上传暂存文件", ex);
+        }
+
+        UploadSession session = new UploadSession();
+        session.setId(UUID.randomUUID().toString());
+        session.setUserId(userId);
+        session.setFileName(fileName != null && !fileName.isBlank() ? fileName : "unknown");
+        session.setTotalSize(totalSize);
+        session.setUploadOffset(0L);
+        session.setStagingPath(stagingFile.toString());
+        session.setStatus("UPLOADING");
+        session.setExpiresAt(LocalDateTime.now().plusHours(expireHours));
+        UploadSession savedSession = uploadSessionRepository.save(session);
+        logger.info("上传会话已创建: {}，大小 {}", savedSession.getId(), totalSize);
+        return savedSession;
+    }
+
+    /**
+     * 获取上传会话
+     */
+    public UploadSession getSession(String id, Long userId) {
+        return uploadSessionRepository.findByIdAndUserId(id, userId)
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "上传会话不存在或已过期"));
+    }
+
+    /**
+     * 写入一个分片
+     * 分片必须从当前偏移量开始；写入的数据不超过声明的总大小，最后一个分片写完后自动生成照片
+     *
+     * @param id 会话ID
+     * @param user 当前用户
+     * @param offset 分片起始偏移量
+     * @param body 分片内容
+     * @return 更新后的上传会话
+     */
+    public UploadSession appendChunk(String id, User user, long offset, InputStream body) {
+        ReentrantLock lock = sessionLocks.computeIfAbsent(id, key -> new ReentrantLock());
+        if (!lock.tryLock()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "该会话正在写入其他分片");
+        }
+        try {
+            UploadSession session = getSession(id, user.getId());
+            if (session.isCompleted()) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "上传已完成");
+            }
+            if (session.getUploadOffset() != offset) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT,
+                        "偏移量不匹配，当前偏移量为 " + session.getUploadOffset());
+            }
+
+            long newOffset = writeChunk(session, offset, body);
+            if (uploadSessionRepository.advanceOffset(id, offset, newOffset,
+                    LocalDateTime.now().plusHours(expireHours)) == 0) {
+                throw new ResponseStatusException(HttpStatus.CONFLICT, "偏移量已被其他请求更新");
+            }
+            session.setUploadOffset(newOffset);
+
+            if (newOffset == session.getTotalSize()) {
+                complete(session, user);
+            }
+            return session;
+        } finally {
+            lock.unlock();
+            sessionLocks.remove(id, lock);
+        }
+    }
+
+    /**
+     * 以定位写方式写入分片，超出声明大小时拒绝
+     *
+     * @return 写入后的偏移量
+     */
+    private long writeChunk(UploadSession session, long offset, InputStream body) {
+        long remaining = session.getTotalSize() - offset;
+        long position = offset;
+        byte[] bytes = new byte[CHUNK_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        try (FileChannel channel = FileChannel.open(Paths.get(session.getStagingPath()), StandardOpenOption.WRITE)) {
+            int read;
+            while ((read = body.read(bytes)) != -1) {
+                if (read > remaining) {
+                    throw new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "分片超出声明的文件大小");
+                }
+                buffer.clear().limit(read);
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                remaining -= read;
+            }
+            // 客户端中途断开时已写入的部分仍然有效，下次从新的偏移量继续
+            return position;
+        } catch (IOException ex) {
+            logger.warn("分片写入中断: {}，已写到 {}", session.getId(), position);
+            return position;
+        }
+    }
+
+    /**
+     * 上传完成，暂存文件直接移动到照片存储位置
+     */
+    private void complete(UploadSession session, User user) {
+        Path stagingFile = Paths.get(session.getStagingPath());
+        StoredFile staged;
+        try {
+            staged = fileStorageService.inspectStagedFile(stagingFile);
+        } catch (IOException ex) {
+            logger.error("读取上传文件失败: {}", session.getId(), ex);
+            throw new RuntimeException("读取上传文件失败", ex);
+        }
+        if (staged.getSniffedType() == null) {
+            discard(session);
+            throw new ResponseStatusException(HttpStatus.UNSUPPORTED_MEDIA_TYPE, "不支持的图片格式");
+        }
+
+        Photo photo = photoService.uploadStagedPhoto(staged, session.getFileName(), user);
+        session.setStatus("COMPLETED");
+        session.setPhotoId(photo.getId());
+        uploadSessionRepository.save(session);
+        logger.info("断点续传完成: {} -> 照片 {}", session.getId(), photo.getId());
+    }
+
+    /**
+     * 取消上传会话
+     */
+    @Transactional
+    public void cancelSession(String id, Long userId) {
+        discard(getSession(id, userId));
+    }
+
+    /**
+     * 定时清理过期会话及其暂存文件
+     */
+    @Scheduled(fixedDelayString = "${upload.resumable.gc-interval-ms:600000}")
+    public void removeExpiredSessions() {
+        List<UploadSession> expired = uploadSessionRepository.findByExpiresAtBefore(LocalDateTime.now());
+        for (UploadSession session : expired) {
+            if (sessionLocks.containsKey(session.getId())) {
+                continue;
+            }
+            discard(session);
+        }
+        if (!expired.isEmpty()) {
+            logger.info("已清理 {} 个过期上传会话", expired.size());
+        }
+    }
+
+    private void discard(UploadSession session) {
+        try {
+            // 已完成的会话暂存文件已移走，删除不存在的文件无副作用
+            Files.deleteIfExists(Paths.get(session.getStagingPath()));
+        } catch (IOException ex) {
+            logger.warn("删除上传暂存文件失败: {}", session.getStagingPath(), ex);
+        }
+        uploadSessionRepository.delete(session);
+    }
+}
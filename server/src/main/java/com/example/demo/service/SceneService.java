@@ -1,5 +1,6 @@
 package com.example.demo.service;
 
+import com.example.demo.entity.ImageVariant;
 import com.example.demo.entity.Scene;
 import com.example.demo.repository.PhotoMergeRepository;
 import com.example.demo.repository.SceneRepository;
@@ -10,6 +11,7 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
+import java.util.Optional;
 
 @Service
 public class SceneService {
@@ -19,14 +21,20 @@ public class SceneService {
     private final SceneRepository sceneRepository;
     private final PhotoMergeRepository photoMergeRepository;
     private final FileStorageService fileStorageService;
+    private final HotFileCache hotFileCache;
+    private final ImageVariantService imageVariantService;
     
     @Autowired
     public SceneService(SceneRepository sceneRepository, 
                        PhotoMergeRepository photoMergeRepository,
-                       FileStorageService fileStorageService) {
+                       FileStorageService fileStorageService,
+                       HotFileCache hotFileCache,
+                       ImageVariantService imageVariantService) {
         this.sceneRepository = sceneRepository;
         this.photoMergeRepository = photoMergeRepository;
         this.fileStorageService = fileStorageService;
+        this.hotFileCache = hotFileCache;
+        this.imageVariantService = imageVariantService;
     }
     
     /**
@@ -61,7 +69,17 @@ public class SceneService {
             throw new RuntimeException("场景名称已存在: " + scene.getName());
         }
         
-        return sceneRepository.save(scene);
+        Scene savedScene = sceneRepository.save(scene);
+        imageVariantService.scheduleVariants(ImageVariantService.OWNER_SCENE, savedScene.getId(),
+                savedScene.getPreviewImage());
+        return savedScene;
+    }
+    
+    /**
+     * 获取场景预览图的指定规格，尚未生成时返回空
+     */
+    public Optional<ImageVariant> getPreviewVariant(Long id, String size) {
+        return imageVariantService.findVariant(ImageVariantService.OWNER_SCENE, id, size);
     }
     
     /**
@@ -83,7 +101,14 @@ public class SceneService {
         
         // 如果有新的预览图片，更新预览图
         if (sceneDetails.getPreviewImage() != null && !sceneDetails.getPreviewImage().isEmpty()) {
+            // 新旧路径都可能已被缓存（同名文件可能被覆盖）
+            hotFileCache.invalidate(scene.getPreviewImage());
+            hotFileCache.invalidate(sceneDetails.getPreviewImage());
             scene.setPreviewImage(sceneDetails.getPreviewImage());
+            
+            // 预览图变化后重新生成规格图
+            imageVariantService.deleteVariants(ImageVariantService.OWNER_SCENE, id);
+            imageVariantService.scheduleVariants(ImageVariantService.OWNER_SCENE, id, scene.getPreviewImage());
         }
         
         return sceneRepository.save(scene);
@@ -117,7 +142,9 @@ public class SceneService {
             // 删除场景的预览图片
             if (scene.getPreviewImage() != null && !scene.getPreviewImage().isEmpty()) {
                 fileStorageService.deleteFile(scene.getPreviewImage());
+                hotFileCache.invalidate(scene.getPreviewImage());
             }
+            imageVariantService.deleteVariants(ImageVariantService.OWNER_SCENE, id);
             
             // 删除场景记录
             sceneRepository.delete(scene);
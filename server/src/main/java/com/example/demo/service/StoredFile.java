@@ -0,0 +1,41 @@
+package com.example.demo.service;
+
+/**
+ * 已写入磁盘的文件信息
+ * 写入时一次性计算出大小和 SHA-256，供 ETag 等后续环节直接复用
+ */
+public class StoredFile {
+
+    private final String path;
+    private final long size;
+    private final String sha256;
+    // 根据文件头识别出的内容类型，未识别时为 null
+    private final String sniffedType;
+
+    public StoredFile(String path, long size, String sha256) {
+        this(path, size, sha256, null);
+    }
+
+    public StoredFile(String path, long size, String sha256, String sniffedType) {
+        this.path = path;
+        this.size = size;
+        this.sha256 = sha256;
+        this.sniffedType = sniffedType;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getSha256() {
+        return sha256;
+    }
+
+    public String getSniffedType() {
+        return sniffedType;
+    }
+}
@@ -18,6 +18,7 @@ CREATE TABLE IF NOT EXISTS photos (
     file_type VARCHAR(100) NOT NULL,
     upload_time TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
     description VARCHAR(500),
+    content_hash VARCHAR(64),
     FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
 );
 
@@ -50,6 +51,9 @@ CREATE TABLE IF NOT EXISTS photo_merges (
     scene_id INT NOT NULL,
     prompt_text TEXT,
     result_path VARCHAR(500),
+    result_hash VARCHAR(64),
+    input_fingerprint VARCHAR(64),
+    group_id VARCHAR(36),
     status VARCHAR(20) NOT NULL DEFAULT 'PROCESSING',
     created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
     completed_at TIMESTAMP,
@@ -59,13 +63,95 @@ CREATE TABLE IF NOT EXISTS photo_merges (
     FOREIGN KEY (scene_id) REFERENCES scenes(id) ON DELETE CASCADE
 );
 
+-- 创建合照结果缓存表（相同输入指纹的合照直接引用已有结果文件；PENDING 为某个节点正在生成的占位记录）
+CREATE TABLE IF NOT EXISTS merge_results (
+    id SERIAL PRIMARY KEY,
+    fingerprint VARCHAR(64) NOT NULL UNIQUE,
+    status VARCHAR(20) NOT NULL DEFAULT 'READY',
+    owner VARCHAR(100),
+    lease_until TIMESTAMP,
+    result_path VARCHAR(500),
+    result_hash VARCHAR(64),
+    model_version VARCHAR(50),
+    hit_count BIGINT NOT NULL DEFAULT 0,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    last_hit_at TIMESTAMP
+);
+
+-- 创建合照任务队列表（各节点以 FOR UPDATE SKIP LOCKED 领取，租约过期后重新入队）
+CREATE TABLE IF NOT EXISTS merge_jobs (
+    id SERIAL PRIMARY KEY,
+    merge_id INT NOT NULL,
+    user_id INT,
+    job_type VARCHAR(20) NOT NULL,
+    status VARCHAR(20) NOT NULL DEFAULT 'QUEUED',
+    attempts INT NOT NULL DEFAULT 0,
+    locked_by VARCHAR(100),
+    lease_until TIMESTAMP,
+    available_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    last_error VARCHAR(1000),
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    finished_at TIMESTAMP,
+    FOREIGN KEY (merge_id) REFERENCES photo_merges(id) ON DELETE CASCADE
+);
+
+-- 创建照片内容表（按 SHA-256 去重存储，记录引用数）
+CREATE TABLE IF NOT EXISTS photo_blobs (
+    id SERIAL PRIMARY KEY,
+    sha256 VARCHAR(64) NOT NULL UNIQUE,
+    file_path VARCHAR(500) NOT NULL,
+    file_size BIGINT NOT NULL,
+    content_type VARCHAR(100),
+    ref_count INT NOT NULL DEFAULT 1,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+-- 创建断点续传会话表
+CREATE TABLE IF NOT EXISTS upload_sessions (
+    id VARCHAR(36) PRIMARY KEY,
+    user_id INT NOT NULL,
+    file_name VARCHAR(255) NOT NULL,
+    total_size BIGINT NOT NULL,
+    upload_offset BIGINT NOT NULL DEFAULT 0,
+    staging_path VARCHAR(500) NOT NULL,
+    status VARCHAR(20) NOT NULL DEFAULT 'UPLOADING',
+    photo_id INT,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    expires_at TIMESTAMP NOT NULL,
+    FOREIGN KEY (user_id) REFERENCES users(id) ON DELETE CASCADE
+);
+
+-- 创建图片规格表（照片、场景预览图、合照结果的缩略图等）
+CREATE TABLE IF NOT EXISTS image_variants (
+    id SERIAL PRIMARY KEY,
+    owner_type VARCHAR(20) NOT NULL,
+    owner_id INT NOT NULL,
+    variant VARCHAR(20) NOT NULL,
+    width INT NOT NULL,
+    height INT NOT NULL,
+    file_path VARCHAR(500) NOT NULL,
+    file_size BIGINT NOT NULL,
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    UNIQUE (owner_type, owner_id, variant)
+);
+
 -- 创建索引
 CREATE INDEX IF NOT EXISTS idx_photos_user_id ON photos(user_id);
 CREATE INDEX IF NOT EXISTS idx_photos_file_name ON photos(file_name);
 CREATE INDEX IF NOT EXISTS idx_photos_upload_time ON photos(upload_time);
+CREATE INDEX IF NOT EXISTS idx_photos_content_hash ON photos(content_hash);
+CREATE INDEX IF NOT EXISTS idx_upload_sessions_expires_at ON upload_sessions(expires_at);
 
 CREATE INDEX IF NOT EXISTS idx_scenes_is_active ON scenes(is_active);
 CREATE INDEX IF NOT EXISTS idx_prompts_user_id ON prompts(user_id);
 CREATE INDEX IF NOT EXISTS idx_prompts_is_public ON prompts(is_public);
 CREATE INDEX IF NOT EXISTS idx_photo_merges_user_id ON photo_merges(user_id);
-CREATE INDEX IF NOT EXISTS idx_photo_merges_status ON photo_merges(status); 
\ No newline at end of file
+CREATE INDEX IF NOT EXISTS idx_photo_merges_status ON photo_merges(status);
+CREATE INDEX IF NOT EXISTS idx_photo_merges_result_path ON photo_merges(result_path);
+CREATE INDEX IF NOT EXISTS idx_photo_merges_group_id ON photo_merges(group_id) WHERE group_id IS NOT NULL;
+CREATE INDEX IF NOT EXISTS idx_merge_results_result_path ON merge_results(result_path);
+CREATE INDEX IF NOT EXISTS idx_merge_jobs_merge_id ON merge_jobs(merge_id);
+-- 只为待领取和执行中的任务建索引，已结束的任务不影响领取速度
+CREATE INDEX IF NOT EXISTS idx_merge_jobs_queued ON merge_jobs(user_id, id) WHERE status = 'QUEUED';
+CREATE INDEX IF NOT EXISTS idx_merge_jobs_user_status ON merge_jobs(user_id, status);
+CREATE INDEX IF NOT EXISTS idx_merge_jobs_lease ON merge_jobs(lease_until) WHERE status = 'RUNNING'; 
\ No newline at end of file
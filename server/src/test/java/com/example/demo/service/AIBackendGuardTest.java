@@ -0,0 +1,170 @@
+package com.example.demo.service;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 熔断器和自适应并发上限在真实 HTTP 调用下的表现：本地模拟后端的延迟逐步升高，随后连续失败
+ */
+class AIBackendGuardTest {
+
+    private static final byte[] RESULT = "merged-image-bytes".getBytes();
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private final AtomicLong latencyMs = new AtomicLong();
+    private final AtomicBoolean failing = new AtomicBoolean();
+    private final AtomicInteger requests = new AtomicInteger();
+    private AIBackendGuard guard;
+    private AIService service;
+    private Path photo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/merge", exchange -> {
+            requests.incrementAndGet();
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+                Thread.sleep(latencyMs.get());
+                if (failing.get()) {
+                    exchange.sendResponseHeaders(503, -1);
+                } else {
+                    exchange.sendResponseHeaders(200, RESULT.length);
+                    exchange.getResponseBody().write(RESULT);
+                }
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        Path stagingDir = Files.createDirectories(tempDir.resolve("staging"));
+        FileStorageService fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.createStagingFile(anyString()))
+                .thenAnswer(invocation -> Files.createTempFile(stagingDir, invocation.getArgument(0), ".part"));
+        photo = Files.write(tempDir.resolve("photo.jpg"), new byte[] {(byte) 0xFF, (byte) 0xD8, 1, 2, 3});
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        // 初始上限 16；窗口 20 次中至少 10 次、失败率过半时熔断 1 秒，半开时试探 2 次
+        guard = new AIBackendGuard(16, 1, 64, 0.5, 5, 20, 10, 0.5, 1, 2, meterRegistry);
+        AIInputPreprocessor preprocessor = new AIInputPreprocessor(mock(ImageProcessingService.class),
+                mock(ImageResizeService.class), fileStorageService, false, 1024, 90, meterRegistry);
+        service = new AIService(fileStorageService, guard, preprocessor,
+                "http://127.0.0.1:" + server.getAddress().getPort() + "/merge", "test-key", false,
+                2000, 10_000, 4, 1024 * 1024);
+    }
+
+    @AfterEach
+    void tearDown() {
+        service.shutdown();
+        server.stop(0);
+    }
+
+    @Test
+    void limitShrinksAsLatencyRisesAndBreakerOpensOnFailures() throws Exception {
+        // 低延迟下建立基准
+        latencyMs.set(10);
+        for (int i = 0; i < 5; i++) {
+            runRound();
+        }
+        int baselineLimit = guard.getLimit();
+
+        // 延迟逐步升高，后端在排队，上限随之收缩
+        int previousLimit = baselineLimit;
+        for (long latency : new long[] {50, 150, 300}) {
+            latencyMs.set(latency);
+            for (int i = 0; i < 3; i++) {
+                runRound();
+            }
+            assertTrue(guard.getLimit() <= previousLimit,
+                    "延迟 " + latency + " ms 时上限不应增加: " + previousLimit + " -> " + guard.getLimit());
+            previousLimit = guard.getLimit();
+        }
+        assertTrue(guard.getLimit() < baselineLimit,
+                "延迟升高后上限应收缩: " + baselineLimit + " -> " + guard.getLimit());
+        assertEquals(CircuitBreaker.State.CLOSED, guard.getBreakerState());
+
+        // 后端开始连续返回 503，失败率过半后熔断
+        latencyMs.set(0);
+        failing.set(true);
+        int limitBeforeFailures = guard.getLimit();
+        int failures = 0;
+        while (guard.getBreakerState() == CircuitBreaker.State.CLOSED && failures < 30) {
+            assertThrows(ExecutionException.class, () -> call().get(10, TimeUnit.SECONDS));
+            failures++;
+        }
+        assertEquals(CircuitBreaker.State.OPEN, guard.getBreakerState());
+        assertTrue(failures >= 10, "至少 10 次调用后才判断失败率，实际 " + failures);
+        assertTrue(guard.getLimit() < limitBeforeFailures || guard.getLimit() == 1, "失败时上限应收缩");
+
+        // 熔断期间请求不再发出
+        int sent = requests.get();
+        ExecutionException rejected = assertThrows(ExecutionException.class, () -> call().get(10, TimeUnit.SECONDS));
+        assertTrue(rejected.getCause() instanceof MergeDeferredException, String.valueOf(rejected.getCause()));
+        assertEquals(sent, requests.get());
+
+        // 后端恢复，熔断时间过后试探成功即关闭
+        failing.set(false);
+        Thread.sleep(1100);
+        call().get(10, TimeUnit.SECONDS);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, guard.getBreakerState());
+        call().get(10, TimeUnit.SECONDS);
+        assertEquals(CircuitBreaker.State.CLOSED, guard.getBreakerState());
+    }
+
+    /**
+     * 按当前上限同时发出一批调用，超出上限被拒绝的不计
+     */
+    private void runRound() throws Exception {
+        int calls = guard.getLimit();
+        List<CompletableFuture<StoredFile>> results = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            results.add(call());
+        }
+        for (CompletableFuture<StoredFile> result : results) {
+            try {
+                Files.delete(Path.of(result.get(10, TimeUnit.SECONDS).getPath()));
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof MergeDeferredException, String.valueOf(e.getCause()));
+            }
+        }
+    }
+
+    private CompletableFuture<StoredFile> call() {
+        return service.generateMergedPhotoAsync(photo.toString(), photo.toString(), photo.toString(), "prompt");
+    }
+}
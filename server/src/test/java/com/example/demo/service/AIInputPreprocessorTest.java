@@ -0,0 +1,102 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AIInputPreprocessorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path cacheDir;
+    private AIInputPreprocessor preprocessor;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        cacheDir = tempDir.resolve("derived");
+        Path stagingDir = Files.createDirectories(tempDir.resolve("staging"));
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        ImageProcessingService imageProcessingService = new ImageProcessingService();
+        ImageResizeService imageResizeService = new ImageResizeService(imageProcessingService, cacheDir.toString(),
+                64L * 1024 * 1024, new Integer[] {160}, new Integer[] {160}, new Integer[] {80}, 80, meterRegistry);
+        FileStorageService fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.createStagingFile(anyString()))
+                .thenAnswer(invocation -> Files.createTempFile(stagingDir, invocation.getArgument(0), ".part"));
+
+        preprocessor = new AIInputPreprocessor(imageProcessingService, imageResizeService, fileStorageService,
+                true, 256, 90, meterRegistry);
+    }
+
+    @Test
+    void sharedInputsSurviveCacheEviction() throws IOException {
+        Path photo = writeImage("photo.jpg", 800, 600);
+        Path scene = writeImage("scene.jpg", 1200, 900);
+
+        try (AIInputPreprocessor.PreparedInput input = preprocessor.prepare(
+                photo.toString(), photo.toString(), scene.toString(), true)) {
+            byte[] sceneBytes = Files.readAllBytes(input.getScene());
+            byte[] photoBytes = Files.readAllBytes(input.getPhoto1());
+
+            // 请求发出前缓存淘汰了这些派生图
+            evictAll();
+
+            assertFalse(input.getScene().startsWith(cacheDir));
+            assertArrayEquals(sceneBytes, Files.readAllBytes(input.getScene()));
+            assertArrayEquals(photoBytes, Files.readAllBytes(input.getPhoto1()));
+            assertArrayEquals(photoBytes, Files.readAllBytes(input.getPhoto2()));
+
+            input.close();
+            assertFalse(Files.exists(input.getScene()));
+            assertFalse(Files.exists(input.getPhoto1()));
+        }
+    }
+
+    @Test
+    void sharedInputsAreDownscaled() throws IOException {
+        Path photo = writeImage("photo.jpg", 800, 600);
+        Path scene = writeImage("scene.jpg", 1200, 900);
+
+        try (AIInputPreprocessor.PreparedInput input = preprocessor.prepare(
+                photo.toString(), photo.toString(), scene.toString(), true)) {
+            BufferedImage prepared = ImageIO.read(input.getScene().toFile());
+            assertTrue(Math.max(prepared.getWidth(), prepared.getHeight()) <= 256);
+        }
+    }
+
+    private void evictAll() throws IOException {
+        try (Stream<Path> files = Files.walk(cacheDir)) {
+            for (Path file : files.filter(Files::isRegularFile).toList()) {
+                Files.delete(file);
+            }
+        }
+    }
+
+    private Path writeImage(String name, int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, (x * 7 + y * 13) & 0xFFFFFF);
+            }
+        }
+        Path file = tempDir.resolve(name);
+        ImageIO.write(image, "jpg", file.toFile());
+        return file;
+    }
+}
@@ -0,0 +1,365 @@
+package com.example.demo.service;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Response;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class AIServiceTest {
+
+    private static final byte[] RESULT = "merged-image-bytes".getBytes();
+
+    @TempDir
+    Path tempDir;
+
+    private HttpServer server;
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final List<AIService> services = new ArrayList<>();
+    private FileStorageService fileStorageService;
+    private Path photo;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/merge", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            exchange.sendResponseHeaders(200, RESULT.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(RESULT);
+            }
+        });
+        server.createContext("/slow", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+                Thread.sleep(3000);
+                exchange.sendResponseHeaders(200, RESULT.length);
+                exchange.getResponseBody().write(RESULT);
+            } catch (InterruptedException | IOException ignored) {
+                // 客户端超时后断开
+            } finally {
+                exchange.close();
+            }
+        });
+        server.createContext("/stall", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+                // 响应头和一半响应体立即发出，其余部分停滞
+                exchange.sendResponseHeaders(200, RESULT.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(RESULT, 0, RESULT.length / 2);
+                out.flush();
+                Thread.sleep(3000);
+                out.write(RESULT, RESULT.length / 2, RESULT.length - RESULT.length / 2);
+            } catch (InterruptedException | IOException ignored) {
+                // 客户端超时后断开
+            } finally {
+                exchange.close();
+            }
+        });
+        server.createContext("/busy", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            try (InputStream in = exchange.getRequestBody()) {
+                in.transferTo(OutputStream.nullOutputStream());
+                // 保证同一批请求在服务端重叠
+                Thread.sleep(200);
+                exchange.sendResponseHeaders(200, RESULT.length);
+                exchange.getResponseBody().write(RESULT);
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        Path stagingDir = Files.createDirectories(tempDir.resolve("staging"));
+        fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.createStagingFile(anyString()))
+                .thenAnswer(invocation -> Files.createTempFile(stagingDir, invocation.getArgument(0), ".part"));
+
+        photo = Files.write(tempDir.resolve("photo.jpg"), new byte[] {(byte) 0xFF, (byte) 0xD8, 1, 2, 3});
+    }
+
+    @AfterEach
+    void tearDown() {
+        services.forEach(AIService::shutdown);
+        server.stop(0);
+    }
+
+    @Test
+    void reusesOneConnectionAcrossCalls() throws Exception {
+        AIService service = newService(url("/merge"), 2000, 5000);
+
+        for (int i = 0; i < 5; i++) {
+            StoredFile result = service.generateMergedPhotoAsync(photo.toString(), photo.toString(),
+                    photo.toString(), "prompt " + i).get(10, TimeUnit.SECONDS);
+            assertArrayEquals(RESULT, Files.readAllBytes(Path.of(result.getPath())));
+            Files.delete(Path.of(result.getPath()));
+        }
+
+        assertEquals(1, clientPorts.size(), "所有请求应复用同一个连接: " + clientPorts);
+    }
+
+    @Test
+    void concurrentCallsReuseThePooledConnections() throws Exception {
+        AIService service = newService(url("/busy"), 2000, 5000);
+        int concurrency = 4;
+
+        runBurst(service, concurrency);
+        Set<Integer> firstBurst = Set.copyOf(clientPorts);
+        assertTrue(firstBurst.size() <= concurrency, "并发请求的连接数不应超过并发数: " + firstBurst);
+
+        // JDK 的 HttpServer 只支持 HTTP/1.1，对应不支持 HTTP/2 的后端：第二批并发请求全部复用第一批建立的连接
+        runBurst(service, concurrency);
+        runBurst(service, concurrency);
+        assertEquals(firstBurst, clientPorts, "后续请求不应新建连接");
+    }
+
+    @Test
+    void concurrentCallsAreMultiplexedOverOneHttp2Connection() throws Exception {
+        Set<String> connections = ConcurrentHashMap.newKeySet();
+        Set<String> protocols = ConcurrentHashMap.newKeySet();
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+
+        // 生产环境的 AI 服务走 HTTPS，HTTP/2 通过 ALPN 协商
+        Path keyStore = selfSignedKeyStore();
+        Server jetty = startHttp2Server(keyStore, new Handler.Abstract() {
+            @Override
+            public boolean handle(Request request, Response response, Callback callback) throws Exception {
+                connections.add(String.valueOf(Request.getRemotePort(request)));
+                protocols.add(request.getConnectionMetaData().getProtocol());
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                try (InputStream in = Request.asInputStream(request)) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                    // 保证同一批请求在服务端重叠
+                    Thread.sleep(300);
+                } finally {
+                    active.decrementAndGet();
+                }
+                response.setStatus(200);
+                response.write(true, ByteBuffer.wrap(RESULT), callback);
+                return true;
+            }
+        });
+        int port = ((ServerConnector) jetty.getConnectors()[0]).getLocalPort();
+        SSLContext defaultContext = SSLContext.getDefault();
+        try {
+            // AIService 的 HttpClient 使用默认的 SSLContext，创建前换成信任测试证书的
+            SSLContext.setDefault(trusting(keyStore));
+            AIService service = newService("https://127.0.0.1:" + port + "/merge", 2000, 5000);
+            // 还没有可用的 HTTP/2 连接时，同时发出的请求各自建连，之后只保留一个连接
+            runBurst(service, 4);
+            assertTrue(connections.size() <= 4, "建连数不应超过并发数: " + connections);
+
+            connections.clear();
+            maxActive.set(0);
+            runBurst(service, 4);
+            runBurst(service, 4);
+            assertEquals(Set.of("HTTP/2.0"), protocols);
+            assertEquals(1, connections.size(), "后续的并发请求应复用同一个 HTTP/2 连接: " + connections);
+            assertTrue(maxActive.get() > 1, "并发请求应在同一连接上同时处理，实际最多 " + maxActive.get());
+        } finally {
+            SSLContext.setDefault(defaultContext);
+            jetty.stop();
+        }
+    }
+
+    @Test
+    void stalledResponseBodyFailsWithTheRequestTimeout() throws IOException {
+        AIService service = newService(url("/stall"), 2000, 500);
+
+        long start = System.nanoTime();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> service.generateMergedPhotoAsync(
+                photo.toString(), photo.toString(), photo.toString(), "prompt").get(10, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("AI服务响应超时", ex.getCause().getMessage());
+        assertInstanceOf(HttpTimeoutException.class, ex.getCause().getCause());
+        assertTrue(elapsedMs >= 500 && elapsedMs < 2500, "应在请求期限到期后失败，实际 " + elapsedMs + " ms");
+        // 已接收的部分响应被删除
+        try (Stream<Path> staged = Files.list(tempDir.resolve("staging"))) {
+            assertEquals(0, staged.count());
+        }
+    }
+
+    @Test
+    void slowResponseFailsWithTheRequestTimeout() {
+        AIService service = newService(url("/slow"), 2000, 300);
+
+        long start = System.nanoTime();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> service.generateMergedPhotoAsync(
+                photo.toString(), photo.toString(), photo.toString(), "prompt").get(10, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals("AI服务响应超时", ex.getCause().getMessage());
+        assertInstanceOf(HttpTimeoutException.class, ex.getCause().getCause());
+        assertTrue(elapsedMs >= 300 && elapsedMs < 2500, "应在请求超时后失败，实际 " + elapsedMs + " ms");
+    }
+
+    @Test
+    void unresponsiveHostFailsWithTheConnectTimeout() throws Exception {
+        // 不接受连接且全连接队列已满的端口，新的连接请求得不到应答
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            List<Socket> fillers = new ArrayList<>();
+            try {
+                for (int i = 0; i < 8; i++) {
+                    Socket socket = new Socket();
+                    try {
+                        socket.connect(listener.getLocalSocketAddress(), 200);
+                        fillers.add(socket);
+                    } catch (IOException full) {
+                        socket.close();
+                        break;
+                    }
+                }
+
+                AIService service = newService("http://127.0.0.1:" + listener.getLocalPort() + "/merge", 300, 10_000);
+                long start = System.nanoTime();
+                ExecutionException ex = assertThrows(ExecutionException.class, () -> service.generateMergedPhotoAsync(
+                        photo.toString(), photo.toString(), photo.toString(), "prompt").get(10, TimeUnit.SECONDS));
+                long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+                assertInstanceOf(HttpConnectTimeoutException.class, ex.getCause().getCause());
+                assertTrue(elapsedMs >= 300 && elapsedMs < 5000, "应在建连超时后失败，实际 " + elapsedMs + " ms");
+            } finally {
+                for (Socket socket : fillers) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * 生成 127.0.0.1 的临时自签名证书
+     */
+    private Path selfSignedKeyStore() throws Exception {
+        Path keyStore = tempDir.resolve("server.p12");
+        Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+                "-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                "-dname", "CN=127.0.0.1", "-ext", "SAN=ip:127.0.0.1", "-storetype", "PKCS12",
+                "-keystore", keyStore.toString(), "-storepass", "changeit")
+                .redirectErrorStream(true).start();
+        assertTrue(keytool.waitFor(30, TimeUnit.SECONDS) && keytool.exitValue() == 0,
+                new String(keytool.getInputStream().readAllBytes()));
+        return keyStore;
+    }
+
+    /**
+     * 只支持 HTTPS 上的 HTTP/2 的模拟服务
+     */
+    private static Server startHttp2Server(Path keyStore, Handler handler) throws Exception {
+        SslContextFactory.Server ssl = new SslContextFactory.Server();
+        ssl.setKeyStorePath(keyStore.toString());
+        ssl.setKeyStorePassword("changeit");
+        ssl.setCipherComparator(HTTP2Cipher.COMPARATOR);
+        HttpConfiguration config = new HttpConfiguration();
+        config.addCustomizer(new SecureRequestCustomizer());
+        ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory("h2");
+        Server jetty = new Server();
+        ServerConnector connector = new ServerConnector(jetty, new SslConnectionFactory(ssl, alpn.getProtocol()),
+                alpn, new HTTP2ServerConnectionFactory(config));
+        connector.setHost("127.0.0.1");
+        jetty.addConnector(connector);
+        jetty.setHandler(handler);
+        jetty.start();
+        return jetty;
+    }
+
+    private static SSLContext trusting(Path keyStorePath) throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = Files.newInputStream(keyStorePath)) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyStore trustStore = KeyStore.getInstance("PKCS12");
+        trustStore.load(null, null);
+        trustStore.setCertificateEntry("server", keyStore.getCertificate("server"));
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trustStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagers.getTrustManagers(), null);
+        return context;
+    }
+
+    private void runBurst(AIService service, int calls) throws Exception {
+        List<CompletableFuture<StoredFile>> results = new ArrayList<>();
+        for (int i = 0; i < calls; i++) {
+            results.add(service.generateMergedPhotoAsync(photo.toString(), photo.toString(),
+                    photo.toString(), "prompt " + i));
+        }
+        for (CompletableFuture<StoredFile> result : results) {
+            StoredFile file = result.get(10, TimeUnit.SECONDS);
+            assertArrayEquals(RESULT, Files.readAllBytes(Path.of(file.getPath())));
+            Files.delete(Path.of(file.getPath()));
+        }
+    }
+
+    private AIService newService(String apiUrl, long connectTimeoutMs, long requestTimeoutMs) {
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        AIBackendGuard guard = new AIBackendGuard(4, 1, 64, 0.5, 5, 20, 10, 0.5, 30, 3, meterRegistry);
+        AIInputPreprocessor preprocessor = new AIInputPreprocessor(mock(ImageProcessingService.class),
+                mock(ImageResizeService.class), fileStorageService, false, 1024, 90, meterRegistry);
+        AIService service = new AIService(fileStorageService, guard, preprocessor, apiUrl, "test-key", false,
+                connectTimeoutMs, requestTimeoutMs, 2, 1024 * 1024);
+        services.add(service);
+        return service;
+    }
+
+    private String url(String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+}
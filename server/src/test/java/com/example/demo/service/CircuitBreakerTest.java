@@ -0,0 +1,163 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CircuitBreakerTest {
+
+    private static final long LONG_OPEN = 60_000;
+
+    @Test
+    void staysClosedBelowMinimumCalls() {
+        CircuitBreaker breaker = new CircuitBreaker(10, 4, 0.5, LONG_OPEN, 1);
+
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(acquire(breaker));
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void opensWhenFailureRateReachesThreshold() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, LONG_OPEN, 1);
+
+        breaker.onSuccess(acquire(breaker));
+        breaker.onSuccess(acquire(breaker));
+        breaker.onFailure(acquire(breaker));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        breaker.onFailure(acquire(breaker));
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    }
+
+    @Test
+    void oldOutcomesLeaveTheWindow() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 4, 0.5, LONG_OPEN, 1);
+
+        breaker.onFailure(acquire(breaker));
+        for (int i = 0; i < 6; i++) {
+            breaker.onSuccess(acquire(breaker));
+        }
+        // 窗口内只剩成功，再失败一次失败率为 1/4
+        breaker.onFailure(acquire(breaker));
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void closesAfterAllTrialCallsSucceed() {
+        CircuitBreaker breaker = trippedBreaker(2);
+
+        long first = acquire(breaker);
+        long second = acquire(breaker);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+
+        breaker.onSuccess(first);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(second);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void reopensOnTrialFailure() {
+        CircuitBreaker breaker = trippedBreaker(2);
+
+        long trial = acquire(breaker);
+        breaker.onFailure(trial);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void ignoredTrialReturnsItsPermit() {
+        CircuitBreaker breaker = trippedBreaker(1);
+
+        long trial = acquire(breaker);
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+        breaker.onIgnored(trial);
+
+        long retry = acquire(breaker);
+        breaker.onSuccess(retry);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void lateSuccessFromBeforeTheTripDoesNotCloseHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 2, 0.5, 0, 1);
+        long stale = acquire(breaker);
+        breaker.onFailure(acquire(breaker));
+        breaker.onFailure(acquire(breaker));
+        long trial = acquire(breaker);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess(stale);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess(trial);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void lateFailureFromBeforeTheTripDoesNotReopenHalfOpen() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 2, 0.5, 0, 1);
+        long stale = acquire(breaker);
+        breaker.onFailure(acquire(breaker));
+        breaker.onFailure(acquire(breaker));
+        long trial = acquire(breaker);
+
+        breaker.onFailure(stale);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess(trial);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void lateIgnoreFromBeforeTheTripDoesNotAddTrialPermits() {
+        CircuitBreaker breaker = new CircuitBreaker(2, 2, 0.5, 0, 1);
+        long stale = acquire(breaker);
+        breaker.onFailure(acquire(breaker));
+        breaker.onFailure(acquire(breaker));
+        acquire(breaker);
+
+        breaker.onIgnored(stale);
+
+        assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire());
+    }
+
+    @Test
+    void trialFromAnEarlierHalfOpenRoundIsIgnored() {
+        CircuitBreaker breaker = trippedBreaker(2);
+        long earlier = acquire(breaker);
+        breaker.onFailure(acquire(breaker));
+        long current = acquire(breaker);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess(earlier);
+        breaker.onSuccess(current);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+    }
+
+    /**
+     * 打开后立即可以进入半开状态的熔断器
+     */
+    private static CircuitBreaker trippedBreaker(int halfOpenCalls) {
+        CircuitBreaker breaker = new CircuitBreaker(2, 2, 0.5, 0, halfOpenCalls);
+        breaker.onFailure(acquire(breaker));
+        breaker.onFailure(acquire(breaker));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        return breaker;
+    }
+
+    private static long acquire(CircuitBreaker breaker) {
+        long generation = breaker.tryAcquire();
+        assertNotEquals(CircuitBreaker.REJECTED, generation);
+        return generation;
+    }
+}
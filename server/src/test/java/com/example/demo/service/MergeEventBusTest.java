@@ -0,0 +1,96 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class MergeEventBusTest {
+
+    private MergeEventBus eventBus;
+    private TransactionTemplate transactionTemplate;
+
+    @BeforeEach
+    void setUp() {
+        eventBus = spy(new MergeEventBus(60_000, 100, 600, 64, 1, new SimpleMeterRegistry()));
+        transactionTemplate = new TransactionTemplate(new NoopTransactionManager());
+    }
+
+    @AfterEach
+    void tearDown() {
+        eventBus.shutdown();
+    }
+
+    @Test
+    void publishesImmediatelyOutsideTransactions() {
+        eventBus.publish(7L, 1L, "PROCESSING", 0, "已提交");
+
+        verify(eventBus).dispatch(7L, 1L, "PROCESSING", 0, "已提交");
+    }
+
+    @Test
+    void publishesAfterCommit() {
+        transactionTemplate.executeWithoutResult(status -> {
+            eventBus.publish(7L, 1L, "COMPLETED", 100, null);
+            eventBus.publish(7L, 2L, "PROCESSING", 0, "已提交");
+            // 提交前订阅方看不到
+            verify(eventBus, never()).dispatch(anyLong(), anyLong(), any(), any(), any());
+        });
+
+        verify(eventBus).dispatch(7L, 1L, "COMPLETED", 100, null);
+        verify(eventBus).dispatch(7L, 2L, "PROCESSING", 0, "已提交");
+    }
+
+    @Test
+    void dropsEventsOfRolledBackTransactions() {
+        // 如积压已满时整个提交事务回滚
+        assertThrows(MergeBacklogFullException.class, () -> transactionTemplate.executeWithoutResult(status -> {
+            eventBus.publish(7L, 1L, "PROCESSING", 0, "已提交");
+            throw new MergeBacklogFullException(20, 5);
+        }));
+        transactionTemplate.executeWithoutResult(status -> {
+            eventBus.publish(7L, 2L, "CANCELLED", null, "已取消");
+            status.setRollbackOnly();
+        });
+
+        verify(eventBus, never()).dispatch(anyLong(), anyLong(), any(), any(), any());
+        eventBus.publish(7L, 3L, "PROCESSING", 0, "已提交");
+        verify(eventBus, times(1)).dispatch(eq(7L), anyLong(), any(), any(), any());
+    }
+
+    /**
+     * 只驱动事务同步回调的事务管理器
+     */
+    private static class NoopTransactionManager extends AbstractPlatformTransactionManager {
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.MergeJob;
+import com.example.demo.repository.MergeJobRepository;
+import com.example.demo.repository.PhotoMergeRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.InOrder;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MergeJobServiceTest {
+
+    // 模拟 pg_advisory_xact_lock：加锁后持有到事务结束
+    private final ReentrantLock advisoryLock = new ReentrantLock();
+    private final List<MergeJob> jobs = new CopyOnWriteArrayList<>();
+
+    private MergeJobRepository mergeJobRepository;
+    private JdbcTemplate jdbcTemplate;
+    private MergeJobService mergeJobService;
+
+    @BeforeEach
+    void setUp() {
+        mergeJobRepository = mock(MergeJobRepository.class);
+        when(mergeJobRepository.existsByMergeIdAndStatusIn(anyLong(), anyCollection()))
+                .thenAnswer(invocation -> jobs.stream().anyMatch(job ->
+                        job.getMergeId().equals(invocation.getArgument(0))));
+        when(mergeJobRepository.save(any(MergeJob.class))).thenAnswer(invocation -> {
+            MergeJob job = invocation.getArgument(0);
+            // 写入和提交之间留出时间，让并发的请求有机会交错
+            Thread.sleep(100);
+            jobs.add(job);
+            return job;
+        });
+        jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.queryForList(eq("SELECT pg_advisory_xact_lock(?)"), any(Object[].class)))
+                .thenAnswer(invocation -> {
+                    advisoryLock.lock();
+                    return List.of();
+                });
+
+        mergeJobService = new MergeJobService(mergeJobRepository, mock(PhotoMergeRepository.class), jdbcTemplate,
+                mock(MergeEventBus.class), mock(MergeJobScheduler.class), 60, 3, 30, 20, 30, 100,
+                new SimpleMeterRegistry());
+    }
+
+    @Test
+    void concurrentRegenerateRequestsEnqueueOnce() throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<Optional<MergeJob>>> results = List.of(
+                CompletableFuture.supplyAsync(() -> regenerate(start)),
+                CompletableFuture.supplyAsync(() -> regenerate(start)));
+        start.countDown();
+
+        long enqueued = 0;
+        for (CompletableFuture<Optional<MergeJob>> result : results) {
+            if (result.get(5, TimeUnit.SECONDS).isPresent()) {
+                enqueued++;
+            }
+        }
+        assertEquals(1, enqueued);
+        assertEquals(1, jobs.size());
+    }
+
+    @Test
+    void activeJobCheckRunsUnderTheBacklogLock() {
+        mergeJobService.enqueueIfIdle(1L, 7L, MergeJob.TYPE_REGENERATE);
+        advisoryLock.unlock();
+
+        InOrder order = inOrder(jdbcTemplate, mergeJobRepository);
+        order.verify(jdbcTemplate).queryForList(eq("SELECT pg_advisory_xact_lock(?)"), any(Object[].class));
+        order.verify(mergeJobRepository).existsByMergeIdAndStatusIn(eq(1L), anyCollection());
+        order.verify(mergeJobRepository).save(any(MergeJob.class));
+    }
+
+    /**
+     * 一次重新生成请求的事务，结束时释放咨询锁
+     */
+    private Optional<MergeJob> regenerate(CountDownLatch start) {
+        try {
+            start.await();
+            return mergeJobService.enqueueIfIdle(1L, 7L, MergeJob.TYPE_REGENERATE);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        } finally {
+            if (advisoryLock.isHeldByCurrentThread()) {
+                advisoryLock.unlock();
+            }
+        }
+    }
+}
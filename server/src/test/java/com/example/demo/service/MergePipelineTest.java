@@ -0,0 +1,99 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class MergePipelineTest {
+
+    private PhotoMergeService photoMergeService;
+    private MergePipeline pipeline;
+    private final LinkedBlockingQueue<CompletableFuture<StoredFile>> calls = new LinkedBlockingQueue<>();
+    private final CountDownLatch persistGate = new CountDownLatch(1);
+    private final ConcurrentLinkedQueue<String> abortThreads = new ConcurrentLinkedQueue<>();
+
+    @BeforeEach
+    void setUp() {
+        photoMergeService = mock(PhotoMergeService.class);
+        doAnswer(invocation -> {
+            invocation.<MergeTask>getArgument(0).generate = true;
+            return null;
+        }).when(photoMergeService).prepareMerge(any());
+        when(photoMergeService.invokeGeneration(any())).thenAnswer(invocation -> {
+            CompletableFuture<StoredFile> call = new CompletableFuture<>();
+            calls.add(call);
+            return call;
+        });
+        doAnswer(invocation -> {
+            persistGate.await();
+            return null;
+        }).when(photoMergeService).persistResult(any());
+        doAnswer(invocation -> {
+            abortThreads.add(Thread.currentThread().getName());
+            return null;
+        }).when(photoMergeService).abortMerge(any(), any());
+
+        // 保存阶段只有一个线程、一个队列位置
+        pipeline = new MergePipeline(photoMergeService, 1, 16, 1, 16, 1, 16, 1, 1, 1, 16,
+                new SimpleMeterRegistry());
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        persistGate.countDown();
+        pipeline.shutdown();
+    }
+
+    @Test
+    void completingAiCallsNeverBlocksTheCompletingThread() throws Exception {
+        int tasks = 6;
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (long id = 1; id <= tasks; id++) {
+            results.add(pipeline.submit(id, false));
+        }
+
+        // 模拟 HttpClient 的线程逐个交付响应：保存阶段已满（一个处理中、一个排队）时也必须立即返回
+        assertTimeoutPreemptively(Duration.ofSeconds(5), () -> {
+            for (int i = 0; i < tasks; i++) {
+                CompletableFuture<StoredFile> call = calls.poll(5, TimeUnit.SECONDS);
+                call.complete(new StoredFile("staged-" + i, 1, "hash"));
+            }
+        });
+
+        persistGate.countDown();
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void failedAiCallsAreHandledOffTheCompletingThread() throws Exception {
+        CompletableFuture<Void> result = pipeline.submit(1L, false);
+
+        CompletableFuture<StoredFile> call = calls.poll(5, TimeUnit.SECONDS);
+        call.completeExceptionally(new RuntimeException("upstream failed"));
+
+        Throwable error = MergePipeline.unwrap(result.handle((ignored, ex) -> ex).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(RuntimeException.class, error);
+        assertEquals("upstream failed", error.getMessage());
+        assertEquals(1, abortThreads.size());
+        assertTrue(abortThreads.peek().startsWith("merge-handoff"), abortThreads.peek());
+    }
+}
@@ -0,0 +1,76 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.Photo;
+import com.example.demo.entity.Scene;
+import com.example.demo.repository.MergeResultRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.mockito.Mockito.mock;
+
+class MergeResultCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private MergeResultCache cache;
+    private Photo photo;
+
+    @BeforeEach
+    void setUp() {
+        cache = new MergeResultCache(mock(MergeResultRepository.class), "v1", 120, new SimpleMeterRegistry());
+        photo = new Photo();
+        photo.setContentHash("photo-hash");
+    }
+
+    @Test
+    void frequentlyUsedFileHashesSurviveWhenTheCacheIsFull() throws IOException {
+        Path hot = Files.write(tempDir.resolve("hot.jpg"), new byte[] {1, 2, 3, 4});
+        String hotFingerprint = fingerprint(hot);
+
+        // 超过上限的其他场景图，其间常用的场景图一直被访问
+        for (int i = 0; i < 1000; i++) {
+            fingerprint(Files.write(tempDir.resolve("scene-" + i + ".jpg"), new byte[] {(byte) i, (byte) (i >> 8)}));
+            if (i % 100 == 50) {
+                fingerprint(hot);
+            }
+        }
+
+        // 同样大小、同样修改时间的新内容：仍命中缓存说明没有重新计算
+        assertEquals(hotFingerprint, fingerprint(rewriteKeepingAttributes(hot, new byte[] {5, 6, 7, 8})));
+    }
+
+    @Test
+    void leastRecentlyUsedFileHashesAreEvicted() throws IOException {
+        Path cold = Files.write(tempDir.resolve("cold.jpg"), new byte[] {1, 2, 3, 4});
+        String coldFingerprint = fingerprint(cold);
+
+        for (int i = 0; i < 1000; i++) {
+            fingerprint(Files.write(tempDir.resolve("scene-" + i + ".jpg"), new byte[] {(byte) i, (byte) (i >> 8)}));
+        }
+
+        assertNotEquals(coldFingerprint, fingerprint(rewriteKeepingAttributes(cold, new byte[] {5, 6, 7, 8})));
+    }
+
+    private String fingerprint(Path scenePreview) {
+        Scene scene = new Scene();
+        scene.setPreviewImage(scenePreview.toString());
+        return cache.fingerprint(photo, photo, scene, "prompt");
+    }
+
+    private static Path rewriteKeepingAttributes(Path file, byte[] content) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        Files.write(file, content);
+        Files.setLastModifiedTime(file, modified);
+        return file;
+    }
+}
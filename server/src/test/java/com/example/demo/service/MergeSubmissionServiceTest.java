@@ -0,0 +1,164 @@
+package com.example.demo.service;
+
+import com.example.demo.controller.PhotoMergeController;
+import com.example.demo.entity.MergeJob;
+import com.example.demo.entity.Photo;
+import com.example.demo.entity.PhotoMerge;
+import com.example.demo.entity.User;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+class MergeSubmissionServiceTest {
+
+    // 模拟的 AI 服务每次生成耗时
+    private static final long GENERATION_MS = 3000;
+
+    private final ConcurrentLinkedQueue<MergeJob> queue = new ConcurrentLinkedQueue<>();
+    private final CountDownLatch generationStarted = new CountDownLatch(1);
+    private final CountDownLatch jobCompleted = new CountDownLatch(1);
+    private final AtomicLong ids = new AtomicLong();
+
+    private PhotoBatchService photoBatchService;
+    private MergePipeline pipeline;
+    private ScheduledExecutorService scheduler;
+    private MockMvc mockMvc;
+    private User user;
+
+    @BeforeEach
+    void setUp() {
+        user = new User();
+        user.setId(7L);
+
+        FileStorageService fileStorageService = mock(FileStorageService.class);
+        when(fileStorageService.stageFile(any())).thenAnswer(invocation ->
+                new StoredFile("staged-" + ids.incrementAndGet(), 5, "hash", "image/jpeg"));
+        PhotoService photoService = mock(PhotoService.class);
+        when(photoService.uploadStagedPhotos(anyList(), anyList(), any())).thenReturn(List.of(photo(1L), photo(2L)));
+        photoBatchService = new PhotoBatchService(fileStorageService, photoService, 2, 10, 50);
+
+        // 合照记录和任务写入内存队列，代替 merges / merge_jobs 表
+        PhotoMergeService photoMergeService = mock(PhotoMergeService.class);
+        when(photoMergeService.createMerge(any(User.class), any(Photo.class), any(Photo.class), anyLong(), any()))
+                .thenAnswer(invocation -> {
+                    PhotoMerge merge = new PhotoMerge();
+                    merge.setId(100L);
+                    merge.setStatus("PROCESSING");
+                    MergeJob job = new MergeJob(merge.getId(), user.getId(), MergeJob.TYPE_GENERATE);
+                    job.setId(200L);
+                    job.setAttempts(1);
+                    queue.add(job);
+                    return merge;
+                });
+        doAnswer(invocation -> {
+            invocation.<MergeTask>getArgument(0).generate = true;
+            return null;
+        }).when(photoMergeService).prepareMerge(any());
+        when(photoMergeService.invokeGeneration(any())).thenAnswer(invocation -> {
+            generationStarted.countDown();
+            return CompletableFuture.supplyAsync(() -> new StoredFile("result", 1, "hash"),
+                    CompletableFuture.delayedExecutor(GENERATION_MS, TimeUnit.MILLISECONDS));
+        });
+
+        MergeJobService mergeJobService = mock(MergeJobService.class);
+        when(mergeJobService.claim(anyString(), anyInt())).thenAnswer(invocation -> {
+            List<MergeJob> claimed = new ArrayList<>();
+            MergeJob job;
+            while (claimed.size() < invocation.<Integer>getArgument(1) && (job = queue.poll()) != null) {
+                claimed.add(job);
+            }
+            return claimed;
+        });
+        when(mergeJobService.complete(eq(200L), anyString())).thenAnswer(invocation -> {
+            jobCompleted.countDown();
+            return true;
+        });
+
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MergeSubmissionService mergeSubmissionService = new MergeSubmissionService(photoBatchService,
+                fileStorageService, photoService, mock(PromptService.class), photoMergeService,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), meterRegistry);
+        pipeline = new MergePipeline(photoMergeService, 1, 16, 1, 16, 1, 16, 1, 16, 1, 16, meterRegistry);
+        MergeJobWorker worker = new MergeJobWorker(mergeJobService, photoMergeService, pipeline,
+                true, 4, 50, meterRegistry);
+        // 代替 @Scheduled 定时领取任务
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleWithFixedDelay(worker::poll, 0, 20, TimeUnit.MILLISECONDS);
+
+        PhotoMergeController controller = new PhotoMergeController(photoMergeService, mergeSubmissionService,
+                mock(FileServingService.class), mock(HotFileCache.class), mock(MergeEventBus.class), mergeJobService);
+        mockMvc = MockMvcBuilders.standaloneSetup(controller).build();
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        scheduler.shutdownNow();
+        pipeline.shutdown();
+        photoBatchService.shutdown();
+    }
+
+    @Test
+    void submissionIsAcceptedWithoutWaitingForGeneration() throws Exception {
+        long start = System.nanoTime();
+        mockMvc.perform(multipart("/api/merges")
+                        .file(new MockMultipartFile("photo1", "a.jpg", "image/jpeg", new byte[] {1, 2, 3}))
+                        .file(new MockMultipartFile("photo2", "b.jpg", "image/jpeg", new byte[] {4, 5, 6}))
+                        .param("sceneId", "3")
+                        .principal(new UsernamePasswordAuthenticationToken(user, null, List.of())))
+                .andExpect(status().isAccepted())
+                .andExpect(header().string("Location", "http://localhost/api/merges/100/status"))
+                .andExpect(jsonPath("$.mergeId").value(100))
+                .andExpect(jsonPath("$.status").value("PROCESSING"));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue(elapsedMs < 500, "提交应立即返回 202，实际 " + elapsedMs + " ms");
+        assertFalse(jobCompleted.await(0, TimeUnit.MILLISECONDS), "返回时生成不应已完成");
+
+        // 生成在后台执行，返回之后才完成
+        assertTrue(generationStarted.await(5, TimeUnit.SECONDS));
+        assertTrue(jobCompleted.await(GENERATION_MS + 5000, TimeUnit.MILLISECONDS));
+        long totalMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(totalMs >= GENERATION_MS, "生成应在模拟耗时之后完成，实际 " + totalMs + " ms");
+        assertEquals(0, queue.size());
+    }
+
+    private static Photo photo(Long id) {
+        Photo photo = new Photo();
+        photo.setId(id);
+        return photo;
+    }
+}
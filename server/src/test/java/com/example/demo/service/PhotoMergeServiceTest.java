@@ -0,0 +1,182 @@
+package com.example.demo.service;
+
+import com.example.demo.entity.Photo;
+import com.example.demo.entity.PhotoMerge;
+import com.example.demo.entity.Scene;
+import com.example.demo.entity.User;
+import com.example.demo.repository.MergeResultRepository;
+import com.example.demo.repository.PhotoMergeRepository;
+import com.example.demo.repository.PhotoRepository;
+import com.example.demo.repository.SceneRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class PhotoMergeServiceTest {
+
+    private static final int MERGES = 8;
+    private static final String FINGERPRINT = "same-inputs";
+
+    // 内存中的 photo_merges 表
+    private final Map<Long, PhotoMerge> merges = new ConcurrentHashMap<>();
+    // 除第一个任务外，其余任务都在等待相同输入的生成
+    private final CountDownLatch followersJoined = new CountDownLatch(MERGES - 1);
+    private final CompletableFuture<StoredFile> upstream = new CompletableFuture<>();
+
+    private AIService aiService;
+    private MergeResultRepository mergeResultRepository;
+    private PhotoRepository photoRepository;
+    private MergeJobService mergeJobService;
+    private PhotoMergeService photoMergeService;
+    private MergePipeline pipeline;
+
+    @BeforeEach
+    void setUp() {
+        User user = new User();
+        user.setId(7L);
+        Photo photo1 = new Photo(user, "a.jpg", "uploads/a.jpg", 3, "image/jpeg");
+        Photo photo2 = new Photo(user, "b.jpg", "uploads/b.jpg", 3, "image/jpeg");
+        Scene scene = new Scene();
+        scene.setId(3L);
+        scene.setPreviewImage("uploads/scene.jpg");
+        for (long id = 1; id <= MERGES; id++) {
+            PhotoMerge merge = new PhotoMerge(user, photo1, photo2, scene, "prompt");
+            merge.setId(id);
+            merge.setInputFingerprint(FINGERPRINT);
+            merge.setStatus("PROCESSING");
+            merges.put(id, merge);
+        }
+
+        PhotoMergeRepository photoMergeRepository = mock(PhotoMergeRepository.class);
+        when(photoMergeRepository.findWithInputsById(anyLong()))
+                .thenAnswer(invocation -> Optional.ofNullable(merges.get(invocation.<Long>getArgument(0))));
+        when(photoMergeRepository.findById(anyLong()))
+                .thenAnswer(invocation -> Optional.ofNullable(merges.get(invocation.<Long>getArgument(0))));
+        when(photoMergeRepository.save(any(PhotoMerge.class))).thenAnswer(invocation -> invocation.getArgument(0));
+
+        // 只有第一次认领能写入占位记录
+        mergeResultRepository = mock(MergeResultRepository.class);
+        when(mergeResultRepository.insertPending(eq(FINGERPRINT), anyString(), any(), anyString()))
+                .thenReturn(1, 0);
+        SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+        MergeResultCache mergeResultCache = new MergeResultCache(mergeResultRepository, "v1", 120, meterRegistry);
+
+        aiService = mock(AIService.class);
+        when(aiService.prepareCall(anyString(), anyString(), anyString(), anyString(), anyBoolean()))
+                .thenReturn(mock(AIService.PreparedCall.class));
+        when(aiService.send(any())).thenReturn(upstream);
+
+        MergeEventBus mergeEventBus = mock(MergeEventBus.class);
+        doAnswer(invocation -> {
+            followersJoined.countDown();
+            return null;
+        }).when(mergeEventBus).publish(anyLong(), anyLong(), eq("PROCESSING"), eq(10), eq("等待相同输入的合照生成"));
+
+        photoRepository = mock(PhotoRepository.class);
+        mergeJobService = mock(MergeJobService.class);
+        when(mergeJobService.getMaxBacklogPerUser()).thenReturn(20);
+        photoMergeService = new PhotoMergeService(photoMergeRepository,
+                photoRepository, mock(SceneRepository.class), mock(FileStorageService.class), aiService,
+                mock(HotFileCache.class), mock(ImageVariantService.class), mergeJobService,
+                mergeEventBus, mergeResultCache, mock(JdbcTemplate.class), 5, 20);
+        pipeline = new MergePipeline(photoMergeService, 4, 16, 2, 16, 2, 16, 2, 16, 2, 16, meterRegistry);
+    }
+
+    @AfterEach
+    void tearDown() throws InterruptedException {
+        pipeline.shutdown();
+    }
+
+    @Test
+    void concurrentIdenticalMergesShareOneGeneration() throws Exception {
+        // 多个执行线程同时提交输入相同的合照
+        ExecutorService submitters = Executors.newFixedThreadPool(MERGES);
+        CountDownLatch start = new CountDownLatch(1);
+        List<CompletableFuture<CompletableFuture<Void>>> submitted = new ArrayList<>();
+        try {
+            for (long id = 1; id <= MERGES; id++) {
+                Long mergeId = id;
+                submitted.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return pipeline.submit(mergeId, false);
+                }, submitters));
+            }
+            start.countDown();
+
+            // 上游响应前其余任务都已加入第一个任务的生成
+            assertTrue(followersJoined.await(5, TimeUnit.SECONDS), "其余任务应等待相同输入的生成");
+            upstream.complete(new StoredFile("staging/result.part", 5, "result-hash", "image/jpeg"));
+
+            for (CompletableFuture<CompletableFuture<Void>> result : submitted) {
+                result.get(5, TimeUnit.SECONDS).get(5, TimeUnit.SECONDS);
+            }
+        } finally {
+            submitters.shutdownNow();
+        }
+
+        verify(aiService, times(1)).prepareCall(anyString(), anyString(), anyString(), anyString(), anyBoolean());
+        verify(aiService, times(1)).send(any());
+        verify(mergeResultRepository, times(1))
+                .upsert(eq(FINGERPRINT), anyString(), eq("result-hash"), anyString());
+
+        String resultPath = merges.get(1L).getResultPath();
+        assertNotNull(resultPath);
+        for (PhotoMerge merge : merges.values()) {
+            assertEquals("COMPLETED", merge.getStatus(), "合照 " + merge.getId());
+            assertEquals(resultPath, merge.getResultPath(), "合照 " + merge.getId());
+            assertEquals("result-hash", merge.getResultHash(), "合照 " + merge.getId());
+        }
+    }
+
+    @Test
+    void batchRejectsPhotosOfOtherUsers() {
+        User owner = new User();
+        owner.setId(7L);
+        when(photoRepository.findByIdAndUserId(1L, 7L))
+                .thenReturn(Optional.of(new Photo(owner, "a.jpg", "uploads/a.jpg", 3, "image/jpeg")));
+        // 照片 2 属于其他用户，按用户查询时不存在
+        when(photoRepository.findByIdAndUserId(2L, 7L)).thenReturn(Optional.empty());
+
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class, () ->
+                photoMergeService.createMergeBatch(7L, 1L, 2L, List.of(new MergeBatchItem(3L, "prompt"))));
+
+        assertEquals(HttpStatus.NOT_FOUND, ex.getStatusCode());
+        verify(photoRepository, never()).findById(anyLong());
+        verify(mergeJobService, never()).enqueueAll(any(), any(), any());
+    }
+}